@@ -0,0 +1,85 @@
+package com.devexperts.aprof.benchmark;
+
+/*-
+ * #%L
+ * JMH benchmarks
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.*;
+
+import com.devexperts.aprof.AProfAgent;
+import com.devexperts.aprof.AProfWindows;
+import com.devexperts.aprof.dump.AllocationSite;
+import com.devexperts.aprof.dump.SnapshotRoot;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.*;
+
+/**
+ * JMH profiler that reports allocations per operation and top allocation sites that are collected by aprof agent
+ * in every benchmark iteration. It reports nothing when benchmark JVM runs without the agent. Usage:
+ * <pre>
+ * java -jar microbenchmarks.jar -jvmArgsAppend -javaagent:aprof.jar -prof com.devexperts.aprof.benchmark.AProfProfiler
+ * </pre>
+ */
+public class AProfProfiler implements InternalProfiler {
+	private static final String WINDOW = "jmh-iteration";
+	private static final int TOP_SITES = 5;
+
+	public String getDescription() {
+		return "Allocations per operation and top allocation sites collected by aprof agent";
+	}
+
+	public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+		if (isAttached())
+			AProfWindows.start(WINDOW);
+	}
+
+	public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+		IterationParams iterationParams, IterationResult result)
+	{
+		if (!isAttached())
+			return Collections.emptyList();
+		SnapshotRoot ss = AProfWindows.stop(WINDOW);
+		double ops = Math.max(1, result.getMetadata().getAllOps());
+		boolean size = AProfAgent.getInstance().getConfig().isSize();
+		List<Result> results = new ArrayList<Result>();
+		if (size)
+			results.add(new ScalarResult("·aprof.alloc.norm", ss.getSize() / ops, "B/op", AggregationPolicy.AVG));
+		results.add(new ScalarResult("·aprof.objects.norm", ss.getTotalCount() / ops, "objects/op", AggregationPolicy.AVG));
+		for (AllocationSite site : AllocationSite.selectTop(ss, TOP_SITES, true, size)) {
+			String label = "·aprof.site: " + site.getType() + " at " + site.getLocation();
+			if (size)
+				results.add(new ScalarResult(label, site.getSize() / ops, "B/op", AggregationPolicy.AVG));
+			else
+				results.add(new ScalarResult(label, site.getCount() / ops, "objects/op", AggregationPolicy.AVG));
+		}
+		return results;
+	}
+
+	private static boolean isAttached() {
+		try {
+			return AProfAgent.getInstance() != null;
+		} catch (NoClassDefFoundError e) {
+			return false; // aprof.jar is not on class path
+		}
+	}
+}
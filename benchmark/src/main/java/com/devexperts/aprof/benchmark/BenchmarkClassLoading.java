@@ -0,0 +1,87 @@
+package com.devexperts.aprof.benchmark;
+
+/*-
+ * #%L
+ * JMH benchmarks
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Defines classes from many threads at once to measure contention in class info cache of aprof transformer.
+ * Every operation defines a class in a fresh parallel-capable class loader, so that the cache registers
+ * a new class loader and resolves tracked classes through already initialized parent class loaders.
+ * Run it under the agent with the desired number of threads:
+ * <pre>
+ * java -jar microbenchmarks.jar BenchmarkClassLoading -t 8 -jvmArgsAppend -javaagent:aprof.jar
+ * </pre>
+ * Contention counters are written to the header of aprof dump.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkClassLoading {
+	private static final String LOADED_CLASS_NAME = Loaded.class.getName();
+
+	private byte[] loadedClassBytes;
+
+	@Setup
+	public void setup() throws IOException {
+		InputStream in = BenchmarkClassLoading.class.getResourceAsStream("/" + LOADED_CLASS_NAME.replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				out.write(buf, 0, n);
+			loadedClassBytes = out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public Class<?> testDefineClass() {
+		return new DefiningClassLoader(BenchmarkClassLoading.class.getClassLoader()).define(LOADED_CLASS_NAME, loadedClassBytes);
+	}
+
+	private static class DefiningClassLoader extends ClassLoader {
+		static {
+			registerAsParallelCapable();
+		}
+
+		DefiningClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	// allocates, so that it is actually transformed by the agent
+	public static class Loaded {
+		private final Object value = new Object();
+
+		public Object getValue() {
+			return value;
+		}
+	}
+}
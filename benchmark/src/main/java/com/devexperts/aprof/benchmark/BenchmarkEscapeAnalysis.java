@@ -22,7 +22,7 @@ package com.devexperts.aprof.benchmark;
  * #L%
  */
 
-import org.openjdk.jmh.annotations.GenerateMicroBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
 
 public class BenchmarkEscapeAnalysis {
 	private static final Box BOX = newBox();
@@ -44,22 +44,22 @@ public class BenchmarkEscapeAnalysis {
 		return ARRAY.clone();
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public int testNewBox() {
 		return newBox().getValue();
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public int testCloneBox() {
 		return cloneBox().getValue();
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public int testNewArray() {
 		return newArray()[0];
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public int testCloneArray() {
 		return cloneArray()[0];
 	}
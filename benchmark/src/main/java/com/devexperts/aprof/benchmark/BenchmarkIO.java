@@ -30,7 +30,7 @@ import org.openjdk.jmh.annotations.*;
 public class BenchmarkIO {
 	private final PrintWriter out = new PrintWriter(new LoopWriter());
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public void testPrintChar() {
 		out.print('.');
 	}
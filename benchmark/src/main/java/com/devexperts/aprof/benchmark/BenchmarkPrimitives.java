@@ -22,22 +22,22 @@ package com.devexperts.aprof.benchmark;
  * #L%
  */
 
-import org.openjdk.jmh.annotations.GenerateMicroBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
 
 public class BenchmarkPrimitives {
 	private static final char[] CHARS = "TEST".toCharArray();
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public Box testNewBox() {
 		return new Box(1);
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public String testNewString() {
 		return new String(CHARS);
 	}
 
-	@GenerateMicroBenchmark
+	@Benchmark
 	public Integer testIntegerValueOf() {
 		return 1; // auto-boxing
 	}
@@ -27,6 +27,7 @@ import java.lang.instrument.*;
 import java.lang.reflect.Constructor;
 import java.net.URL;
 import java.util.*;
+import javax.management.JMException;
 
 import com.devexperts.aprof.dump.*;
 import com.devexperts.aprof.hotspot.CompileLogWatcher;
@@ -82,6 +83,9 @@ public class AProfAgent {
 	private final Configuration config;
 	private final Instrumentation inst;
 	private final Dumper dumper;
+	private AdaptiveInstrumentation adaptiveInstrumentation;
+	private TrackingReconfiguration trackingReconfiguration;
+	private TrackingDiscovery trackingDiscovery;
 
 	public AProfAgent(Configuration config, Instrumentation inst) {
 		this.start = System.currentTimeMillis();
@@ -98,6 +102,27 @@ public class AProfAgent {
 		return dumper;
 	}
 
+	/**
+	 * Returns adaptive instrumentation or {@code null} when it is not enabled.
+	 */
+	public AdaptiveInstrumentation getAdaptiveInstrumentation() {
+		return adaptiveInstrumentation;
+	}
+
+	/**
+	 * Returns run-time reconfiguration of tracked methods or {@code null} when transformer does not support it.
+	 */
+	public TrackingReconfiguration getTrackingReconfiguration() {
+		return trackingReconfiguration;
+	}
+
+	/**
+	 * Returns discovery of methods to track or {@code null} when transformer does not support it.
+	 */
+	public TrackingDiscovery getTrackingDiscovery() {
+		return trackingDiscovery;
+	}
+
 	@SuppressWarnings("unchecked")
 	public void go() throws Exception {
 		StringBuilder sb = new StringBuilder();
@@ -120,11 +145,21 @@ public class AProfAgent {
 		Constructor<ClassFileTransformer> transformerConstructor = transformerClass.getConstructor(Configuration.class);
 		ClassFileTransformer transformer = transformerConstructor.newInstance(config);
 
-		// redefine all classes loader so far
-		redefine(transformer);
-
-		inst.addTransformer(transformer);
-		log("Done redefining, transformer installed");
+		if (config.getDefer() > 0 && !inst.isRetransformClassesSupported())
+			logClearSbAlways(sb.append("Retransformation is not supported, 'defer' option is ignored"));
+		if (config.getDefer() > 0 && inst.isRetransformClassesSupported()) {
+			// classes loaded so far are retransformed in background together with the deferred ones
+			DeferredTransformer deferredTransformer = new DeferredTransformer(config, inst, transformer, start);
+			inst.addTransformer(deferredTransformer, true);
+			deferredTransformer.start();
+			log("Deferred transformer installed");
+		} else {
+			// redefine all classes loader so far
+			redefine(transformer);
+
+			inst.addTransformer(transformer);
+			log("Done redefining, transformer installed");
+		}
 
 		// dumping
 		log("Making first dump...");
@@ -137,6 +172,22 @@ public class AProfAgent {
 			dpt.start();
 		}
 
+		if (config.getAdaptive() > 0) {
+			log("Starting adaptive instrumentation thread...");
+			adaptiveInstrumentation = new AdaptiveInstrumentation(config, inst, dumper);
+			adaptiveInstrumentation.start();
+		}
+
+		if (transformer instanceof TrackingTransformer && config.isRuntimeTracking()) {
+			trackingReconfiguration = new TrackingReconfiguration(config, inst, (TrackingTransformer)transformer);
+			trackingReconfiguration.start();
+			// discovery thread is started on first request when it is not done automatically
+			trackingDiscovery = new TrackingDiscovery(config, dumper, (TrackingTransformer)transformer,
+				trackingReconfiguration);
+			if (config.getDiscover() > 0)
+				trackingDiscovery.start();
+		}
+
 		long finish = System.currentTimeMillis();
 		long transformTime = AProfRegistry.getTime();
 		log("Attaching shutdown hook...");
@@ -148,6 +199,20 @@ public class AProfAgent {
 			Thread t = new ConnectionListenerThread(config.getPort(), dumper);
 			t.start();
 		}
+		SnapshotCache cache = new SnapshotCache(dumper, config.getMetricsRefresh());
+		if (config.getHttpPort() > 0) {
+			logClearSb(sb.append("Serving metrics over HTTP on port ").append(config.getHttpPort()));
+			Thread t = new HttpMetricsListenerThread(config, cache);
+			t.start();
+		}
+		if (config.isJmx()) {
+			log("Registering JMX MBean " + AProfMonitor.OBJECT_NAME + "...");
+			try {
+				new AProfMonitor(config, dumper, cache).register();
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+		}
 
 		// done
 		logClearSbAlways(sb.append("Loaded in ").append(finish - start).append(" ms with ").append(transformTime).
@@ -34,88 +34,125 @@ import static com.devexperts.aprof.AProfSizeUtil.*;
 @Internal
 public class AProfOps {
 	public static void allocate(LocationStack stack, int index) {
-		getDetailedIndex(stack, getRootIndex(index)).incrementCount();
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		map.incrementCount();
+		probe(stack, map, rootIndex, 0);
 	}
 
 	public static void allocateSize(LocationStack stack, int index, Class objectClass) {
 		RootIndexMap rootIndex = getRootIndex(index);
-		getDetailedIndex(stack, rootIndex).incrementCount();
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		map.incrementCount();
 		DatatypeInfo datatypeInfo = rootIndex.getDatatypeInfo();
 		if (datatypeInfo.getSize() == 0)
 			datatypeInfo.setSize(getObjectSizeByClass(objectClass));
+		probe(stack, map, rootIndex, 0);
 	}
 
 	public static void booleanAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, booleanArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = booleanArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void byteAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, byteArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = byteArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void charAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, charArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = charArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void shortAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, shortArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = shortArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void intAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, intArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = intArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void longAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, longArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = longArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void floatAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, floatArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = floatArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void doubleAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, doubleArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = doubleArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void objectAllocateArraySize(int length, LocationStack stack, int index) {
 		if (length < 0)
 			return; // will throw NegativeArraySizeException instead of array allocation
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(length, objectArraySize(length));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = objectArraySize(length);
+		map.incrementArraySizeAndCount(length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void allocateArraySizeMulti(Object[] o, LocationStack stack, int index) {
-		IndexMap map = getDetailedIndex(stack, getRootIndex(index));
-		map.incrementArraySizeAndCount(o.length, getArraySizeMultiRec(o));
+		RootIndexMap rootIndex = getRootIndex(index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
+		long size = getArraySizeMultiRec(o);
+		map.incrementArraySizeAndCount(o.length, size);
+		probe(stack, map, rootIndex, size);
 	}
 
 	public static void allocateReflect(Object o, LocationStack stack, int index) {
-		IndexMap map = getDetailedIndex(stack, getRootIndex(AProfRegistry.resolveClassName(o.getClass().getName()), index));
+		RootIndexMap rootIndex = getRootIndex(AProfRegistry.resolveClassName(o.getClass().getName()), index);
+		IndexMap map = getDetailedIndex(stack, rootIndex);
 		map.incrementCount();
+		probe(stack, map, rootIndex, 0);
 	}
 
 	public static void allocateReflectSize(Object o, LocationStack stack, int index) {
@@ -123,11 +160,14 @@ public class AProfOps {
 		DatatypeInfo datatypeInfo = rootIndex.getDatatypeInfo();
 		IndexMap map = getDetailedIndex(stack, rootIndex);
 		if (datatypeInfo.isArray()) {
-			map.incrementArraySizeAndCount(Array.getLength(o), getArraySizeMultiRec(o));
+			long size = getArraySizeMultiRec(o);
+			map.incrementArraySizeAndCount(Array.getLength(o), size);
+			probe(stack, map, rootIndex, size);
 		} else {
 			map.incrementCount();
 			if (datatypeInfo.getSize() == 0)
 				datatypeInfo.setSize(getObjectSize(o));
+			probe(stack, map, rootIndex, 0);
 		}
 	}
 
@@ -157,4 +197,11 @@ public class AProfOps {
 		if (datatypeInfo.getSize() == 0)
 			datatypeInfo.setSize(getObjectSize(o));
 	}
+
+	// records allocation for AProfProbe when it measures the current thread, size is known for arrays only
+	private static void probe(LocationStack stack, IndexMap map, RootIndexMap rootIndex, long size) {
+		ProbeRecorder probe = stack.probe;
+		if (probe != null)
+			probe.record(stack, map, rootIndex, size);
+	}
 }
@@ -0,0 +1,61 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.dump.SnapshotRoot;
+
+/**
+ * Measures exact allocations made by the current thread, so that tests can assert allocation budgets like
+ * <pre>
+ * assertEquals(0, AProfProbe.measure(task).getTotalCount());
+ * </pre>
+ * Only the measured thread takes the slower path that records its allocations, other threads are unaffected.
+ * Allocations are seen in instrumented code only, so tests shall run with <code>-javaagent:aprof.jar</code>.
+ * Measurements can be nested.
+ */
+public class AProfProbe {
+	private AProfProbe() {} // do not create
+
+	/**
+	 * Runs the task in the current thread and returns allocations it made by data type and allocation location.
+	 * The time of the result is the duration of the task in milliseconds.
+	 *
+	 * @throws IllegalStateException if aprof agent is not attached.
+	 */
+	public static SnapshotRoot measure(Runnable task) {
+		if (!AProfRegistry.isInitialized())
+			throw new IllegalStateException("aprof agent is not attached");
+		LocationStack stack = LocationStack.get();
+		ProbeRecorder recorder = new ProbeRecorder(stack.probe);
+		long start = System.currentTimeMillis();
+		stack.probe = recorder;
+		try {
+			task.run();
+		} finally {
+			stack.probe = recorder.getParent();
+		}
+		SnapshotRoot result = recorder.toSnapshot();
+		result.setTime(System.currentTimeMillis() - start);
+		return result;
+	}
+}
@@ -22,6 +22,8 @@ package com.devexperts.aprof;
  * #L%
  */
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -41,6 +43,9 @@ public class AProfRegistry {
 	// because they don't invoke constructor and need to be counted separately.
 	private static final String OBJECT_CLONE_SUFFIX = ";via-clone";
 
+	// allocations of de-instrumented locations are counted for their class under this method name
+	private static final String NEGLIGIBLE_METHOD = "<negligible>";
+
 	/**
 	 * Locations are created at transformation time
 	 */
@@ -118,6 +123,7 @@ public class AProfRegistry {
 			locationClass.equals(IndexMap.class.getName()) ||
 			locationClass.equals(LocationStack.class.getName()) ||
 			locationClass.equals(LocationStackThreadLocal.class.getName()) ||
+			locationClass.equals(ProbeRecorder.class.getName()) ||
 			locationClass.equals(FastArrayList.class.getName()) ||
 			locationClass.equals(StringIndexer.class.getName());
 	}
@@ -126,11 +132,7 @@ public class AProfRegistry {
 		int pos1 = cname.indexOf(PROXY_CLASS_TOKEN);
 		if (pos1 >= 0)
 			return false;
-		if (config != null)
-			for (String name : config.getAggregatedClasses())
-				if (cname.startsWith(name))
-					return false;
-		return true;
+		return config == null || !config.getAggregatedClassesMatcher().matches(cname);
 	}
 
 	// converts fully qualified dot-separated class name (cname) to "locationClass"
@@ -147,17 +149,14 @@ public class AProfRegistry {
 			// snip $ProxyXXX number
 			return cname.substring(0, pos1) + cname.substring(pos2);
 		}
-		if (config != null) {
-			for (String name : config.getAggregatedClasses()) {
-				if (cname.startsWith(name)) {
-					int pos = name.length();
-					while (pos < cname.length() && Character.isDigit(cname.charAt(pos))) {
-						pos++;
-					}
-					// Snip number after aggregated class name
-					return name + cname.substring(pos);
-				}
+		int length = config == null ? -1 : config.getAggregatedClassesMatcher().matchLength(cname);
+		if (length >= 0) {
+			int pos = length;
+			while (pos < cname.length() && Character.isDigit(cname.charAt(pos))) {
+				pos++;
 			}
+			// Snip number after aggregated class name
+			return pos == length ? cname : cname.substring(0, length) + cname.substring(pos);
 		}
 		return cname;
 	}
@@ -261,7 +260,7 @@ public class AProfRegistry {
 		int id = DATATYPE_NAMES.get(cname);
 		if (id == 0)
 			return null;
-		return DATATYPE_INFOS.getSafely(id);
+		return DATATYPE_INFOS.get(id);
 	}
 
 	// allocates memory during class transformation only
@@ -269,31 +268,28 @@ public class AProfRegistry {
 		assert !locationClass.startsWith("[") : locationClass;
 		assert !locationClass.contains("/") : locationClass;
 		int id = DATATYPE_NAMES.get(locationClass);
-		if (id == 0) {
+		if (id == 0)
 			id = DATATYPE_NAMES.register(locationClass);
-			return createDatatypeInfo(id);
-		}
-		return DATATYPE_INFOS.getSafely(id);
+		// name might have been just registered by another thread that had not created its info yet
+		return getOrCreateDatatypeInfo(id);
 	}
 
 	private static DatatypeInfo getDatatypeInfo(int id) {
-		return DATATYPE_INFOS.getSafely(id);
+		return DATATYPE_INFOS.get(id);
 	}
 
-	private static DatatypeInfo createDatatypeInfo(int id) {
-		synchronized (DATATYPE_INFOS) {
-			DatatypeInfo datatypeInfo = DATATYPE_INFOS.getUnsync(id);
-			if (datatypeInfo == null) {
-				String datatype = DATATYPE_NAMES.get(id);
-				datatypeInfo = new DatatypeInfo(datatype, datatype.endsWith("]") ? config.getHistogram(datatype) : null);
-				DATATYPE_INFOS.putUnsync(id, datatypeInfo);
-			}
+	private static DatatypeInfo getOrCreateDatatypeInfo(int id) {
+		DatatypeInfo datatypeInfo = DATATYPE_INFOS.get(id);
+		if (datatypeInfo != null)
 			return datatypeInfo;
-		}
+		String datatype = DATATYPE_NAMES.get(id);
+		// concurrent creators race to publish their info, only one of them wins
+		return DATATYPE_INFOS.putIfAbsent(id,
+			new DatatypeInfo(datatype, datatype.endsWith("]") ? config.getHistogram(datatype) : null));
 	}
 
 	static RootIndexMap getRootIndex(int id) {
-		return ROOT_INDEXES.getSafely(id);
+		return ROOT_INDEXES.get(id);
 	}
 
 	// allocates memory during class transformation and reflection calls
@@ -305,21 +301,17 @@ public class AProfRegistry {
 		return rootMap;
 	}
 
-	@SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
 	private static RootIndexMap registerRootIndexSlowPath(DatatypeInfo datatypeInfo, int loc) {
 		IndexMap<RootIndexMap> datatypeMap = datatypeInfo.getIndex();
-		synchronized (datatypeMap) {
-			RootIndexMap rootMap = datatypeMap.getChildUnsync(loc);
-			if (rootMap == null) {
-				int rootIndex = LAST_ROOT_INDEX.incrementAndGet();
-				datatypeMap.putNewChildUnsync(rootMap =
-					new RootIndexMap(loc, rootIndex, datatypeMap.getHistogram(), datatypeInfo));
-				synchronized (ROOT_INDEXES) {
-					ROOT_INDEXES.putUnsync(rootIndex, rootMap);
-				}
-			}
+		RootIndexMap rootMap = datatypeMap.getChild(loc);
+		if (rootMap != null)
 			return rootMap;
-		}
+		int rootIndex = LAST_ROOT_INDEX.incrementAndGet();
+		rootMap = new RootIndexMap(loc, rootIndex, datatypeMap.getHistogram(), datatypeInfo);
+		// root index shall be resolvable before the root is published in datatype map. When concurrent
+		// registration of the same root wins, our root index stays unused and is never counted.
+		ROOT_INDEXES.putIfAbsent(rootIndex, rootMap);
+		return datatypeMap.putChildIfAbsent(rootMap);
 	}
 
 	// allocates memory during class transformation only
@@ -332,7 +324,7 @@ public class AProfRegistry {
 	public static synchronized boolean isOverflowThreshold() {
 		int n = DATATYPE_INFOS.length();
 		for (int i = 0; i < n; i++) {
-			DatatypeInfo datatypeInfo = DATATYPE_INFOS.getUnsync(i);
+			DatatypeInfo datatypeInfo = DATATYPE_INFOS.get(i);
 			if (datatypeInfo == null)
 				continue;
 			if (datatypeInfo.getIndex().isOverflowThreshold())
@@ -362,6 +354,29 @@ public class AProfRegistry {
 		return map;
 	}
 
+	// returns location names on the path to the map that getDetailedIndex returns
+	static String[] getDetailedPath(LocationStack stack, IndexMap map) {
+		int loc1 = stack.invoked_method_loc;
+		int loc2 = stack.invocation_point_loc;
+		boolean hasLoc1 = loc1 != UNKNOWN_LOC && loc1 != map.getLocation();
+		boolean hasLoc2 = loc2 != UNKNOWN_LOC;
+		boolean hasTransformLoc = TRACK_TRANSFORM_DETAILS && stack.transform_loc != UNKNOWN_LOC && stack.transform_loc != loc2;
+		String[] path = new String[1 + (hasLoc1 ? 1 : 0) + (hasLoc2 ? 1 : 0) + (hasTransformLoc ? 1 : 0)];
+		int n = 0;
+		path[n++] = LOCATIONS.get(map.getLocation());
+		if (hasLoc1)
+			path[n++] = LOCATIONS.get(loc1);
+		if (hasLoc2)
+			path[n++] = LOCATIONS.get(loc2);
+		if (hasTransformLoc)
+			path[n] = LOCATIONS.get(stack.transform_loc);
+		return path;
+	}
+
+	static boolean isInitialized() {
+		return config != null;
+	}
+
 	//==================== SNAPSHOTS ======================
 
 	/**
@@ -378,7 +393,7 @@ public class AProfRegistry {
 		if (SORTED_DATATYPES == null || SORTED_DATATYPES.length < size)
 			SORTED_DATATYPES = new DatatypeInfo[(int)(1.5 * size)]; // reserve for the future growth
 		int count = 0;
-		for (int i = 0; i < size; i++) {
+		for (int i = 1; i <= size; i++) { // ids start from 1
 			DatatypeInfo datatypeInfo = getDatatypeInfo(i);
 			if (datatypeInfo == null)
 				continue;
@@ -545,6 +560,7 @@ public class AProfRegistry {
 
 	private static final AtomicInteger cnt = new AtomicInteger();
 	private static final AtomicLong time = new AtomicLong();
+	private static final AtomicInteger frameCnt = new AtomicInteger();
 
 	public static int getCount() {
 		return cnt.get();
@@ -562,6 +578,90 @@ public class AProfRegistry {
 		return time.addAndGet(timePeriod);
 	}
 
+	/**
+	 * Returns number of transformed methods whose stack map frames were recomputed in keepframes mode.
+	 */
+	public static int getFrameRecomputeCount() {
+		return frameCnt.get();
+	}
+
+	public static int incrementFrameRecomputeCount(int methodCount) {
+		return frameCnt.addAndGet(methodCount);
+	}
+
+	//=================== CLASS INFO CACHE ====================
+
+	private static final AtomicInteger classLoaderCnt = new AtomicInteger();
+	private static final AtomicInteger classInfoContendedCnt = new AtomicInteger();
+	private static final AtomicInteger classInfoWaitCnt = new AtomicInteger();
+
+	/**
+	 * Returns number of class loaders that transformer has cached class info for.
+	 */
+	public static int getClassLoaderCount() {
+		return classLoaderCnt.get();
+	}
+
+	public static int incrementClassLoaderCount() {
+		return classLoaderCnt.incrementAndGet();
+	}
+
+	/**
+	 * Returns number of times transformer waited for a lock of class info cache held by another thread.
+	 */
+	public static int getClassInfoContendedCount() {
+		return classInfoContendedCnt.get();
+	}
+
+	public static int incrementClassInfoContendedCount() {
+		return classInfoContendedCnt.incrementAndGet();
+	}
+
+	/**
+	 * Returns number of times transformer waited for another thread to initialize class info of a class loader.
+	 */
+	public static int getClassInfoWaitCount() {
+		return classInfoWaitCnt.get();
+	}
+
+	public static int incrementClassInfoWaitCount() {
+		return classInfoWaitCnt.incrementAndGet();
+	}
+
+	//=================== ADAPTIVE INSTRUMENTATION ====================
+
+	private static volatile Set<String> negligibleLocations = Collections.emptySet();
+
+	/**
+	 * Returns true when allocations at this location are de-instrumented and counted for its class only.
+	 */
+	public static boolean isNegligibleLocation(String location) {
+		Set<String> locations = negligibleLocations;
+		return !locations.isEmpty() && locations.contains(location);
+	}
+
+	public static boolean isNegligibleClassLocation(String location) {
+		return location.endsWith(NEGLIGIBLE_METHOD);
+	}
+
+	public static String getNegligibleClassLocation(String locationClass) {
+		return locationClass + "." + NEGLIGIBLE_METHOD;
+	}
+
+	/**
+	 * Returns number of allocation locations that are de-instrumented.
+	 */
+	public static int getNegligibleLocationCount() {
+		return negligibleLocations.size();
+	}
+
+	/**
+	 * Replaces a set of de-instrumented locations. It takes effect on classes that are transformed afterwards.
+	 */
+	public static void setNegligibleLocations(Set<String> locations) {
+		negligibleLocations = Collections.unmodifiableSet(locations);
+	}
+
 	//=================== DIRECT CLONE ====================
 
 	// called during class transformation only
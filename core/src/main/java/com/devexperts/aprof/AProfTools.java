@@ -24,12 +24,13 @@ package com.devexperts.aprof;
 
 import java.io.*;
 import java.lang.reflect.Method;
-import java.net.Socket;
 import java.net.URL;
-import java.util.Locale;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.*;
 
-import com.devexperts.aprof.dump.DumpFormatter;
-import com.devexperts.aprof.dump.SnapshotRoot;
+import com.devexperts.aprof.dump.*;
+import com.devexperts.aprof.util.FastFmtUtil;
 import com.devexperts.aprof.util.FastOutputStreamWriter;
 import com.devexperts.aprof.util.InnerJarClassLoader;
 
@@ -43,7 +44,8 @@ public class AProfTools {
 			"\nThis is free software, and you are welcome to redistribute it under certain conditions." +
 			"\nSource code and documentation are available at <http://code.devexperts.com/>.";
 
-	private static final String ENCODING = "UTF-8";
+	private static final int DEFAULT_DIFF_TOP = 20;
+	private static final int DEFAULT_AGGREGATE_TIMEOUT = 30000;
 
 	public static void main(final String[] args) throws Exception {
 		if (args.length > 0) {
@@ -51,6 +53,25 @@ public class AProfTools {
 			if ("dump".equals(command)) {
 				runDumpCommand(args);
 				return;
+			} else if ("window".equals(command)) {
+				runWindowCommand(args);
+				return;
+			} else if ("instrument".equals(command)) {
+				runInstrumentCommand(args);
+				return;
+			} else if ("track".equals(command)) {
+				runTrackCommand(args);
+				return;
+			} else if ("aggregate".equals(command)) {
+				runAggregateCommand(args);
+				return;
+			} else if ("diff".equals(command)) {
+				if (!runDiffCommand(args))
+					System.exit(1);
+				return;
+			} else if ("query".equals(command)) {
+				runQueryCommand(args);
+				return;
 			} else if ("export".equals(command)) {
 				runExportCommand(args);
 				return;
@@ -77,8 +98,49 @@ public class AProfTools {
 		}
 		def.showNotes(out, true);
 		out.println();
-		out.println("Usage: java -jar aprof.jar dump [<host>:]<port>");
+		out.println("Usage: java -jar aprof.jar dump [<host>:]<port> [<format>] [--query <query>]");
 		out.println("       Dumps statistics from a running aprof agent that listen on a port.");
+		out.println("       Agent returns only the part of statistics that matches <query> when it is specified:");
+		out.println("       \"TOP <n> [BY SIZE|COUNT] [WHERE TYPE LIKE '<pattern>'] [DEPTH <d>]\",");
+		out.println("       where '%' and '_' are wildcards in pattern, n is a limit of items on each level,");
+		out.println("       and d is a number of levels to return (1 -- data types only).");
+		out.println("       Where <format> is one of " + DumpFormat.names() + " (text by default).");
+		out.println();
+		out.println("Usage: java -jar aprof.jar window [<host>:]<port> start|stop|get <name> [<format>]");
+		out.println("       Starts or stops named measurement window in a running aprof agent that listen on a port.");
+		out.println("       Stop and get print allocation rates and statistics collected in the window.");
+		out.println("       Where <format> is one of " + DumpFormat.names() + " (text by default).");
+		out.println();
+		out.println("Usage: java -jar aprof.jar instrument [<host>:]<port> full");
+		out.println("       Re-enables full instrumentation of allocation locations that were de-instrumented");
+		out.println("       in a running aprof agent that listen on a port (see adaptive).");
+		out.println();
+		out.println("Usage: java -jar aprof.jar track [<host>:]<port> add|remove <class>.<method>[,<class>.<method>...]");
+		out.println("       Starts or stops tracking of methods in a running aprof agent that listen on a port.");
+		out.println("       Only classes that invoke changed methods are transformed again, use <class>.* to stop");
+		out.println("       tracking of all methods of a class.");
+		out.println();
+		out.println("Usage: java -jar aprof.jar track [<host>:]<port> list");
+		out.println("       Prints tracked methods of a running aprof agent that listen on a port.");
+		out.println();
+		out.println("Usage: java -jar aprof.jar track [<host>:]<port> discover");
+		out.println("       Discovers methods that funnel allocations from many callers in a running aprof agent");
+		out.println("       that listen on a port and writes them to its discover.file (see discover).");
+		out.println();
+		out.println("Usage: java -jar aprof.jar aggregate [<host>:]<port>,... [--period <sec>] [--timeout <sec>] [<format>]");
+		out.println("       Concurrently dumps statistics from many aprof agents and merges them into one profile.");
+		out.println("       Prints totals per node and merged statistics, every <sec> seconds when period is specified.");
+		out.println("       Where <format> is one of " + DumpFormat.names() + " (text by default).");
+		out.println();
+		out.println("Usage: java -jar aprof.jar diff <baseline> <current> [--top <n>] [--budget <file>]");
+		out.println("       Compares allocation rates in two text or serialized dumps by data type and location path.");
+		out.println("       Exits with non-zero code when any site exceeds budget rules of the form:");
+		out.println("       <type;location;...> <bytes|count> <+N%|+N/s>, where '*' and '?' are wildcards.");
+		out.println();
+		out.println("Usage: java -jar aprof.jar query <journal> <from> <to> [<format>]");
+		out.println("       Sums allocations from snapshot journal (see journal.file) over a time range.");
+		out.println("       Time is [yyyy-MM-dd'T']HH:mm[:ss] (today when date is omitted) or milliseconds since epoch.");
+		out.println("       Where <format> is one of " + DumpFormat.names() + " (text by default).");
 		out.println();
 		out.println("Usage: java -jar aprof.jar export [<file>]");
 		out.println("       Exports default tracked locations configuration to a file.");
@@ -102,29 +164,229 @@ public class AProfTools {
 		mainMethod.invoke(null, (Object)args);
 	}
 
-	private static void runDumpCommand(String[] args) throws IOException, ClassNotFoundException {
-		if (args.length != 2) {
+	private static void runDumpCommand(String[] args) throws IOException {
+		String query = null;
+		List<String> rest = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			if ("--query".equals(args[i]) && i + 1 < args.length)
+				query = args[++i];
+			else
+				rest.add(args[i]);
+		}
+		if (rest.size() != 1 && rest.size() != 2) {
 			help();
 			return;
 		}
-		String address = args[1];
-		int i = address.indexOf(':');
-		String host = i < 0 ? "localhost" : address.substring(0, i);
-		int port = Integer.parseInt(address.substring(i + 1));
-		Socket socket = new Socket(host, port);
-		OutputStream outputStream = socket.getOutputStream();
-		outputStream.write("DUMP\r\n".getBytes(ENCODING));
-		outputStream.flush();
-		ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-		SnapshotRoot totalSnapshot = (SnapshotRoot)ois.readObject();
-		ois.close();
-		socket.close();
-		DumpFormatter formatter = new DumpFormatter(new Configuration());
+		DumpFormat format = rest.size() > 1 ? DumpFormat.forName(rest.get(1).trim()) : DumpFormat.TEXT;
+		if (format == null) {
+			help();
+			return;
+		}
+		if (query != null)
+			SnapshotQuery.parse(query); // fail fast on invalid query
+		SnapshotRoot totalSnapshot = SnapshotClient.fetch(rest.get(0), 0, query == null ? "DUMP" : query);
+		SnapshotFormatter formatter = format.createFormatter(new Configuration());
 		PrintWriter out = new PrintWriter(System.out);
-		formatter.dumpSnapshot(out, totalSnapshot, "DUMP");
+		formatter.dumpSnapshot(out, totalSnapshot, query == null ? "DUMP" : "QUERY");
+		out.flush();
+	}
+
+	private static void runWindowCommand(String[] args) throws IOException {
+		if (args.length != 4 && args.length != 5) {
+			help();
+			return;
+		}
+		String action = args[2].trim().toLowerCase(Locale.US);
+		DumpFormat format = args.length > 4 ? DumpFormat.forName(args[4].trim()) : DumpFormat.TEXT;
+		if (format == null || !action.equals("start") && !action.equals("stop") && !action.equals("get")) {
+			help();
+			return;
+		}
+		String name = args[3].trim();
+		String command = "WINDOW " + action.toUpperCase(Locale.US) + " " + name;
+		if (action.equals("start")) {
+			System.out.println(SnapshotClient.sendCommand(args[1], 0, command));
+			return;
+		}
+		SnapshotRoot ss = SnapshotClient.fetch(args[1], 0, command);
+		Configuration config = new Configuration();
+		PrintWriter out = new PrintWriter(new FastOutputStreamWriter(System.out));
+		if (format == DumpFormat.TEXT)
+			MeasurementWindow.printReport(out, name, ss, config.isSize(), format.createFormatter(config));
+		else
+			format.createFormatter(config).dumpSnapshot(out, ss, "WINDOW " + name);
 		out.flush();
 	}
 
+	private static void runInstrumentCommand(String[] args) throws IOException {
+		if (args.length != 3 || !args[2].trim().equalsIgnoreCase("full")) {
+			help();
+			return;
+		}
+		System.out.println(SnapshotClient.sendCommand(args[1], 0, "INSTRUMENT FULL"));
+	}
+
+	private static void runTrackCommand(String[] args) throws IOException {
+		String action = args.length > 2 ? args[2].trim().toLowerCase(Locale.US) : "";
+		boolean noArgs = action.equals("list") || action.equals("discover");
+		if (noArgs ? args.length != 3 : args.length != 4 || !action.equals("add") && !action.equals("remove")) {
+			help();
+			return;
+		}
+		String command = "TRACK " + action.toUpperCase(Locale.US) + (noArgs ? "" : " " + args[3].trim());
+		System.out.println(SnapshotClient.sendCommand(args[1], 0, command));
+	}
+
+	private static void runAggregateCommand(String[] args) throws IOException, InterruptedException {
+		List<String> addresses = new ArrayList<String>();
+		long period = 0;
+		int timeout = DEFAULT_AGGREGATE_TIMEOUT;
+		DumpFormat format = DumpFormat.TEXT;
+		for (int i = 1; i < args.length; i++) {
+			if ("--period".equals(args[i]) && i + 1 < args.length)
+				period = (long)(Double.parseDouble(args[++i]) * 1000);
+			else if ("--timeout".equals(args[i]) && i + 1 < args.length)
+				timeout = (int)(Double.parseDouble(args[++i]) * 1000);
+			else if (addresses.isEmpty()) {
+				for (String address : args[i].split(","))
+					if (address.trim().length() > 0)
+						addresses.add(address.trim());
+			} else if ((format = DumpFormat.forName(args[i].trim())) == null) {
+				help();
+				return;
+			}
+		}
+		if (addresses.isEmpty()) {
+			help();
+			return;
+		}
+		SnapshotAggregator aggregator = new SnapshotAggregator(addresses, timeout);
+		SnapshotFormatter formatter = format.createFormatter(new Configuration());
+		PrintWriter out = new PrintWriter(new FastOutputStreamWriter(System.out));
+		try {
+			while (true) {
+				long start = System.currentTimeMillis();
+				SnapshotAggregator.Result result = aggregator.aggregate();
+				out.println("Aggregated at " + new Date(start) + " in " + (System.currentTimeMillis() - start) + " ms");
+				result.printNodeTotals(out);
+				out.println();
+				formatter.dumpSnapshot(out, result.getMerged(), "MERGED");
+				out.flush();
+				if (period <= 0)
+					break;
+				Thread.sleep(Math.max(0, start + period - System.currentTimeMillis()));
+			}
+		} finally {
+			aggregator.close();
+		}
+	}
+
+	private static boolean runDiffCommand(String[] args) throws IOException {
+		List<String> files = new ArrayList<String>();
+		String budgetFile = null;
+		int top = DEFAULT_DIFF_TOP;
+		for (int i = 1; i < args.length; i++) {
+			if ("--budget".equals(args[i]) && i + 1 < args.length)
+				budgetFile = args[++i];
+			else if ("--top".equals(args[i]) && i + 1 < args.length)
+				top = Integer.parseInt(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.size() != 2) {
+			help();
+			return false;
+		}
+		DiffBudget budget = budgetFile == null ? null : DiffBudget.load(new File(budgetFile));
+		SnapshotRoot baseline = DumpReader.read(new File(files.get(0)));
+		SnapshotRoot current = DumpReader.read(new File(files.get(1)));
+		SnapshotDiff diff = new SnapshotDiff(baseline, current);
+		PrintWriter out = new PrintWriter(new FastOutputStreamWriter(System.out));
+		printDiffHeader(out, "Baseline", files.get(0), baseline);
+		printDiffHeader(out, "Current", files.get(1), current);
+		out.println();
+		diff.printTopMovers(out, top);
+		int violations = budget == null ? 0 : budget.check(diff, out);
+		if (budget != null) {
+			out.print("Budget of ");
+			FastFmtUtil.printNum(out, budget.getRuleCount());
+			out.print(" rules ");
+			if (violations == 0)
+				out.println("is met");
+			else {
+				out.print("is exceeded ");
+				FastFmtUtil.printNum(out, violations);
+				out.println(" times");
+			}
+		}
+		out.flush();
+		return violations == 0;
+	}
+
+	private static void printDiffHeader(PrintWriter out, String title, String fileName, SnapshotRoot ss) {
+		out.print(title + " " + fileName + ": ");
+		FastFmtUtil.printNum(out, ss.getSize());
+		out.print(" bytes in ");
+		FastFmtUtil.printNum(out, ss.getTotalCount());
+		out.print(" objects for ");
+		FastFmtUtil.printNum(out, ss.getTime());
+		out.println(" ms");
+	}
+
+	private static void runQueryCommand(String[] args) throws IOException {
+		if (args.length != 4 && args.length != 5) {
+			help();
+			return;
+		}
+		DumpFormat format = args.length > 4 ? DumpFormat.forName(args[4].trim()) : DumpFormat.TEXT;
+		if (format == null) {
+			help();
+			return;
+		}
+		long from = parseTime(args[2]);
+		long to = parseTime(args[3]);
+		SnapshotJournalReader reader = new SnapshotJournalReader(new File(args[1]));
+		try {
+			SnapshotRoot ss = reader.query(from, to);
+			if (ss == null) {
+				System.out.println("No journal records between " + new Date(from) + " and " + new Date(to));
+				return;
+			}
+			PrintWriter out = new PrintWriter(new FastOutputStreamWriter(System.out));
+			format.createFormatter(new Configuration()).dumpSnapshot(out, ss, "QUERY");
+			out.flush();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static long parseTime(String s) {
+		s = s.trim();
+		if (s.matches("\\d+"))
+			return Long.parseLong(s);
+		String[] patterns = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm" };
+		for (String pattern : patterns) {
+			SimpleDateFormat fmt = new SimpleDateFormat(pattern, Locale.US);
+			fmt.setLenient(false);
+			ParsePosition pos = new ParsePosition(0);
+			Date date = fmt.parse(s, pos);
+			if (date != null && pos.getIndex() == s.length())
+				return date.getTime();
+		}
+		String[] timePatterns = { "HH:mm:ss", "HH:mm" };
+		for (String pattern : timePatterns) {
+			SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd " + pattern, Locale.US);
+			fmt.setLenient(false);
+			String today = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
+			ParsePosition pos = new ParsePosition(0);
+			String text = today + " " + s;
+			Date date = fmt.parse(text, pos);
+			if (date != null && pos.getIndex() == text.length())
+				return date.getTime();
+		}
+		throw new IllegalArgumentException("Invalid time: " + s);
+	}
+
 	private static void runExportCommand(String[] args) throws IOException {
 		if (args.length > 2) {
 			help();
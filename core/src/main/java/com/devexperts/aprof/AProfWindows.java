@@ -0,0 +1,83 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import com.devexperts.aprof.dump.*;
+
+/**
+ * Application API to measure allocations made during a specific phase (like a steady state of a load test)
+ * with named measurement windows. Windows may overlap. This class is available to application classes
+ * when it runs with <code>-javaagent:aprof.jar</code>.
+ */
+public class AProfWindows {
+	private AProfWindows() {} // do not create
+
+	/**
+	 * Starts (or restarts) measurement window with a given name.
+	 *
+	 * @throws IllegalStateException if aprof agent is not attached or too many windows are running.
+	 */
+	public static void start(String name) {
+		getDumper().startWindow(name);
+	}
+
+	/**
+	 * Stops measurement window with a given name.
+	 *
+	 * @return allocations made since window start; its time is the window duration.
+	 * @throws IllegalArgumentException if there is no running window with this name.
+	 * @throws IllegalStateException if aprof agent is not attached.
+	 */
+	public static SnapshotRoot stop(String name) {
+		return getDumper().stopWindow(name).getResult();
+	}
+
+	/**
+	 * Returns report of a stopped measurement window with allocation rates per second.
+	 *
+	 * @throws IllegalArgumentException if there is no stopped window with this name.
+	 * @throws IllegalStateException if aprof agent is not attached.
+	 */
+	public static String report(String name) {
+		MeasurementWindow window = getDumper().getWindow(name);
+		if (window == null || window.isRunning())
+			throw new IllegalArgumentException("Measurement window " + name + " is not stopped");
+		Configuration config = AProfAgent.getInstance().getConfig();
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		MeasurementWindow.printReport(out, name, window.getResult(), config.isSize(),
+			DumpFormat.TEXT.createFormatter(config));
+		out.flush();
+		return sw.toString();
+	}
+
+	private static Dumper getDumper() {
+		AProfAgent agent = AProfAgent.getInstance();
+		if (agent == null)
+			throw new IllegalStateException("aprof agent is not attached");
+		return agent.getDumper();
+	}
+}
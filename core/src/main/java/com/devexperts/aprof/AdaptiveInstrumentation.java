@@ -0,0 +1,158 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.instrument.Instrumentation;
+import java.util.*;
+
+import com.devexperts.aprof.dump.*;
+import com.devexperts.aprof.util.Log;
+
+/**
+ * De-instruments allocation locations that stay below {@link Configuration#getAdaptiveThreshold() adaptive.threshold}
+ * after {@link Configuration#getAdaptive() adaptive} dumps. Classes with such locations are redefined from their
+ * original class files, so that transformer counts their allocations for the whole class without location stack.
+ */
+public class AdaptiveInstrumentation extends Thread {
+	private static final long SLEEP_TIME = 1000;
+
+	private final Configuration config;
+	private final Instrumentation inst;
+	private final Dumper dumper;
+	private final ClassRedefiner redefiner;
+
+	private boolean fullInstrumentationRequested; // GuardedBy this
+
+	// accessed by this thread only
+	private boolean adapted;
+	private Set<String> negligibleClasses = Collections.emptySet();
+
+	public AdaptiveInstrumentation(Configuration config, Instrumentation inst, Dumper dumper) {
+		super("Aprof-Adaptive");
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		this.config = config;
+		this.inst = inst;
+		this.dumper = dumper;
+		this.redefiner = new ClassRedefiner(config, inst);
+	}
+
+	/**
+	 * Requests to re-enable full instrumentation of de-instrumented allocation locations in background.
+	 * Locations are not de-instrumented again afterwards.
+	 */
+	public synchronized void requestFullInstrumentation() {
+		fullInstrumentationRequested = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				boolean restore;
+				synchronized (this) {
+					if (!fullInstrumentationRequested)
+						wait(SLEEP_TIME);
+					restore = fullInstrumentationRequested;
+					fullInstrumentationRequested = false;
+				}
+				if (restore) {
+					adapted = true;
+					restoreFullInstrumentation();
+				} else if (!adapted && dumper.getSnapshotCount() >= config.getAdaptive()) {
+					adapted = true;
+					deinstrumentNegligibleLocations();
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.out.println(getName() + " was interrupted");
+		}
+	}
+
+	private void deinstrumentNegligibleLocations() {
+		SnapshotRoot ss = new SnapshotRoot();
+		dumper.copyTotalSnapshotTo(ss);
+		// location -> allocations of all data types
+		Map<String, SnapshotShallow> locations = new HashMap<String, SnapshotShallow>();
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep cs = ss.getChild(i);
+			for (int j = 0; j < cs.getUsed(); j++) {
+				SnapshotDeep ls = cs.getChild(j);
+				SnapshotShallow sum = locations.get(ls.getName());
+				if (sum == null)
+					locations.put(ls.getName(), sum = new SnapshotShallow());
+				sum.addShallow(ls);
+			}
+		}
+		Set<String> negligibleLocations = new HashSet<String>();
+		Set<String> classes = new HashSet<String>();
+		for (Map.Entry<String, SnapshotShallow> entry : locations.entrySet()) {
+			String location = entry.getKey();
+			if (entry.getValue().exceedsThreshold(ss, config.getAdaptiveThreshold()))
+				continue;
+			String locationClass = getLocationClass(location);
+			if (locationClass == null)
+				continue;
+			negligibleLocations.add(location);
+			classes.add(locationClass);
+		}
+		Log.out.println("De-instrumenting " + negligibleLocations.size() + " of " + locations.size() +
+			" allocation locations below " + config.getAdaptiveThreshold() + "% in " + classes.size() + " classes...");
+		AProfRegistry.setNegligibleLocations(negligibleLocations);
+		negligibleClasses = classes;
+		redefineClasses(classes);
+	}
+
+	private void restoreFullInstrumentation() {
+		Log.out.println("Restoring full instrumentation of " + AProfRegistry.getNegligibleLocationCount() +
+			" allocation locations in " + negligibleClasses.size() + " classes...");
+		AProfRegistry.setNegligibleLocations(Collections.<String>emptySet());
+		redefineClasses(negligibleClasses);
+		negligibleClasses = Collections.emptySet();
+	}
+
+	// returns null for locations that are not de-instrumented
+	private static String getLocationClass(String location) {
+		if (location.equals(SnapshotDeep.UNKNOWN) || location.equals(AProfRegistry.TRANSFORM_NAME) ||
+			AProfRegistry.isNegligibleClassLocation(location) ||
+			!location.equals(AProfRegistry.getLocationNameWithoutSuffix(location)))
+		{
+			return null; // reflection and clone invocations are always instrumented
+		}
+		int end = location.indexOf('(');
+		int pos = location.lastIndexOf('.', end < 0 ? location.length() : end);
+		if (pos <= 0)
+			return null;
+		String locationClass = location.substring(0, pos);
+		return AProfRegistry.isInternalLocation(locationClass) ? null : locationClass;
+	}
+
+	private void redefineClasses(Set<String> classes) {
+		List<Class<?>> redefined = new ArrayList<Class<?>>();
+		for (Class<?> clazz : inst.getAllLoadedClasses())
+			if (classes.contains(AProfRegistry.normalize(clazz.getName())))
+				redefined.add(clazz);
+		redefiner.redefineClasses(redefined);
+	}
+}
@@ -0,0 +1,121 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.devexperts.aprof.util.FastByteBuffer;
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Redefines already transformed classes from their original class files in batches, so that
+ * installed transformer transforms them again according to the current configuration.
+ * Batches that fail because of some of their classes are repeated for classes one by one.
+ */
+class ClassRedefiner {
+	private static final int BATCH = 100;
+
+	private final Configuration config;
+	private final Instrumentation inst;
+
+	ClassRedefiner(Configuration config, Instrumentation inst) {
+		this.config = config;
+		this.inst = inst;
+	}
+
+	void redefineClasses(Collection<Class<?>> classes) {
+		long start = System.currentTimeMillis();
+		List<ClassDefinition> cdl = new ArrayList<ClassDefinition>();
+		FastByteBuffer buf = new FastByteBuffer();
+		for (Class<?> clazz : classes) {
+			if (!inst.isModifiableClass(clazz))
+				continue;
+			// transformer gets original class file and transforms it according to current configuration
+			if (readClassFile(clazz, buf))
+				cdl.add(new ClassDefinition(clazz, buf.getBytes()));
+		}
+		for (int i = 0; i < cdl.size(); i += BATCH)
+			redefine(cdl.subList(i, Math.min(i + BATCH, cdl.size())));
+		Log.out.println("Redefined " + cdl.size() + " classes in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void redefine(List<ClassDefinition> cdl) {
+		try {
+			inst.redefineClasses(cdl.toArray(new ClassDefinition[cdl.size()]));
+		} catch (Throwable t) {
+			// one failed class fails the whole batch, so redefine them one by one
+			for (ClassDefinition cd : cdl) {
+				try {
+					inst.redefineClasses(cd);
+				} catch (Throwable e) {
+					logFailed("redefine", cd.getDefinitionClass(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retransforms the given batch of classes with retransformation capable transformers.
+	 */
+	void retransformClasses(List<Class<?>> classes) {
+		try {
+			inst.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+		} catch (Throwable t) {
+			// one failed class fails the whole batch, so retransform them one by one
+			for (Class<?> clazz : classes) {
+				try {
+					inst.retransformClasses(clazz);
+				} catch (Throwable e) {
+					logFailed("retransform", clazz, e);
+				}
+			}
+		}
+	}
+
+	private void logFailed(String action, Class<?> clazz, Throwable t) {
+		if (config.isVerboseRedefinition())
+			Log.out.println("Failed to " + action + " class " + clazz.getName() + ": " + t);
+	}
+
+	private static boolean readClassFile(Class<?> clazz, FastByteBuffer buf) {
+		buf.clear();
+		InputStream is = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class");
+		if (is == null)
+			return false;
+		try {
+			try {
+				buf.readFrom(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return !buf.isEmpty();
+	}
+}
@@ -31,6 +31,9 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
 
+import com.devexperts.aprof.dump.DumpFormat;
+import com.devexperts.aprof.util.NameMatcher;
+
 /**
  * @author Roman Elizarov
  */
@@ -40,6 +43,9 @@ public class Configuration {
 	public static final String COMMENT = "#";
 	private static final int SEC = 1000;
 	private static final int MIN = 60 * SEC;
+	private static final long KB = 1024;
+	private static final long MB = 1024 * KB;
+	private static final long GB = 1024 * MB;
 
 	private static final String XX_UNLOCK_DIAGNOSTIC_VM_OPTIONS = "-XX:+UnlockDiagnosticVMOptions";
 	private static final String XX_LOG_COMPILATION = "-XX:+LogCompilation";
@@ -56,16 +62,60 @@ public class Configuration {
 	@Description(value="Number of files to be used to write Aprof dumps. Zero means no limit on file number.")
 	private int filecount = 0;
 
+	@Description("Default format of Aprof dump file: text, jsonl (JSON lines), or collapsed (collapsed stacks for flame graphs).")
+	private String file_format = "text";
+
+	@SizeProp
+	@Description("Size of Aprof dump file after which it is rotated instead of being appended (0 -- no limit).")
+	private long file_size = 0;
+
+	@Description("Whether Aprof dump file shall be compressed with gzip (.gz extension is added when missing).")
+	private boolean file_gzip = false;
+
+	@Description("File for binary journal of snapshot deltas that are appended on every dump, empty to work without journal.")
+	private String journal_file = "";
+
 	@Description("Threshold for entries in Aprof dump in (%).")
-	private double threshold = 0.01;
+	private volatile double threshold = 0.01; // can be changed via JMX
 
 	@Description("Expand shown classes (even below threshold) up to specified level (0 -- do not expand).")
 	private int level = 2;
 
+	@Description("Number of threads to format Aprof dump (0 -- use all available processors).")
+	private int dump_threads = 0;
+
 	@TimeIntervalProp
 	@Description("Time period to write Aprof dump file.")
 	private long time = MIN;
 
+	@TimeIntervalProp
+	@Description("Time period after start during which loaded classes are not transformed, they are transformed in background after it (0 -- transform classes as they are loaded).")
+	private long defer = 0;
+
+	@Description("Number of classes that are retransformed at once when deferred classes are transformed in background.")
+	private int defer_batch = 100;
+
+	@Description("Number of dumps after which allocation locations below 'adaptive.threshold' are de-instrumented and counted per class (0 -- never).")
+	private int adaptive = 0;
+
+	@Description("Share of allocations in (%) below which allocation location is de-instrumented in adaptive mode.")
+	private double adaptive_threshold = 0.01;
+
+	@Description("Number of dumps after which methods that funnel allocations from many callers are discovered once and written to 'discover.file' (0 -- only on request).")
+	private int discover = 0;
+
+	@Description("File name to write discovered methods to in tracked locations configuration format (see track.file).")
+	private String discover_file = "aprof-track.config";
+
+	@Description("Share of allocations in (%) above which a method is discovered as a candidate to track.")
+	private double discover_threshold = 1;
+
+	@Description("Minimal number of distinct classes that shall invoke a method to discover it as a candidate to track.")
+	private int discover_callers = 3;
+
+	@Description("Start tracking of discovered methods at run-time.")
+	private boolean discover_apply = false;
+
 	@Description("Be verbose and log every class transformation.")
 	private boolean verbose = false;
 
@@ -93,6 +143,15 @@ public class Configuration {
 	@Description("Omit stack frames during class transformation for 1.6+ classes.")
 	private boolean noframes = false;
 
+	@Description("Keep original stack frames of 1.6+ classes instead of recomputing them, except for tracked constructors.")
+	private boolean keepframes = false;
+
+	@Description("Read class metadata for instrumentation directly from memory-mapped jar files on the class path (jar files stay mapped while their class loader is alive).")
+	private boolean jarindex = false;
+
+	@Description("Directory to cache analysis of tracked JDK classes between runs, it shall not be writable by other users (empty -- analyze them on every start).")
+	private String hierarchy_cache_dir = "";
+
 	@Description("Instrument allocations via reflection (Array.newInstance, Object.clone).")
 	private boolean reflect = true;
 
@@ -102,10 +161,13 @@ public class Configuration {
 	@Description("Keep track of allocated object sizes.")
 	private boolean size = true;
 
-	@Description("Comma-separated list of classes that shall not be transformed.")
+	@Description("Comma-separated list of classes that shall not be transformed (use package.* for all classes in a package).")
 	private String[] exclude = new String[0];
 
-	@Description("Comma-separated list of locations that shall include call signature.")
+	@Description("Comma-separated list of classes that shall only be transformed (use package.* for all classes in a package, empty -- all classes).")
+	private String[] include = new String[0];
+
+	@Description("Comma-separated list of locations that shall include call signature (use class.* for all methods).")
 	private String[] signature = new String[] { "java.lang.String.<init>" };
 
 	@Description("Comma-separated list of prefixes of class names that shall be aggregated (use for generated classes).")
@@ -124,6 +186,9 @@ public class Configuration {
 	@Description("Whether track.file replaces default configuration.")
 	private boolean track_file_replace = false;
 
+	@Description("Allow to change tracked methods at run-time and discover them on request (keeps index of all invoked methods).")
+	private boolean track_runtime = false;
+
 	@Description("Comma-separated list of array lengths which shall be shown in histograms.")
 	private int[] histogram = new int[0];
 
@@ -133,7 +198,27 @@ public class Configuration {
 	@Description("Port to listen on.")
 	private int port = 0;
 
+	@Description("Port to serve allocation metrics over HTTP in OpenMetrics format (0 -- do not serve).")
+	private int http_port = 0;
+
+	@Description("Register JMX MBean with allocation metrics and control operations.")
+	private boolean jmx = false;
+
+	@TimeIntervalProp
+	@Description("Minimal time period between snapshots taken to serve HTTP and JMX metrics requests.")
+	private long metrics_refresh = 10 * SEC;
+
+	@Description("Number of top data types and top allocation sites served as HTTP and JMX metrics.")
+	private int metrics_top = 100;
+
+	@Description("Maximal number of kept measurement windows, the oldest stopped ones are forgotten first.")
+	private int windows = 16;
+
 	private DetailsConfiguration detailsConfig;
+	private NameMatcher excludeMatcher;
+	private NameMatcher includeMatcher;
+	private NameMatcher signatureMatcher;
+	private NameMatcher aggregateMatcher;
 	private HistogramConfiguration histogramConfig;
 
 	public Configuration() throws IOException {
@@ -171,6 +256,10 @@ public class Configuration {
 		detailsConfig.loadFromFile(track_file);
 		detailsConfig.addClassMethods(track);
 		histogramConfig = new HistogramConfiguration(histogram, histogram_file);
+		excludeMatcher = NameMatcher.compile(exclude, false);
+		includeMatcher = NameMatcher.compile(include, false);
+		signatureMatcher = NameMatcher.compile(signature, false);
+		aggregateMatcher = NameMatcher.compile(aggregate, true);
 	}
 
 	public String getConfigFile() {
@@ -189,18 +278,88 @@ public class Configuration {
 		return filecount;
 	}
 
+	public String getFileFormat() {
+		return file_format;
+	}
+
+	public long getFileSize() {
+		return file_size;
+	}
+
+	public boolean isFileGzip() {
+		return file_gzip;
+	}
+
+	public String getJournalFile() {
+		return journal_file;
+	}
+
 	public double getThreshold() {
 		return threshold;
 	}
 
+	public void setThreshold(double threshold) {
+		if (threshold < 0 || threshold > 100)
+			throw new IllegalArgumentException("Threshold shall be in [0, 100] range: " + threshold);
+		this.threshold = threshold;
+	}
+
 	public int getLevel() {
 		return level;
 	}
 
+	public int getDumpThreads() {
+		return dump_threads;
+	}
+
 	public long getTime() {
 		return time;
 	}
 
+	public int getAdaptive() {
+		return adaptive;
+	}
+
+	public double getAdaptiveThreshold() {
+		return adaptive_threshold;
+	}
+
+	public int getDiscover() {
+		return discover;
+	}
+
+	public String getDiscoverFile() {
+		return discover_file;
+	}
+
+	public double getDiscoverThreshold() {
+		return discover_threshold;
+	}
+
+	public int getDiscoverCallers() {
+		return discover_callers;
+	}
+
+	public boolean isDiscoverApply() {
+		return discover_apply;
+	}
+
+	/**
+	 * Returns true when tracked methods may change at run-time, that is when 'track.runtime' is set
+	 * or methods to track are discovered periodically.
+	 */
+	public boolean isRuntimeTracking() {
+		return track_runtime || discover > 0;
+	}
+
+	public long getDefer() {
+		return defer;
+	}
+
+	public int getDeferBatch() {
+		return defer_batch;
+	}
+
 	public boolean isVerbose() {
 		return verbose;
 	}
@@ -237,6 +396,18 @@ public class Configuration {
 		return noframes;
 	}
 
+	public boolean isKeepFrames() {
+		return keepframes;
+	}
+
+	public boolean isJarIndex() {
+		return jarindex;
+	}
+
+	public String getHierarchyCacheDir() {
+		return hierarchy_cache_dir;
+	}
+
 	public boolean isReflect() {
 		return reflect;
 	}
@@ -253,18 +424,29 @@ public class Configuration {
 		return exclude;
 	}
 
+	public boolean isExcludedClass(String cname) {
+		return excludeMatcher.matches(cname);
+	}
+
+	public boolean isIncludedClass(String cname) {
+		return includeMatcher.isEmpty() || includeMatcher.matches(cname);
+	}
+
 	public boolean isSignatureLocation(CharSequence location) {
-		for (String s : signature) {
-			if (s.contentEquals(location))
-				return true;
-		}
-		return false;
+		return signatureMatcher.matches(location);
 	}
 
 	public String[] getAggregatedClasses() {
 		return aggregate;
 	}
 
+	/**
+	 * Returns matcher of aggregated class name prefixes.
+	 */
+	public NameMatcher getAggregatedClassesMatcher() {
+		return aggregateMatcher;
+	}
+
 	public int[] getHistogram(String className) {
 		return histogramConfig.getHistogram(className);
 	}
@@ -277,6 +459,26 @@ public class Configuration {
 		return port;
 	}
 
+	public int getHttpPort() {
+		return http_port;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	public long getMetricsRefresh() {
+		return metrics_refresh;
+	}
+
+	public int getMetricsTop() {
+		return metrics_top;
+	}
+
+	public int getWindows() {
+		return windows;
+	}
+
 	public Set<String> getTrackedClasses() {
 		return detailsConfig.getTrackedClasses();
 	}
@@ -285,6 +487,18 @@ public class Configuration {
 		return detailsConfig.isMethodTracked(className, methodName);
 	}
 
+	public String getTrackedLocationsDescription() {
+		return detailsConfig.getTrackedLocationsDescription();
+	}
+
+	/**
+	 * Adds and removes tracked methods at run-time.
+	 * @see TrackingReconfiguration
+	 */
+	public Map<String, Set<String>> updateTrackedMethods(String[] added, String[] removed) {
+		return detailsConfig.updateTrackedMethods(added, removed);
+	}
+
 	public void applyString(String string) {
 		if (string == null)
 			return;
@@ -333,6 +547,26 @@ public class Configuration {
 			out.println("Note: 'histogram' option does not work without 'size'.");
 			ok = false;
 		}
+		if (all || DumpFormat.forName(file_format) == null) {
+			out.println("Note: 'file.format' shall be one of " + DumpFormat.names() + ".");
+			ok = false;
+		}
+		if (all || defer > 0 && defer_batch <= 0) {
+			out.println("Note: 'defer.batch' shall be positive.");
+			ok = false;
+		}
+		if (all || adaptive > 0 && (time <= 0 || file.length() == 0 && journal_file.length() == 0)) {
+			out.println("Note: 'adaptive' does not work without periodic dumps to 'file' or 'journal.file' every 'time'.");
+			ok = false;
+		}
+		if (all || discover > 0 && (time <= 0 || file.length() == 0 && journal_file.length() == 0)) {
+			out.println("Note: 'discover' does not work without periodic dumps to 'file' or 'journal.file' every 'time'.");
+			ok = false;
+		}
+		if (all || discover > 0 && discover_file.length() == 0) {
+			out.println("Note: 'discover' requires 'discover.file'.");
+			ok = false;
+		}
 		if (all || verbose_redefinition && !verbose) {
 			out.println("Note: 'verbose.redefinition' does not work without 'verbose'.");
 			ok = false;
@@ -393,6 +627,8 @@ public class Configuration {
 			return sb.toString();
 		} else if (p.field.isAnnotationPresent(TimeIntervalProp.class)) {
 			return t2s((Long)value);
+		} else if (p.field.isAnnotationPresent(SizeProp.class)) {
+			return s2s((Long)value);
 		}
 		return String.valueOf(value);
 	}
@@ -403,6 +639,16 @@ public class Configuration {
 		return ((double)time / MIN) + "m";
 	}
 
+	private static String s2s(long size) {
+		if (size != 0 && size % GB == 0)
+			return (size / GB) + "g";
+		if (size != 0 && size % MB == 0)
+			return (size / MB) + "m";
+		if (size != 0 && size % KB == 0)
+			return (size / KB) + "k";
+		return String.valueOf(size);
+	}
+
 	private static Object parseValue(String value, Prop p) {
 		return parseValue(value, p, p.field.getType());
 	}
@@ -429,6 +675,17 @@ public class Configuration {
 			} else {
 				v = Long.valueOf(value);
 			}
+		} else if (p.field.isAnnotationPresent(SizeProp.class)) {
+			String lower = value.toLowerCase(Locale.US);
+			if (lower.endsWith("k")) {
+				v = Long.parseLong(lower.substring(0, lower.length() - 1)) * KB;
+			} else if (lower.endsWith("m")) {
+				v = Long.parseLong(lower.substring(0, lower.length() - 1)) * MB;
+			} else if (lower.endsWith("g")) {
+				v = Long.parseLong(lower.substring(0, lower.length() - 1)) * GB;
+			} else {
+				v = Long.valueOf(value);
+			}
 		}
 		return v;
 	}
@@ -455,6 +712,9 @@ public class Configuration {
 	@Retention(RetentionPolicy.RUNTIME)
 	private static @interface TimeIntervalProp {}
 
+	@Retention(RetentionPolicy.RUNTIME)
+	private static @interface SizeProp {}
+
 	public static class Prop {
 		private final String name;
 		private final String description;
@@ -0,0 +1,102 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Leaves classes that are loaded during {@link Configuration#getDefer() defer} time period after start
+ * unmodified and transforms them with a low-priority background thread via retransformation after it.
+ */
+class DeferredTransformer implements ClassFileTransformer {
+	private static final long BATCH_PAUSE = 100;
+
+	private final Configuration config;
+	private final Instrumentation inst;
+	private final ClassFileTransformer transformer;
+	private final ClassRedefiner redefiner;
+	private final long deferUntil;
+
+	private volatile boolean deferring = true;
+
+	DeferredTransformer(Configuration config, Instrumentation inst, ClassFileTransformer transformer, long start) {
+		this.config = config;
+		this.inst = inst;
+		this.transformer = transformer;
+		this.redefiner = new ClassRedefiner(config, inst);
+		this.deferUntil = start + config.getDefer();
+	}
+
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException
+	{
+		if (deferring)
+			return null; // will be retransformed in background
+		return transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+	}
+
+	void start() {
+		Thread t = new Thread("Aprof-DeferredTransform") {
+			@Override
+			public void run() {
+				try {
+					retransformDeferredClasses();
+				} catch (InterruptedException e) {
+					Log.out.println(getName() + " was interrupted");
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	private void retransformDeferredClasses() throws InterruptedException {
+		long sleep;
+		while ((sleep = deferUntil - System.currentTimeMillis()) > 0)
+			Thread.sleep(sleep);
+		// classes loaded from now on are transformed as usual, so none is missed between these two lines
+		deferring = false;
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (Class<?> clazz : inst.getAllLoadedClasses())
+			if (inst.isModifiableClass(clazz))
+				classes.add(clazz);
+		Log.out.println("Transforming " + classes.size() + " deferred classes in background...");
+		long start = System.currentTimeMillis();
+		int batch = config.getDeferBatch();
+		for (int i = 0; i < classes.size(); i += batch) {
+			if (i > 0)
+				Thread.sleep(BATCH_PAUSE);
+			redefiner.retransformClasses(classes.subList(i, Math.min(i + batch, classes.size())));
+		}
+		Log.out.println("Transformed " + classes.size() + " deferred classes in " +
+			(System.currentTimeMillis() - start) + " ms");
+	}
+}
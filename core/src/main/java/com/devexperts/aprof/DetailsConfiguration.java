@@ -27,7 +27,8 @@ import java.util.*;
 
 /**
  * This class keeps details configuration as read from file and configuration options.
- * It is not modified during run-time. Class hierarchy is analyzed and cached by transformer.
+ * It is modified during run-time only via {@link #updateTrackedMethods(String[], String[])} that replaces
+ * tracked locations with their updated copy. Class hierarchy is analyzed and cached by transformer.
  */
 class DetailsConfiguration {
 	public static String RESOURCE = "details.config";
@@ -36,8 +37,9 @@ class DetailsConfiguration {
 
 	/**
 	 * Maps class name to a set of tracked method names.
+	 * It is modified in place only while configuration is loaded and is replaced at run-time.
 	 */
-	private final Map<String, Set<String>> trackedLocations = new LinkedHashMap<String, Set<String>>();
+	private volatile Map<String, Set<String>> trackedLocations = new LinkedHashMap<String, Set<String>>();
 
 	public DetailsConfiguration() {}
 
@@ -52,14 +54,45 @@ class DetailsConfiguration {
 	}
 
 	public void addClassMethods(String[] locations) throws IOException {
-		for (String location : locations) {
-			int pos = location.lastIndexOf('.');
-			if (pos < 0)
-				throw new IllegalArgumentException("Location is <class>.<method>");
-			String className = location.substring(0, pos);
-			String methodName = location.substring(pos + 1);
-			getOrCreateClassMethods(className).add(methodName);
+		for (String location : locations)
+			getOrCreateClassMethods(trackedLocations, getClassName(location)).add(getMethodName(location));
+	}
+
+	/**
+	 * Adds and removes tracked methods at run-time. Removal of {@code <class>.*} stops tracking of all
+	 * methods of a class.
+	 * @param added locations to track in {@code <class>.<method>} format.
+	 * @param removed locations to stop tracking in {@code <class>.<method>} format.
+	 * @return class name to the set of its method names whose tracking has changed.
+	 * @throws IllegalArgumentException if location format is invalid.
+	 */
+	public synchronized Map<String, Set<String>> updateTrackedMethods(String[] added, String[] removed) {
+		Map<String, Set<String>> updated = new LinkedHashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : trackedLocations.entrySet())
+			updated.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		Map<String, Set<String>> changed = new LinkedHashMap<String, Set<String>>();
+		for (String location : removed) {
+			String className = getClassName(location);
+			String methodName = getMethodName(location);
+			Set<String> classMethods = updated.get(className);
+			if (classMethods == null)
+				continue;
+			if (methodName.equals(ANY_METHOD)) {
+				getOrCreateClassMethods(changed, className).addAll(classMethods);
+				classMethods.clear();
+			} else if (classMethods.remove(methodName))
+				getOrCreateClassMethods(changed, className).add(methodName);
+			if (classMethods.isEmpty())
+				updated.remove(className);
 		}
+		for (String location : added) {
+			String className = getClassName(location);
+			String methodName = getMethodName(location);
+			if (getOrCreateClassMethods(updated, className).add(methodName))
+				getOrCreateClassMethods(changed, className).add(methodName);
+		}
+		trackedLocations = updated;
+		return changed;
 	}
 
 	public Set<String> getTrackedClasses() {
@@ -72,6 +105,16 @@ class DetailsConfiguration {
 			(trackedMethods.contains(ANY_METHOD) || trackedMethods.contains(methodName));
 	}
 
+	/**
+	 * Returns description of tracked locations that does not depend on their order in configuration.
+	 */
+	public String getTrackedLocationsDescription() {
+		Map<String, Set<String>> sorted = new TreeMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : trackedLocations.entrySet())
+			sorted.put(entry.getKey(), new TreeSet<String>(entry.getValue()));
+		return sorted.toString();
+	}
+
 	private void loadFromStream(InputStream stream) throws IOException {
 		BufferedReader in = new BufferedReader(new InputStreamReader(stream));
 		try {
@@ -93,7 +136,7 @@ class DetailsConfiguration {
 					classMethods.add(line);
 				} else {
 					// non-indented line with a class-name
-					classMethods = getOrCreateClassMethods(line);
+					classMethods = getOrCreateClassMethods(trackedLocations, line);
 				}
 			}
 		} finally {
@@ -101,10 +144,21 @@ class DetailsConfiguration {
 		}
 	}
 
-	private Set<String> getOrCreateClassMethods(String className) {
-		Set<String> classMethods = trackedLocations.get(className);
+	private static String getClassName(String location) {
+		int pos = location.lastIndexOf('.');
+		if (pos < 0)
+			throw new IllegalArgumentException("Location is <class>.<method>");
+		return location.substring(0, pos);
+	}
+
+	private static String getMethodName(String location) {
+		return location.substring(location.lastIndexOf('.') + 1);
+	}
+
+	private static Set<String> getOrCreateClassMethods(Map<String, Set<String>> locations, String className) {
+		Set<String> classMethods = locations.get(className);
 		if (classMethods == null)
-			trackedLocations.put(className, classMethods = new HashSet<String>());
+			locations.put(className, classMethods = new HashSet<String>());
 		return classMethods;
 	}
 }
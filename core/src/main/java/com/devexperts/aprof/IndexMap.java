@@ -30,20 +30,35 @@ class IndexMap<T extends IndexMap> {
 
 	private static final long COUNT_OFFSET;
 	private static final long SIZE_OFFSET;
+	private static final long CHILDREN_OFFSET;
+	private static final long CHILDREN_COUNT_OFFSET;
+	private static final long RESIZING_OFFSET;
 	private static final int INT_ARRAY_BASE_OFFSET;
 	private static final int INT_ARRAY_INDEX_SCALE;
+	private static final int OBJECT_ARRAY_BASE_OFFSET;
+	private static final int OBJECT_ARRAY_INDEX_SCALE;
 
 	static {
 		try {
 			COUNT_OFFSET = UnsafeHolder.UNSAFE.objectFieldOffset(IndexMap.class.getDeclaredField("count"));
 			SIZE_OFFSET = UnsafeHolder.UNSAFE.objectFieldOffset(IndexMap.class.getDeclaredField("size"));
+			CHILDREN_OFFSET = UnsafeHolder.UNSAFE.objectFieldOffset(IndexMap.class.getDeclaredField("children"));
+			CHILDREN_COUNT_OFFSET = UnsafeHolder.UNSAFE.objectFieldOffset(IndexMap.class.getDeclaredField("childrenCount"));
+			RESIZING_OFFSET = UnsafeHolder.UNSAFE.objectFieldOffset(IndexMap.class.getDeclaredField("resizing"));
 			INT_ARRAY_BASE_OFFSET = UnsafeHolder.UNSAFE.arrayBaseOffset(int[].class);
 			INT_ARRAY_INDEX_SCALE = UnsafeHolder.UNSAFE.arrayIndexScale(int[].class);
+			OBJECT_ARRAY_BASE_OFFSET = UnsafeHolder.UNSAFE.arrayBaseOffset(IndexMap[].class);
+			OBJECT_ARRAY_INDEX_SCALE = UnsafeHolder.UNSAFE.arrayIndexScale(IndexMap[].class);
 		} catch (Throwable t) {
 			throw new ExceptionInInitializerError(t);
 		}
 	}
 
+	/**
+	 * Marks free slots of children array that is being copied into a larger one.
+	 */
+	private static final IndexMap MOVED = new IndexMap(-1, null);
+
 	/**
 	 * Location id in AProfRegistry locations.
 	 */
@@ -76,15 +91,22 @@ class IndexMap<T extends IndexMap> {
 	private final int[] histogramCounts;
 
 	/**
-	 * Number of children.
+	 * Number of children. It is reserved before the child is published, so it can be
+	 * transiently greater than the actual number of children.
 	 */
 	private volatile int childrenCount;
 
 	/**
 	 * Children hash-indexed map. <code>null</code> when there are no children.
+	 * New children are published and the map is replaced on resize with CAS.
 	 */
 	private T[] children;
 
+	/**
+	 * Non-zero while children map is being copied into a larger one.
+	 */
+	private volatile int resizing;
+
 	public IndexMap(int location, int[] histogram) {
 		this.location = location;
 		this.histogram = histogram;
@@ -117,6 +139,8 @@ class IndexMap<T extends IndexMap> {
 		while ((child = children[i]) != null) {
 			if (child.getLocation() == loc)
 				return child;
+			if (child == MOVED)
+				return null; // children are being copied -- go to slow path
 			if (i == 0)
 				i = children.length;
 			i--;
@@ -131,16 +155,119 @@ class IndexMap<T extends IndexMap> {
 		return result;
 	}
 
-	@SuppressWarnings({"SynchronizationOnLocalVariableOrMethodParameter", "unchecked"})
-	private synchronized IndexMap registerChildSlowPath(int loc) {
-		IndexMap result = getChildUnsync(loc);
-		if (result == null) {
-			result = new IndexMap(loc, getHistogram());
-			putNewChildUnsync((T)result);
-		}
+	@SuppressWarnings("unchecked")
+	private IndexMap registerChildSlowPath(int loc) {
+		IndexMap result = getChild(loc);
+		if (result == null)
+			result = putChildIfAbsent((T)new IndexMap(loc, getHistogram()));
 		return result;
 	}
 
+	// does not need external synchronization
+	@SuppressWarnings("unchecked")
+	public T getChild(int loc) {
+		while (true) {
+			T[] children = getChildrenVolatile();
+			if (children == null)
+				return null;
+			int i = loc & (children.length - 1); // always power of 2 in length
+			IndexMap child;
+			while ((child = getChildVolatile(children, i)) != null && child != MOVED) {
+				if (child.getLocation() == loc)
+					return (T)child;
+				if (i == 0)
+					i = children.length;
+				i--;
+			}
+			if (child == null)
+				return null;
+			waitResize(children);
+		}
+	}
+
+	/**
+	 * Publishes new child unless there is already a child with the same location.
+	 * Returns the child that is actually stored in this map.
+	 * Does not need external synchronization.
+	 */
+	@SuppressWarnings("unchecked")
+	public T putChildIfAbsent(T child) {
+		int loc = child.getLocation();
+		while (true) {
+			T[] children = getChildrenVolatile();
+			if (children == null) {
+				UnsafeHolder.UNSAFE.compareAndSwapObject(this, CHILDREN_OFFSET, null, new IndexMap[4]);
+				continue;
+			}
+			int i = loc & (children.length - 1); // always power of 2 in length
+			while (true) {
+				IndexMap cur = getChildVolatile(children, i);
+				if (cur == null) {
+					if (!reserveChild(children.length)) {
+						resizeChildren(children);
+						break;
+					}
+					if (UnsafeHolder.UNSAFE.compareAndSwapObject(children, childOffset(i), null, child))
+						return child;
+					// lost race for this slot -- release reservation and look at the winner
+					addChildrenCount(-1);
+					cur = getChildVolatile(children, i);
+				}
+				if (cur == MOVED) {
+					waitResize(children);
+					break;
+				}
+				if (cur.getLocation() == loc)
+					return (T)cur;
+				if (i == 0)
+					i = children.length;
+				i--;
+			}
+		}
+	}
+
+	private boolean reserveChild(int length) {
+		int val;
+		do {
+			val = childrenCount;
+			if (val >= length / 2) // 50% fill factor for speed
+				return false;
+		} while (!UnsafeHolder.UNSAFE.compareAndSwapInt(this, CHILDREN_COUNT_OFFSET, val, val + 1));
+		return true;
+	}
+
+	private void addChildrenCount(int delta) {
+		int val;
+		do {
+			val = childrenCount;
+		} while (!UnsafeHolder.UNSAFE.compareAndSwapInt(this, CHILDREN_COUNT_OFFSET, val, val + delta));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resizeChildren(T[] oldChildren) {
+		if (!UnsafeHolder.UNSAFE.compareAndSwapInt(this, RESIZING_OFFSET, 0, 1)) {
+			waitResize(oldChildren);
+			return;
+		}
+		if (getChildrenVolatile() == oldChildren) { // was not resized by somebody else before we've started
+			T[] newChildren = (T[])new IndexMap[oldChildren.length * 2];
+			for (int i = 0; i < oldChildren.length; i++) {
+				long offset = childOffset(i);
+				if (getChildVolatile(oldChildren, i) == null &&
+					UnsafeHolder.UNSAFE.compareAndSwapObject(oldChildren, offset, null, MOVED))
+					continue;
+				putInternal(newChildren, (T)getChildVolatile(oldChildren, i));
+			}
+			UnsafeHolder.UNSAFE.putObjectVolatile(this, CHILDREN_OFFSET, newChildren);
+		}
+		resizing = 0;
+	}
+
+	private void waitResize(T[] oldChildren) {
+		while (getChildrenVolatile() == oldChildren)
+			Thread.yield();
+	}
+
 	private void putInternal(T[] children, T child) {
 		int i = child.getLocation() & (children.length - 1); // always power of 2 in length
 		while (children[i] != null) {
@@ -151,33 +278,24 @@ class IndexMap<T extends IndexMap> {
 		children[i] = child;
 	}
 
-	// needs external synchronization on _this_ and external check that the child does not exist yet
 	@SuppressWarnings("unchecked")
-	public void putNewChildUnsync(T child) {
-		T[] children = this.children;
-		if (children == null)
-			this.children = children = (T[])new IndexMap[4];
-		else if (childrenCount >= children.length / 2)
-			this.children = children = rehashChildren(children);
-		putInternal(children, child);
-		childrenCount++;
+	private T[] getChildrenVolatile() {
+		return (T[])UnsafeHolder.UNSAFE.getObjectVolatile(this, CHILDREN_OFFSET);
 	}
 
-	@SuppressWarnings("unchecked")
-	private T[] rehashChildren(T[] oldChildren) {
-		int n = oldChildren.length;
-		T[] newChildren = (T[])new IndexMap[n * 2];
-		for (T child : oldChildren)
-			if (child != null)
-				putInternal(newChildren, child);
-		return newChildren;
+	private static IndexMap getChildVolatile(IndexMap[] children, int i) {
+		return (IndexMap)UnsafeHolder.UNSAFE.getObjectVolatile(children, childOffset(i));
+	}
+
+	private static long childOffset(int i) {
+		return OBJECT_ARRAY_BASE_OFFSET + (long)i * OBJECT_ARRAY_INDEX_SCALE;
 	}
 
 	public void visitChildren(IndexMapVisitor visitor) {
 		IndexMap[] children = this.children; // atomic read (non-volatile)
 		if (children != null)
 			for (IndexMap child : children)
-				if (child != null)
+				if (child != null && child != MOVED)
 					visitor.acceptChild(child);
 	}
 
@@ -275,7 +393,7 @@ class IndexMap<T extends IndexMap> {
 		IndexMap[] children = this.children; // atomic read (non-volatile)
 		if (children != null)
 			for (IndexMap child : children)
-				if (child != null && child.isOverflowThreshold())
+				if (child != null && child != MOVED && child.isOverflowThreshold())
 					return true;
 		return false;
 	}
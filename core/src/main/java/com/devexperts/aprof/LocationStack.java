@@ -32,6 +32,7 @@ public final class LocationStack {
 	int invoked_method_loc = AProfRegistry.UNKNOWN_LOC;
 	int invoked_method_count = 0;
 	int transform_loc = AProfRegistry.UNKNOWN_LOC; // only used when AProfRegistry.TRACK_TRANSFORM_DETAILS is true
+	ProbeRecorder probe; // non-null only while AProfProbe measures this thread
 
 	private static final ThreadLocal<LocationStack> LOCATION_STACK = new LocationStackThreadLocal();
 
@@ -0,0 +1,118 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.dump.SnapshotDeep;
+import com.devexperts.aprof.dump.SnapshotRoot;
+
+/**
+ * Accumulates allocations of a single thread while {@link AProfProbe} measures it.
+ * It is confined to the measured thread and is used from inside of {@link AProfOps}.
+ */
+@Internal
+final class ProbeRecorder {
+	private static final int INITIAL_CAPACITY = 16; // must be power of 2
+
+	private final ProbeRecorder parent;
+	private Site[] sites = new Site[INITIAL_CAPACITY];
+	private int siteCount;
+
+	ProbeRecorder(ProbeRecorder parent) {
+		this.parent = parent;
+	}
+
+	ProbeRecorder getParent() {
+		return parent;
+	}
+
+	void record(LocationStack stack, IndexMap map, RootIndexMap rootIndex, long size) {
+		Site site = findOrCreateSite(stack, map, rootIndex);
+		site.count++;
+		site.size += size;
+		if (parent != null)
+			parent.record(stack, map, rootIndex, size);
+	}
+
+	private Site findOrCreateSite(LocationStack stack, IndexMap map, RootIndexMap rootIndex) {
+		int mask = sites.length - 1;
+		int i = System.identityHashCode(map) & mask;
+		Site site;
+		while ((site = sites[i]) != null) {
+			if (site.map == map)
+				return site;
+			i = (i + 1) & mask;
+		}
+		site = new Site(map, rootIndex.getDatatypeInfo(), AProfRegistry.getDetailedPath(stack, rootIndex));
+		sites[i] = site;
+		if (++siteCount * 2 > sites.length)
+			rehash();
+		return site;
+	}
+
+	private void rehash() {
+		Site[] oldSites = sites;
+		sites = new Site[oldSites.length * 2];
+		int mask = sites.length - 1;
+		for (Site site : oldSites) {
+			if (site == null)
+				continue;
+			int i = System.identityHashCode(site.map) & mask;
+			while (sites[i] != null)
+				i = (i + 1) & mask;
+			sites[i] = site;
+		}
+	}
+
+	SnapshotRoot toSnapshot() {
+		SnapshotRoot result = new SnapshotRoot();
+		for (Site site : sites) {
+			if (site == null)
+				continue;
+			// build a separate tree for each site and merge them, so that addDeep takes care
+			// of sites that end at a location with more detailed sites below it
+			SnapshotRoot ss = new SnapshotRoot();
+			DatatypeInfo datatypeInfo = site.datatypeInfo;
+			SnapshotDeep node = ss.getOrCreateChild(datatypeInfo.getName(), datatypeInfo.isArray(), 0);
+			for (String name : site.path)
+				node = node.getOrCreateChild(name);
+			node.add(site.count, datatypeInfo.isArray() ? site.size : site.count * datatypeInfo.getSize());
+			ss.updateSnapshotSumDeep();
+			result.addDeep(ss);
+		}
+		return result;
+	}
+
+	private static class Site {
+		final IndexMap map;
+		final DatatypeInfo datatypeInfo;
+		final String[] path;
+		long count;
+		long size; // for arrays only
+
+		Site(IndexMap map, DatatypeInfo datatypeInfo, String[] path) {
+			this.map = map;
+			this.datatypeInfo = datatypeInfo;
+			this.path = path;
+		}
+	}
+}
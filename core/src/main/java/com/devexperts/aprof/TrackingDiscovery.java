@@ -0,0 +1,243 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.*;
+import java.util.*;
+
+import com.devexperts.aprof.dump.*;
+import com.devexperts.aprof.util.FastFmtUtil;
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Discovers methods that funnel allocations, that is methods that allocate more than
+ * {@link Configuration#getDiscoverThreshold() discover.threshold} into a few data types and are invoked from at least
+ * {@link Configuration#getDiscoverCallers() discover.callers} classes, so that tracking them attributes their
+ * allocations to their callers. Discovered methods are written to {@link Configuration#getDiscoverFile() discover.file}
+ * in tracked locations configuration format and their tracking is started at run-time when
+ * {@link Configuration#isDiscoverApply() discover.apply} is set.
+ */
+public class TrackingDiscovery extends Thread {
+	private static final long SLEEP_TIME = 1000;
+	private static final String APROF_PACKAGE = "com.devexperts.aprof.";
+
+	static final int MAX_DATATYPES = 3;
+	static final int MAX_METHODS = 50;
+
+	private final Configuration config;
+	private final Dumper dumper;
+	private final TrackingTransformer transformer;
+	private final TrackingReconfiguration trackingReconfiguration;
+
+	private boolean discoveryRequested; // GuardedBy this
+
+	// accessed by this thread only
+	private boolean discovered;
+
+	public TrackingDiscovery(Configuration config, Dumper dumper, TrackingTransformer transformer,
+		TrackingReconfiguration trackingReconfiguration)
+	{
+		super("Aprof-TrackingDiscovery");
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		this.config = config;
+		this.dumper = dumper;
+		this.transformer = transformer;
+		this.trackingReconfiguration = trackingReconfiguration;
+	}
+
+	/**
+	 * Requests to discover methods to track from allocations collected so far in background.
+	 * This thread is started on the first request unless it is already started for automatic discovery.
+	 */
+	public synchronized void requestDiscovery() {
+		discoveryRequested = true;
+		if (getState() == State.NEW)
+			start();
+		notifyAll();
+	}
+
+	/**
+	 * Returns number of distinct classes that invoke a given method in a way that tracking of this method affects.
+	 */
+	public int getCallerCount(String className, String methodName) {
+		return transformer.getCallerCount(className, methodName);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this) {
+					// checks number of dumps periodically only while automatic discovery is pending
+					while (!discoveryRequested && !isAutomaticDiscoveryDue())
+						wait(discovered || config.getDiscover() <= 0 ? 0 : SLEEP_TIME);
+					discoveryRequested = false;
+				}
+				discovered = true;
+				discover();
+			}
+		} catch (InterruptedException e) {
+			Log.out.println(getName() + " was interrupted");
+		}
+	}
+
+	// automatic discovery is done just once after 'discover' dumps
+	private boolean isAutomaticDiscoveryDue() {
+		return !discovered && config.getDiscover() > 0 && dumper.getSnapshotCount() >= config.getDiscover();
+	}
+
+	private void discover() {
+		SnapshotRoot ss = new SnapshotRoot();
+		dumper.copyTotalSnapshotTo(ss);
+		List<Candidate> candidates = findCandidates(ss);
+		String fileName = config.getDiscoverFile();
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(fileName));
+			try {
+				writeCandidates(out, candidates, ss);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.out.println("Failed to write discovered methods to " + fileName + ": " + e);
+			return;
+		}
+		Log.out.println("Discovered " + candidates.size() + " methods to track, written to " + fileName);
+		if (config.isDiscoverApply() && !candidates.isEmpty()) {
+			String[] locations = new String[candidates.size()];
+			for (int i = 0; i < locations.length; i++)
+				locations[i] = candidates.get(i).className + "." + candidates.get(i).methodName;
+			trackingReconfiguration.requestUpdate(locations, new String[0]);
+		}
+	}
+
+	/**
+	 * Returns methods that are worth tracking in descending order of allocated bytes.
+	 */
+	List<Candidate> findCandidates(SnapshotRoot ss) {
+		// class.method -> candidate with allocations of all data types in all its overloads
+		Map<String, Candidate> methods = new HashMap<String, Candidate>();
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep cs = ss.getChild(i);
+			for (int j = 0; j < cs.getUsed(); j++) {
+				SnapshotDeep ls = cs.getChild(j);
+				String method = getTrackableMethod(ls.getName());
+				if (method == null)
+					continue;
+				// allocations that transformer itself makes in this method are not funnelled from callers
+				SnapshotShallow allocations = new SnapshotShallow();
+				allocations.addShallow(ls);
+				int k = ls.findChild(AProfRegistry.TRANSFORM_NAME);
+				if (k < ls.getUsed())
+					allocations.subShallow(ls.getChild(k));
+				if (allocations.isEmpty())
+					continue;
+				Candidate candidate = methods.get(method);
+				if (candidate == null) {
+					int pos = method.lastIndexOf('.');
+					methods.put(method, candidate = new Candidate(method.substring(0, pos), method.substring(pos + 1)));
+				}
+				candidate.allocations.addShallow(allocations);
+				candidate.datatypes.add(cs.getName());
+			}
+		}
+		List<Candidate> result = new ArrayList<Candidate>();
+		for (Candidate candidate : methods.values()) {
+			if (candidate.datatypes.size() > MAX_DATATYPES ||
+				!candidate.allocations.exceedsThreshold(ss, config.getDiscoverThreshold()))
+			{
+				continue;
+			}
+			candidate.callers = getCallerCount(candidate.className, candidate.methodName);
+			if (candidate.callers >= config.getDiscoverCallers())
+				result.add(candidate);
+		}
+		Collections.sort(result);
+		return result.size() > MAX_METHODS ? result.subList(0, MAX_METHODS) : result;
+	}
+
+	// returns class.method without signature or null for locations that cannot be tracked
+	private String getTrackableMethod(String location) {
+		if (location.equals(SnapshotDeep.UNKNOWN) || location.equals(AProfRegistry.TRANSFORM_NAME) ||
+			AProfRegistry.isNegligibleClassLocation(location) ||
+			!location.equals(AProfRegistry.getLocationNameWithoutSuffix(location)))
+		{
+			return null;
+		}
+		int end = location.indexOf('(');
+		String method = end < 0 ? location : location.substring(0, end);
+		int pos = method.lastIndexOf('.');
+		if (pos <= 0)
+			return null;
+		String className = method.substring(0, pos);
+		if (className.startsWith(APROF_PACKAGE) || AProfRegistry.isInternalLocation(className) ||
+			config.isMethodTracked(className, method.substring(pos + 1)))
+		{
+			return null; // aprof's own allocations are not funnelled from application
+		}
+		return method;
+	}
+
+	private static void writeCandidates(PrintWriter out, List<Candidate> candidates, SnapshotRoot ss) {
+		out.println(Configuration.COMMENT + " Methods that funnel allocations discovered by aprof, use it as track.file");
+		// group methods by class, but keep classes in the order of their top method
+		Map<String, List<Candidate>> classes = new LinkedHashMap<String, List<Candidate>>();
+		for (Candidate candidate : candidates) {
+			List<Candidate> methods = classes.get(candidate.className);
+			if (methods == null)
+				classes.put(candidate.className, methods = new ArrayList<Candidate>());
+			methods.add(candidate);
+		}
+		for (Map.Entry<String, List<Candidate>> entry : classes.entrySet()) {
+			out.println(entry.getKey());
+			for (Candidate candidate : entry.getValue()) {
+				out.print("\t" + Configuration.COMMENT + " ");
+				FastFmtUtil.printNumPercent(out, candidate.allocations.getSize(), ss.getSize());
+				out.print(" bytes of " + candidate.datatypes + " invoked from " + candidate.callers + " classes");
+				out.println();
+				out.println("\t" + candidate.methodName);
+			}
+		}
+	}
+
+	static class Candidate implements Comparable<Candidate> {
+		final String className;
+		final String methodName;
+		final SnapshotShallow allocations = new SnapshotShallow();
+		final Set<String> datatypes = new TreeSet<String>();
+		int callers;
+
+		Candidate(String className, String methodName) {
+			this.className = className;
+			this.methodName = methodName;
+		}
+
+		// larger allocations first
+		public int compareTo(Candidate o) {
+			if (allocations.getSize() != o.allocations.getSize())
+				return allocations.getSize() > o.allocations.getSize() ? -1 : 1;
+			int i = className.compareTo(o.className);
+			return i != 0 ? i : methodName.compareTo(o.methodName);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.lang.instrument.Instrumentation;
+import java.util.*;
+
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Adds and removes tracked methods at run-time. Transformer recomputes the affected part of the class hierarchy
+ * and reports classes whose call sites of tracked methods change. Only those classes are redefined
+ * from their original class files in background.
+ */
+public class TrackingReconfiguration extends Thread {
+	private final Configuration config;
+	private final TrackingTransformer transformer;
+	private final ClassRedefiner redefiner;
+	private final Instrumentation inst;
+
+	private final List<Request> requests = new ArrayList<Request>(); // GuardedBy this
+	private boolean updating; // GuardedBy this
+
+	public TrackingReconfiguration(Configuration config, Instrumentation inst, TrackingTransformer transformer) {
+		super("Aprof-TrackingReconfiguration");
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		this.config = config;
+		this.inst = inst;
+		this.transformer = transformer;
+		this.redefiner = new ClassRedefiner(config, inst);
+	}
+
+	/**
+	 * Requests to add and remove tracked methods in background.
+	 * @param added locations to track in {@code <class>.<method>} format.
+	 * @param removed locations to stop tracking in {@code <class>.<method>} format, use {@code <class>.*}
+	 *     to stop tracking of all methods of a class.
+	 * @throws IllegalArgumentException if location format is invalid.
+	 */
+	public synchronized void requestUpdate(String[] added, String[] removed) {
+		checkLocations(added);
+		checkLocations(removed);
+		requests.add(new Request(added, removed));
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all requested updates are applied.
+	 */
+	public synchronized void waitUpdated() throws InterruptedException {
+		while (!requests.isEmpty() || updating)
+			wait();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Request request;
+				synchronized (this) {
+					while (requests.isEmpty())
+						wait();
+					request = requests.remove(0);
+					updating = true;
+				}
+				try {
+					update(request.added, request.removed);
+				} finally {
+					synchronized (this) {
+						updating = false;
+						notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.out.println(getName() + " was interrupted");
+		}
+	}
+
+	private void update(String[] added, String[] removed) {
+		long start = System.currentTimeMillis();
+		Map<String, Set<String>> changedMethods = config.updateTrackedMethods(added, removed);
+		if (changedMethods.isEmpty()) {
+			Log.out.println("Tracked methods are not changed");
+			return;
+		}
+		Log.out.println("Changing tracking of methods " + changedMethods + "...");
+		Set<String> classNames = transformer.updateTrackedMethods(changedMethods);
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (Class<?> clazz : inst.getAllLoadedClasses())
+			if (classNames.contains(clazz.getName()))
+				classes.add(clazz);
+		redefiner.redefineClasses(classes);
+		Log.out.println("Changed tracking of methods affecting " + classNames.size() + " classes in " +
+			(System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static void checkLocations(String[] locations) {
+		for (String location : locations)
+			if (location.lastIndexOf('.') <= 0)
+				throw new IllegalArgumentException("Location is <class>.<method>: " + location);
+	}
+
+	private static class Request {
+		final String[] added;
+		final String[] removed;
+
+		Request(String[] added, String[] removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+	}
+}
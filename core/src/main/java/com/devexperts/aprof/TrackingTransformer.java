@@ -0,0 +1,44 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.lang.instrument.ClassFileTransformer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Transformer that supports changes of tracked methods at run-time.
+ */
+public interface TrackingTransformer extends ClassFileTransformer {
+	/**
+	 * Recomputes cached class hierarchy information after tracked methods were changed in configuration.
+	 * @param changedMethods class name to the set of its method names whose tracking has changed.
+	 * @return names of loaded classes that shall be transformed again to reflect the change.
+	 */
+	public Set<String> updateTrackedMethods(Map<String, Set<String>> changedMethods);
+
+	/**
+	 * Returns number of distinct transformed classes that invoke a method. Virtual methods can be invoked
+	 * through super classes and interfaces, so their invocations through them are counted, too.
+	 */
+	public int getCallerCount(String className, String methodName);
+}
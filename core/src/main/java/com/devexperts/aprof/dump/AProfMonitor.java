@@ -0,0 +1,206 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+import com.devexperts.aprof.AProfAgent;
+import com.devexperts.aprof.AProfRegistry;
+import com.devexperts.aprof.AdaptiveInstrumentation;
+import com.devexperts.aprof.TrackingDiscovery;
+import com.devexperts.aprof.TrackingReconfiguration;
+import com.devexperts.aprof.Configuration;
+
+public class AProfMonitor implements AProfMonitorMBean {
+	public static final String OBJECT_NAME = "com.devexperts.aprof:type=AProfMonitor";
+
+	private static final String[] SITE_ITEMS = {"type", "location", "objects", "bytes"};
+
+	private final Configuration config;
+	private final Dumper dumper;
+	private final SnapshotCache cache;
+	private final CompositeType siteType;
+	private SnapshotFormatter reportFormatter;
+
+	public AProfMonitor(Configuration config, Dumper dumper, SnapshotCache cache) throws OpenDataException {
+		this.config = config;
+		this.dumper = dumper;
+		this.cache = cache;
+		this.siteType = new CompositeType("AllocationSite", "Allocation site", SITE_ITEMS,
+			new String[] {"Allocated data type", "Allocation location", "Objects allocated", "Bytes allocated"},
+			new OpenType[] {SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG});
+	}
+
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	public long getAllocatedBytes() {
+		return cache.getSnapshot().getSize();
+	}
+
+	public long getAllocatedObjects() {
+		return cache.getSnapshot().getTotalCount();
+	}
+
+	public long getWindowTime() {
+		return cache.getSnapshot().getTime();
+	}
+
+	public CompositeData[] getTopSites() {
+		List<AllocationSite> sites = AllocationSite.selectTop(cache.getSnapshot(), config.getMetricsTop(), true, config.isSize());
+		CompositeData[] result = new CompositeData[sites.size()];
+		try {
+			for (int i = 0; i < result.length; i++) {
+				AllocationSite site = sites.get(i);
+				result[i] = new CompositeDataSupport(siteType, SITE_ITEMS,
+					new Object[] {site.getType(), site.getLocation(), site.getCount(), site.getSize()});
+			}
+		} catch (OpenDataException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	public int getLocationCount() {
+		return AProfRegistry.getLocationCount();
+	}
+
+	public int getTransformedClassCount() {
+		return AProfRegistry.getCount();
+	}
+
+	public long getTransformTime() {
+		return AProfRegistry.getTime();
+	}
+
+	public int getFrameRecomputeCount() {
+		return AProfRegistry.getFrameRecomputeCount();
+	}
+
+	public int getClassLoaderCount() {
+		return AProfRegistry.getClassLoaderCount();
+	}
+
+	public int getClassInfoContendedCount() {
+		return AProfRegistry.getClassInfoContendedCount();
+	}
+
+	public int getClassInfoWaitCount() {
+		return AProfRegistry.getClassInfoWaitCount();
+	}
+
+	public int getNegligibleLocationCount() {
+		return AProfRegistry.getNegligibleLocationCount();
+	}
+
+	public double getThreshold() {
+		return config.getThreshold();
+	}
+
+	public void setThreshold(double threshold) {
+		config.setThreshold(threshold);
+	}
+
+	public void dumpNow() {
+		dumper.makeDump(false);
+	}
+
+	public void dumpNow(String format) {
+		DumpFormat dumpFormat = DumpFormat.forName(format);
+		if (dumpFormat == null)
+			throw new IllegalArgumentException("Format shall be one of " + DumpFormat.names());
+		dumper.makeDump(false, dumpFormat);
+	}
+
+	public void resetWindow() {
+		dumper.resetTotal();
+		cache.invalidate();
+	}
+
+	public void restoreFullInstrumentation() {
+		AProfAgent agent = AProfAgent.getInstance();
+		AdaptiveInstrumentation adaptiveInstrumentation = agent == null ? null : agent.getAdaptiveInstrumentation();
+		if (adaptiveInstrumentation == null)
+			throw new IllegalStateException("Adaptive instrumentation is not enabled");
+		adaptiveInstrumentation.requestFullInstrumentation();
+	}
+
+	public String getTrackedMethods() {
+		return config.getTrackedLocationsDescription();
+	}
+
+	public void addTrackedMethods(String locations) {
+		getTrackingReconfiguration().requestUpdate(locations.split(","), new String[0]);
+	}
+
+	public void removeTrackedMethods(String locations) {
+		getTrackingReconfiguration().requestUpdate(new String[0], locations.split(","));
+	}
+
+	public void discoverTrackedMethods() {
+		AProfAgent agent = AProfAgent.getInstance();
+		TrackingDiscovery trackingDiscovery = agent == null ? null : agent.getTrackingDiscovery();
+		if (trackingDiscovery == null)
+			throw new IllegalStateException("Discovery of methods to track requires 'track.runtime' option");
+		trackingDiscovery.requestDiscovery();
+	}
+
+	private static TrackingReconfiguration getTrackingReconfiguration() {
+		AProfAgent agent = AProfAgent.getInstance();
+		TrackingReconfiguration trackingReconfiguration = agent == null ? null : agent.getTrackingReconfiguration();
+		if (trackingReconfiguration == null)
+			throw new IllegalStateException("Tracked methods cannot be changed at run-time without 'track.runtime' option");
+		return trackingReconfiguration;
+	}
+
+	public void startWindow(String name) {
+		dumper.startWindow(name);
+	}
+
+	public String stopWindow(String name) {
+		return formatReport(dumper.stopWindow(name));
+	}
+
+	public String getWindowReport(String name) {
+		MeasurementWindow window = dumper.getWindow(name);
+		if (window == null || window.isRunning())
+			throw new IllegalArgumentException("Measurement window " + name + " is not stopped");
+		return formatReport(window);
+	}
+
+	private synchronized String formatReport(MeasurementWindow window) {
+		if (reportFormatter == null)
+			reportFormatter = DumpFormat.TEXT.createFormatter(config);
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		MeasurementWindow.printReport(out, window.getName(), window.getResult(), config.isSize(), reportFormatter);
+		out.flush();
+		return sw.toString();
+	}
+}
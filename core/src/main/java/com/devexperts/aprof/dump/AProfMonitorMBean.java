@@ -0,0 +1,146 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Management interface of aprof agent. Allocation metrics are read from {@link SnapshotCache}.
+ */
+public interface AProfMonitorMBean {
+	/**
+	 * Returns total bytes allocated in the current measurement window.
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * Returns total objects allocated in the current measurement window.
+	 */
+	public long getAllocatedObjects();
+
+	/**
+	 * Returns duration of the current measurement window in milliseconds.
+	 */
+	public long getWindowTime();
+
+	/**
+	 * Returns top allocation sites with <code>type</code>, <code>location</code>,
+	 * <code>objects</code> and <code>bytes</code> items.
+	 */
+	public CompositeData[] getTopSites();
+
+	/**
+	 * Returns number of registered allocation locations.
+	 */
+	public int getLocationCount();
+
+	public int getTransformedClassCount();
+
+	public long getTransformTime();
+
+	/**
+	 * Returns number of transformed methods whose stack map frames were recomputed in keepframes mode.
+	 */
+	public int getFrameRecomputeCount();
+
+	/**
+	 * Returns number of class loaders that transformer has cached class info for.
+	 */
+	public int getClassLoaderCount();
+
+	/**
+	 * Returns number of times transformer waited for a lock of class info cache held by another thread.
+	 */
+	public int getClassInfoContendedCount();
+
+	/**
+	 * Returns number of times transformer waited for another thread to initialize class info of a class loader.
+	 */
+	public int getClassInfoWaitCount();
+
+	/**
+	 * Returns number of allocation locations that are de-instrumented by adaptive instrumentation.
+	 */
+	public int getNegligibleLocationCount();
+
+	public double getThreshold();
+
+	public void setThreshold(double threshold);
+
+	/**
+	 * Writes dump file now in {@link com.devexperts.aprof.Configuration#getFileFormat() file.format}.
+	 */
+	public void dumpNow();
+
+	/**
+	 * Writes dump file now in a given format (text, jsonl or collapsed).
+	 */
+	public void dumpNow(String format);
+
+	/**
+	 * Discards allocations collected so far and starts new measurement window.
+	 */
+	public void resetWindow();
+
+	/**
+	 * Re-enables full instrumentation of allocation locations that were de-instrumented by adaptive instrumentation.
+	 */
+	public void restoreFullInstrumentation();
+
+	/**
+	 * Returns description of currently tracked methods.
+	 */
+	public String getTrackedMethods();
+
+	/**
+	 * Starts tracking of comma-separated list of methods in &lt;class&gt;.&lt;method&gt; format in background.
+	 */
+	public void addTrackedMethods(String locations);
+
+	/**
+	 * Stops tracking of comma-separated list of methods in &lt;class&gt;.&lt;method&gt; format in background.
+	 * Use &lt;class&gt;.* to stop tracking of all methods of a class.
+	 */
+	public void removeTrackedMethods(String locations);
+
+	/**
+	 * Discovers methods that funnel allocations from many callers in background and writes them to discover.file.
+	 */
+	public void discoverTrackedMethods();
+
+	/**
+	 * Starts (or restarts) named measurement window.
+	 * Fails when {@link com.devexperts.aprof.Configuration#getWindows() too many} windows are running.
+	 */
+	public void startWindow(String name);
+
+	/**
+	 * Stops named measurement window and returns its report with allocation rates.
+	 */
+	public String stopWindow(String name);
+
+	/**
+	 * Returns report of the stopped measurement window.
+	 */
+	public String getWindowReport(String name);
+}
@@ -0,0 +1,104 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.*;
+
+/**
+ * Data type or allocation site (data type and its allocation location) selected among top allocations
+ * for monitoring via HTTP and JMX.
+ */
+public class AllocationSite {
+	private final String type;
+	private final SnapshotDeep ss;
+	private final boolean site;
+
+	AllocationSite(String type, SnapshotDeep ss, boolean site) {
+		this.type = type;
+		this.ss = ss;
+		this.site = site;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Returns allocation location or {@code null} for data type.
+	 */
+	public String getLocation() {
+		return site ? ss.getName() : null;
+	}
+
+	public long getCount() {
+		return ss.getTotalCount();
+	}
+
+	public long getSize() {
+		return ss.getSize();
+	}
+
+	/**
+	 * Selects top data types (for {@code sites == false}) or top allocation sites (for {@code sites == true})
+	 * by size (or by count when {@code size == false}) with a bounded heap. The largest one goes first.
+	 */
+	public static List<AllocationSite> selectTop(SnapshotRoot ss, int top, boolean sites, final boolean size) {
+		if (top <= 0)
+			return Collections.emptyList();
+		Comparator<AllocationSite> comparator = new Comparator<AllocationSite>() {
+			public int compare(AllocationSite o1, AllocationSite o2) {
+				long v1 = size ? o1.getSize() : o1.getCount();
+				long v2 = size ? o2.getSize() : o2.getCount();
+				return v1 < v2 ? -1 : v1 > v2 ? 1 : o2.ss.getName().compareTo(o1.ss.getName());
+			}
+		};
+		PriorityQueue<AllocationSite> heap = new PriorityQueue<AllocationSite>(top, comparator);
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep cs = ss.getChild(i);
+			if (cs.isEmpty())
+				continue;
+			if (!sites)
+				offer(heap, top, comparator, new AllocationSite(cs.getName(), cs, false));
+			else
+				for (int j = 0; j < cs.getUsed(); j++) {
+					SnapshotDeep location = cs.getChild(j);
+					if (!location.isEmpty())
+						offer(heap, top, comparator, new AllocationSite(cs.getName(), location, true));
+				}
+		}
+		List<AllocationSite> result = new ArrayList<AllocationSite>(heap.size());
+		while (!heap.isEmpty())
+			result.add(heap.poll());
+		Collections.reverse(result);
+		return result;
+	}
+
+	private static void offer(PriorityQueue<AllocationSite> heap, int top, Comparator<AllocationSite> comparator, AllocationSite site) {
+		if (heap.size() < top)
+			heap.add(site);
+		else if (comparator.compare(site, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(site);
+		}
+	}
+}
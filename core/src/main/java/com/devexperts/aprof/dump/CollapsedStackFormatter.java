@@ -0,0 +1,101 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+
+import com.devexperts.aprof.Configuration;
+
+import static com.devexperts.aprof.util.FastFmtUtil.printPlainNum;
+
+/**
+ * Streams snapshot as collapsed stacks for flame graph tools, one line per non-empty leaf of the snapshot tree:
+ * <pre>
+ * TOTAL;com.acme.Foo.bar;java.lang.StringBuilder.&lt;init&gt;;char[] 480
+ * </pre>
+ * The first frame is the dump kind, then go locations from the outermost tracked one to the allocation location,
+ * and data type is the leaf. Value is the allocated size in bytes or the allocation count when sizes are not tracked.
+ * Semicolons in names are replaced with colons.
+ * <b>This class is not thread-safe</b>.
+ */
+public class CollapsedStackFormatter implements SnapshotFormatter {
+	private final Configuration config;
+	private SnapshotDeep[] path = new SnapshotDeep[16];
+
+	public CollapsedStackFormatter(Configuration config) {
+		this.config = config;
+	}
+
+	public void dumpSnapshot(PrintWriter out, SnapshotRoot ss, String kind) {
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep cs = ss.getChild(i);
+			if (!cs.isEmpty())
+				dumpDeep(out, kind, cs, cs, 0);
+		}
+	}
+
+	private void dumpDeep(PrintWriter out, String kind, SnapshotDeep dataType, SnapshotDeep item, int depth) {
+		if (!item.hasChildren()) {
+			dumpStack(out, kind, dataType, item, depth);
+			return;
+		}
+		if (depth == path.length) {
+			SnapshotDeep[] newPath = new SnapshotDeep[depth * 2];
+			System.arraycopy(path, 0, newPath, 0, depth);
+			path = newPath;
+		}
+		for (int i = 0; i < item.getUsed(); i++) {
+			SnapshotDeep cs = item.getChild(i);
+			if (cs.isEmpty())
+				continue; // ignore empty items
+			path[depth] = cs;
+			dumpDeep(out, kind, dataType, cs, depth + 1);
+		}
+	}
+
+	private void dumpStack(PrintWriter out, String kind, SnapshotDeep dataType, SnapshotDeep item, int depth) {
+		long value = config.isSize() ? item.getSize() : item.getTotalCount();
+		if (value <= 0)
+			return;
+		printFrame(out, kind);
+		for (int i = depth; --i >= 0;) {
+			out.print(';');
+			printFrame(out, path[i].getName());
+		}
+		out.print(';');
+		printFrame(out, dataType.getName());
+		out.print(' ');
+		printPlainNum(out, value);
+		out.print('\n');
+	}
+
+	private static void printFrame(PrintWriter out, String name) {
+		if (name.indexOf(';') < 0)
+			out.print(name);
+		else
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				out.print(c == ';' ? ':' : c);
+			}
+	}
+}
@@ -0,0 +1,310 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+import com.devexperts.aprof.AProfAgent;
+import com.devexperts.aprof.AdaptiveInstrumentation;
+import com.devexperts.aprof.TrackingDiscovery;
+import com.devexperts.aprof.TrackingReconfiguration;
+import com.devexperts.aprof.util.Log;
+
+/**
+ * State of a single non-blocking socket connection served by {@link ConnectionListenerThread}.
+ * Reads command lines and writes response only as fast as the client consumes it.
+ */
+class ConnectionHandler {
+	private static final String ENCODING = "UTF-8";
+	private static final int MAX_LINE_LENGTH = 4096;
+	private static final long IDLE_TIMEOUT = 60000;
+	private static final String WINDOW_COMMAND = "WINDOW";
+	private static final String INSTRUMENT_COMMAND = "INSTRUMENT";
+	private static final String TRACK_COMMAND = "TRACK";
+
+	private final ConnectionListenerThread listener;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final String address;
+	private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_LENGTH);
+	private ByteBuffer out;
+	private long lastActivity;
+	private SnapshotQuery query;
+
+	ConnectionHandler(ConnectionListenerThread listener, SocketChannel channel, SelectionKey key, long now) {
+		this.listener = listener;
+		this.channel = channel;
+		this.key = key;
+		Socket s = channel.socket();
+		this.address = s.getInetAddress().getHostAddress() + ":" + s.getPort();
+		this.lastActivity = now;
+	}
+
+	String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns requested query or {@code null} for the whole dump.
+	 */
+	SnapshotQuery getQuery() {
+		return query;
+	}
+
+	boolean isIdle(long now) {
+		return now - lastActivity > IDLE_TIMEOUT;
+	}
+
+	void process(long now) {
+		try {
+			if (key.isReadable())
+				read(now);
+			if (key.isValid() && key.isWritable())
+				write(now);
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Starts sending response and closes connection when it is completely sent.
+	 */
+	void send(ByteBuffer response) {
+		if (!channel.isOpen())
+			return;
+		out = response;
+		key.interestOps(SelectionKey.OP_WRITE);
+		try {
+			write(System.currentTimeMillis());
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	void close() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read(long now) throws IOException {
+		int n = channel.read(in);
+		if (n < 0) {
+			close();
+			return;
+		}
+		lastActivity = now;
+		in.flip();
+		int lineStart = 0;
+		for (int i = 0; i < in.limit(); i++) {
+			if (in.get(i) != '\n')
+				continue;
+			String line = new String(in.array(), lineStart, i - lineStart, ENCODING);
+			lineStart = i + 1;
+			if (!processLine(line.trim()))
+				return;
+		}
+		in.position(lineStart);
+		in.compact();
+		if (!in.hasRemaining()) {
+			Log.out.println("Too long command line from " + address);
+			close();
+		}
+	}
+
+	// returns false when no more commands shall be read
+	private boolean processLine(String line) {
+		int i = line.indexOf(' ');
+		String command = (i < 0 ? line : line.substring(0, i)).toUpperCase(Locale.US);
+		if (command.equals("DUMP")) {
+			requestDump();
+			return false;
+		} else if (command.equals(SnapshotQuery.COMMAND)) {
+			try {
+				query = SnapshotQuery.parse(line);
+			} catch (IllegalArgumentException e) {
+				sendError(e.getMessage());
+				return false;
+			}
+			requestDump();
+			return false;
+		} else if (command.equals(WINDOW_COMMAND)) {
+			processWindowCommand(line);
+			return false;
+		} else if (command.equals(INSTRUMENT_COMMAND)) {
+			processInstrumentCommand(line);
+			return false;
+		} else if (command.equals(TRACK_COMMAND)) {
+			processTrackCommand(line);
+			return false;
+		} else if (command.equals("BYE")) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	// INSTRUMENT FULL
+	private void processInstrumentCommand(String line) {
+		String[] parts = line.split("\\s+");
+		if (parts.length != 2 || !parts[1].equalsIgnoreCase("FULL")) {
+			sendError("Invalid command, expected " + INSTRUMENT_COMMAND + " FULL: " + line);
+			return;
+		}
+		AProfAgent agent = AProfAgent.getInstance();
+		AdaptiveInstrumentation adaptiveInstrumentation = agent == null ? null : agent.getAdaptiveInstrumentation();
+		if (adaptiveInstrumentation == null) {
+			sendError("Adaptive instrumentation is not enabled");
+			return;
+		}
+		adaptiveInstrumentation.requestFullInstrumentation();
+		sendText("OK: full instrumentation is requested");
+	}
+
+	// TRACK ADD|REMOVE <class>.<method>[,<class>.<method>...] or TRACK LIST|DISCOVER
+	private void processTrackCommand(String line) {
+		String[] parts = line.split("\\s+");
+		String action = parts.length > 1 ? parts[1].toUpperCase(Locale.US) : "";
+		boolean list = action.equals("LIST");
+		boolean discover = action.equals("DISCOVER");
+		if (list || discover ? parts.length != 2 :
+			parts.length != 3 || !action.equals("ADD") && !action.equals("REMOVE"))
+		{
+			sendError("Invalid command, expected " + TRACK_COMMAND +
+				" ADD|REMOVE <class>.<method>[,<class>.<method>...] or " + TRACK_COMMAND + " LIST|DISCOVER: " + line);
+			return;
+		}
+		AProfAgent agent = AProfAgent.getInstance();
+		if (list) {
+			sendText(agent == null ? "" : agent.getConfig().getTrackedLocationsDescription());
+			return;
+		}
+		if (discover) {
+			TrackingDiscovery trackingDiscovery = agent == null ? null : agent.getTrackingDiscovery();
+			if (trackingDiscovery == null) {
+				sendError("Discovery of methods to track requires 'track.runtime' option");
+				return;
+			}
+			trackingDiscovery.requestDiscovery();
+			sendText("OK: discovery of methods to track is requested");
+			return;
+		}
+		TrackingReconfiguration trackingReconfiguration = agent == null ? null : agent.getTrackingReconfiguration();
+		if (trackingReconfiguration == null) {
+			sendError("Tracked methods cannot be changed at run-time without 'track.runtime' option");
+			return;
+		}
+		String[] locations = parts[2].split(",");
+		try {
+			if (action.equals("ADD"))
+				trackingReconfiguration.requestUpdate(locations, new String[0]);
+			else
+				trackingReconfiguration.requestUpdate(new String[0], locations);
+		} catch (IllegalArgumentException e) {
+			sendError(e.getMessage());
+			return;
+		}
+		sendText("OK: tracked methods update is requested");
+	}
+
+	// WINDOW START|STOP|GET <name>
+	private void processWindowCommand(String line) {
+		String[] parts = line.split("\\s+");
+		if (parts.length != 3) {
+			sendError("Invalid command, expected " + WINDOW_COMMAND + " START|STOP|GET <name>: " + line);
+			return;
+		}
+		String action = parts[1].toUpperCase(Locale.US);
+		String name = parts[2];
+		Dumper dumper = listener.getDumper();
+		MeasurementWindow window;
+		if (action.equals("START")) {
+			try {
+				dumper.startWindow(name);
+			} catch (IllegalStateException e) {
+				sendError(e.getMessage());
+				return;
+			}
+			sendText("OK: measurement window " + name + " is started");
+			return;
+		} else if (action.equals("STOP")) {
+			try {
+				window = dumper.stopWindow(name);
+			} catch (IllegalArgumentException e) {
+				sendError(e.getMessage());
+				return;
+			}
+		} else if (action.equals("GET")) {
+			window = dumper.getWindow(name);
+			if (window == null || window.isRunning()) {
+				sendError("Measurement window " + name + " is not stopped");
+				return;
+			}
+		} else {
+			sendError("Unknown window action: " + parts[1]);
+			return;
+		}
+		try {
+			send(ByteBuffer.wrap(ConnectionListenerThread.serialize(window.getResult())));
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	private void requestDump() {
+		key.interestOps(0); // do not read until response is sent
+		listener.requestDump(this);
+	}
+
+	private void sendError(String message) {
+		Log.out.println("Invalid request from " + address + ": " + message);
+		sendText(SnapshotClient.ERROR_PREFIX + message);
+	}
+
+	private void sendText(String line) {
+		try {
+			send(ByteBuffer.wrap((line + "\n").getBytes(ENCODING)));
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private void write(long now) throws IOException {
+		if (channel.write(out) > 0)
+			lastActivity = now;
+		if (!out.hasRemaining())
+			close();
+	}
+}
@@ -22,16 +22,27 @@ package com.devexperts.aprof.dump;
  * #L%
  */
 
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+import com.devexperts.aprof.util.Log;
 
 /**
+ * Serves all socket connections from a single thread with a non-blocking selector.
+ * Concurrent <code>DUMP</code> and {@link SnapshotQuery query} requests that arrive together are served
+ * from a single snapshot, which is serialized once for all <code>DUMP</code> requests.
+ *
  * @author Denis Davydov
  */
 public class ConnectionListenerThread extends Thread {
+	private static final long SELECT_TIMEOUT = 1000;
+
 	private final int port;
 	private final Dumper dumper;
+	private final List<ConnectionHandler> dumpRequests = new ArrayList<ConnectionHandler>();
 
 	public ConnectionListenerThread(int port, Dumper dumper) {
 		super("Aprof-ConnectionListener");
@@ -43,15 +54,112 @@ public class ConnectionListenerThread extends Thread {
 	@Override
 	public void run() {
 		try {
-			ServerSocket ss = new ServerSocket(port);
+			Selector selector = Selector.open();
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
 			while (!Thread.interrupted()) {
-				Socket s = ss.accept();
-				s.setSoTimeout(60000);
-				Thread t = new ConnectionHandlerThread(s, dumper);
-				t.start();
+				selector.select(SELECT_TIMEOUT);
+				long now = System.currentTimeMillis();
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					ConnectionHandler handler = (ConnectionHandler)key.attachment();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept(server, selector, now);
+						else
+							handler.process(now);
+					} catch (RuntimeException e) {
+						// failure to serve one connection shall not leave the agent unreachable
+						failed(handler, e);
+					}
+				}
+				// all requests received during this round share the same snapshot
+				if (!dumpRequests.isEmpty())
+					sendDumps();
+				closeIdle(selector, now);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
+
+	Dumper getDumper() {
+		return dumper;
+	}
+
+	void requestDump(ConnectionHandler handler) {
+		dumpRequests.add(handler);
+	}
+
+	private void accept(ServerSocketChannel server, Selector selector, long now) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new ConnectionHandler(this, channel, key, now));
+	}
+
+	private void sendDumps() {
+		StringBuilder addresses = new StringBuilder();
+		for (ConnectionHandler handler : dumpRequests) {
+			if (addresses.length() > 0)
+				addresses.append(", ");
+			addresses.append(handler.getAddress());
+		}
+		Log.out.println("Sending dump over socket connection to " + addresses + " ...");
+		try {
+			SnapshotRoot ss = new SnapshotRoot();
+			dumper.copyTotalSnapshotTo(ss);
+			byte[] dump = null;
+			for (ConnectionHandler handler : dumpRequests) {
+				try {
+					SnapshotQuery query = handler.getQuery();
+					if (query != null)
+						handler.send(ByteBuffer.wrap(serialize(query.apply(ss))));
+					else {
+						if (dump == null)
+							dump = serialize(ss);
+						handler.send(ByteBuffer.wrap(dump));
+					}
+				} catch (RuntimeException e) {
+					failed(handler, e);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			for (ConnectionHandler handler : dumpRequests)
+				handler.close();
+		}
+		dumpRequests.clear();
+	}
+
+	private static void failed(ConnectionHandler handler, RuntimeException e) {
+		Log.out.println("Failed to serve socket connection" +
+			(handler == null ? "" : " to " + handler.getAddress()) + ": " + e);
+		e.printStackTrace();
+		if (handler != null)
+			handler.close();
+	}
+
+	static byte[] serialize(SnapshotRoot ss) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(buf);
+		oos.writeObject(ss);
+		oos.close();
+		return buf.toByteArray();
+	}
+
+	private void closeIdle(Selector selector, long now) {
+		for (SelectionKey key : selector.keys()) {
+			ConnectionHandler handler = (ConnectionHandler)key.attachment();
+			if (handler != null && handler.isIdle(now))
+				handler.close();
+		}
+	}
 }
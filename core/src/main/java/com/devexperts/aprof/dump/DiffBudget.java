@@ -0,0 +1,160 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Regression budget for {@link SnapshotDiff}. Budget file consists of rules, one per line:
+ * <pre>
+ * # &lt;site pattern&gt; &lt;bytes|count&gt; &lt;limit&gt;
+ * java.lang.String;*     bytes  +10%
+ * *;com.acme.Foo.bar*    count  +1000/s
+ * </pre>
+ * Site pattern is matched against the whole <code>type;location;location...</code> site key,
+ * where '*' matches any sequence of characters and '?' matches any single character.
+ * Relative limits in percents apply only to sites that are present in baseline, while
+ * absolute limits per second apply to all sites. A site regresses when the growth of its rate exceeds the limit
+ * of any matching rule.
+ */
+public class DiffBudget {
+	private final List<Rule> rules = new ArrayList<Rule>();
+
+	public static DiffBudget load(File file) throws IOException {
+		DiffBudget budget = new DiffBudget();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				budget.rules.add(parseRule(line, file + ":" + lineNumber));
+			}
+		} finally {
+			in.close();
+		}
+		return budget;
+	}
+
+	private static Rule parseRule(String line, String where) {
+		String[] tokens = line.split("\\s+");
+		if (tokens.length != 3)
+			throw new IllegalArgumentException("Invalid budget rule at " + where + ": " + line);
+		SnapshotDiff.Metric metric = SnapshotDiff.Metric.forName(tokens[1]);
+		if (metric == null)
+			throw new IllegalArgumentException("Unknown metric at " + where + ": " + tokens[1]);
+		String limit = tokens[2];
+		boolean percent = limit.endsWith("%");
+		if (!percent && !limit.endsWith("/s"))
+			throw new IllegalArgumentException("Limit shall end with '%' or '/s' at " + where + ": " + limit);
+		try {
+			double value = Double.parseDouble(limit.substring(limit.startsWith("+") ? 1 : 0, limit.length() - (percent ? 1 : 2)));
+			return new Rule(tokens[0], compileGlob(tokens[0]), metric, limit, value, percent);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid limit at " + where + ": " + limit);
+		}
+	}
+
+	private static Pattern compileGlob(String glob) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > start)
+					sb.append(Pattern.quote(glob.substring(start, i)));
+				sb.append(c == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < glob.length())
+			sb.append(Pattern.quote(glob.substring(start)));
+		return Pattern.compile(sb.toString());
+	}
+
+	public int getRuleCount() {
+		return rules.size();
+	}
+
+	/**
+	 * Prints all violations of this budget.
+	 * @return number of violations.
+	 */
+	public int check(SnapshotDiff diff, PrintWriter out) {
+		int violations = 0;
+		for (SnapshotDiff.Site site : diff.getSites())
+			for (Rule rule : rules)
+				if (rule.isViolatedBy(site)) {
+					if (violations++ == 0)
+						out.println("Budget violations");
+					out.print("\t");
+					out.print(site.getKey());
+					out.print(": ");
+					diff.printRate(out, site, rule.metric);
+					out.println(" exceeds " + rule);
+				}
+		return violations;
+	}
+
+	private static class Rule {
+		final String glob;
+		final Pattern pattern;
+		final SnapshotDiff.Metric metric;
+		final String limitText;
+		final double limit;
+		final boolean percent;
+
+		Rule(String glob, Pattern pattern, SnapshotDiff.Metric metric, String limitText, double limit, boolean percent) {
+			this.glob = glob;
+			this.pattern = pattern;
+			this.metric = metric;
+			this.limitText = limitText;
+			this.limit = limit;
+			this.percent = percent;
+		}
+
+		boolean isViolatedBy(SnapshotDiff.Site site) {
+			if (percent && !site.isInBaseline())
+				return false;
+			if (!pattern.matcher(site.getKey()).matches())
+				return false;
+			double delta = site.getDeltaRate(metric);
+			if (percent) {
+				double base = site.getBaselineRate(metric);
+				return base > 0 ? delta * 100 / base > limit : delta > 0;
+			}
+			return delta > limit;
+		}
+
+		@Override
+		public String toString() {
+			return glob + " " + metric.getName() + " " + limitText;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.Configuration;
+
+/**
+ * Formats of dump files.
+ */
+public enum DumpFormat {
+	/**
+	 * Human-readable text with report header, see {@link DumpFormatter}.
+	 */
+	TEXT("text") {
+		@Override
+		public SnapshotFormatter createFormatter(Configuration config) {
+			return new DumpFormatter(config);
+		}
+	},
+
+	/**
+	 * One JSON object per line for each allocation site, see {@link JsonLinesFormatter}.
+	 */
+	JSONL("jsonl") {
+		@Override
+		public SnapshotFormatter createFormatter(Configuration config) {
+			return new JsonLinesFormatter(config);
+		}
+	},
+
+	/**
+	 * Collapsed stacks for flame graphs, see {@link CollapsedStackFormatter}.
+	 */
+	COLLAPSED("collapsed") {
+		@Override
+		public SnapshotFormatter createFormatter(Configuration config) {
+			return new CollapsedStackFormatter(config);
+		}
+	};
+
+	private final String name;
+
+	DumpFormat(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public abstract SnapshotFormatter createFormatter(Configuration config);
+
+	/**
+	 * Returns format by its name or {@code null} if there is no such format.
+	 */
+	public static DumpFormat forName(String name) {
+		for (DumpFormat format : values())
+			if (format.name.equalsIgnoreCase(name))
+				return format;
+		return null;
+	}
+
+	public static String names() {
+		StringBuilder sb = new StringBuilder();
+		for (DumpFormat format : values()) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(format.name);
+		}
+		return sb.toString();
+	}
+}
@@ -22,106 +22,161 @@ package com.devexperts.aprof.dump;
  * #L%
  */
 
+import java.io.CharArrayWriter;
 import java.io.PrintWriter;
-import java.util.Comparator;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.devexperts.aprof.AProfRegistry;
 import com.devexperts.aprof.Configuration;
 import com.devexperts.aprof.util.FastObjIntMap;
+import com.devexperts.aprof.util.QuickSort;
 
 import static com.devexperts.aprof.util.FastFmtUtil.*;
 
 /**
  * Formats collected dump snapshots.
+ * Location-inverted tree is built and top-level entries are printed in parallel
+ * by {@link Configuration#getDumpThreads() dump.threads} threads into separate buffers that are
+ * written out in order. Threads are taken from a single pool of idle-expiring daemon threads that is shared
+ * by all formatters. On each level only entries that are going to be shown are sorted.
  * <b>This class is not thread-safe</b>.
  *
  * @author Denis Davydov
  */
-public class DumpFormatter {
+public class DumpFormatter implements SnapshotFormatter {
 	private static final int MAX_DEPTH = 5;
+	private static final int TASKS_PER_THREAD = 4;
+	private static final long THREAD_KEEP_ALIVE = 60000;
+
+	private static ThreadPoolExecutor sharedExecutor; // created on first use
 
 	private final Configuration config;
+	private final int threads;
+	private final ExecutorService executor; // null when formatting in the calling thread only
 
 	private final SnapshotShallow possiblyEliminatedAllocations = new SnapshotShallow();
-	private final SnapshotShallow[] rest = new SnapshotShallow[MAX_DEPTH];
 	private final FastObjIntMap<String> classLevel = new FastObjIntMap<String>();
-	private final FastObjIntMap<String> locationIndex = new FastObjIntMap<String>();
-	private final SnapshotDeep locations;
 
 	public DumpFormatter(Configuration config) {
 		this.config = config;
-		for (int i = 0; i < MAX_DEPTH; i++)
-			rest[i] = new SnapshotShallow();
-		locations = new SnapshotDeep(null, true, 0); // true to print avg size, 0 to skip printing histogram
+		int threads = config.getDumpThreads();
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		this.threads = threads;
+		this.executor = threads <= 1 ? null : getSharedExecutor(threads);
+	}
+
+	private static synchronized ExecutorService getSharedExecutor(int threads) {
+		if (sharedExecutor == null) {
+			// idle threads die, caller formats by itself when all threads are busy
+			sharedExecutor = new ThreadPoolExecutor(0, threads,
+				THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+				new FormatterThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		} else if (sharedExecutor.getMaximumPoolSize() < threads)
+			sharedExecutor.setMaximumPoolSize(threads);
+		return sharedExecutor;
 	}
 
 	public void dumpSnapshot(PrintWriter out, SnapshotRoot ss, String kind) {
+		Comparator<SnapshotShallow> comparator = getOutputComparator();
 		dumpSnapshotHeader(out, ss, kind);
 		out.println("Top allocation-inducing locations with data types allocated from them");
 		printlnTearLine(out, '-');
-		dumpSnapshotByLocations(out, ss, SnapshotDeep.UNKNOWN);
+		dumpSnapshotByLocations(out, ss, SnapshotDeep.UNKNOWN, comparator);
 		if (AProfRegistry.TRACK_TRANSFORM_DETAILS) {
 			out.println("Top allocation-inducing locations inside transform with data types allocated from them");
 			printlnTearLine(out, '-');
-			dumpSnapshotByLocations(out, ss, AProfRegistry.TRANSFORM_NAME);
+			dumpSnapshotByLocations(out, ss, AProfRegistry.TRANSFORM_NAME, comparator);
 		}
 		out.println("Top allocated data types with reverse location traces");
 		printlnTearLine(out, '-');
-		ss.sortChildrenDeep(getOutputComparator());
-		dumpSnapshotByDataTypes(out, ss);
+		dumpSnapshotByDataTypes(out, ss, comparator);
 	}
 
 	private Comparator<SnapshotShallow> getOutputComparator() {
 		return config.isSize() ? SnapshotShallow.COMPARATOR_SIZE : SnapshotShallow.COMPARATOR_COUNT;
 	}
 
-	private void dumpSnapshotByLocations(PrintWriter out, SnapshotRoot ss, String insideOf) {
-		// rebuild locations
-		locations.clearDeep();
-		locations.sortChildrenDeep(SnapshotShallow.COMPARATOR_NAME);
-		locationIndex.fill(-1);
-		for (int i = 0; i < ss.getUsed(); i++) {
-			SnapshotDeep cs = ss.getChild(i);
-			String dataTypeName = cs.getName();
-			findLocationsDeep(cs, dataTypeName, cs.getHistoCountsLength(), insideOf);
+	private void dumpSnapshotByLocations(PrintWriter out, SnapshotRoot ss, final String insideOf,
+		Comparator<SnapshotShallow> comparator)
+	{
+		// invert disjoint ranges of data types in parallel
+		final SnapshotDeep[] dataTypes = ss.getChildren();
+		List<Task<SnapshotDeep>> tasks = new ArrayList<Task<SnapshotDeep>>();
+		int n = ss.getUsed();
+		int count = getTaskCount(n);
+		for (int i = 0; i < count; i++) {
+			final int from = (int)((long)n * i / count);
+			final int to = (int)((long)n * (i + 1) / count);
+			tasks.add(new Task<SnapshotDeep>() {
+				public SnapshotDeep call() {
+					LocationsBuilder builder = new LocationsBuilder();
+					for (int i = from; i < to; i++) {
+						SnapshotDeep cs = dataTypes[i];
+						builder.findLocationsDeep(cs, cs.getName(), cs.getHistoCountsLength(), insideOf);
+					}
+					return builder.locations;
+				}
+			});
 		}
+		// merge them -- each data type appears in one range only, so its nodes are moved as is
+		LocationsBuilder merged = new LocationsBuilder();
+		for (SnapshotDeep part : runAll(tasks))
+			for (int i = 0; i < part.getUsed(); i++) {
+				SnapshotDeep ps = part.getChild(i);
+				SnapshotDeep cs = merged.getOrCreateLocation(ps.getName());
+				for (int j = 0; j < ps.getUsed(); j++)
+					cs.addChild(ps.getChild(j));
+			}
+		SnapshotDeep locations = merged.locations;
 		locations.updateSnapshotSumDeep();
-		// sort them and print
-		locations.sortChildrenDeep(getOutputComparator());
-		printLocationsDeep(out, 0, locations, ss);
+		// select top locations and print them in parallel
+		Printer printer = new Printer(out, comparator);
+		int shown = printer.selectShown(0, locations, ss);
+		printInParallel(out, printer.shown[0], shown, ss, comparator, false);
+		printer.printRest(0, locations, ss);
 	}
 
-	private void findLocationsDeep(SnapshotDeep ss, String dataTypeName, int histoCountsLength, String insideOf) {
-		if (!ss.hasChildren() && insideOf.equals(SnapshotDeep.UNKNOWN)) {
-			processLeafLocation(ss, AProfRegistry.getLocationNameWithoutSuffix(ss.getName()), dataTypeName, histoCountsLength);
-			return;
+	private class LocationsBuilder {
+		final SnapshotDeep locations = new SnapshotDeep(null, true, 0); // true to print avg size, 0 to skip printing histogram
+		final Map<String, SnapshotDeep> locationIndex = new HashMap<String, SnapshotDeep>();
+
+		SnapshotDeep getOrCreateLocation(String name) {
+			SnapshotDeep cs = locationIndex.get(name);
+			if (cs == null) {
+				cs = locations.getOrCreateChildAt(locations.getUsed(), name); // always creates new node
+				locationIndex.put(name, cs);
+			}
+			return cs;
 		}
-		// has children -- go recursive with a special treatment for UNKNOWN children -- attribute them this location's name
-		for (int i = 0; i < ss.getUsed(); i++) {
-			SnapshotDeep cs = ss.getChild(i);
-			if (cs.getName().equals(insideOf)) {
-				assert !cs.hasChildren() : insideOf + " location shall not have children";
-				processLeafLocation(cs, AProfRegistry.getLocationNameWithoutSuffix(ss.getName()), dataTypeName, histoCountsLength);
-			} else
-				findLocationsDeep(cs, dataTypeName, histoCountsLength, insideOf);
+
+		void findLocationsDeep(SnapshotDeep ss, String dataTypeName, int histoCountsLength, String insideOf) {
+			if (!ss.hasChildren() && insideOf.equals(SnapshotDeep.UNKNOWN)) {
+				processLeafLocation(ss, AProfRegistry.getLocationNameWithoutSuffix(ss.getName()), dataTypeName, histoCountsLength);
+				return;
+			}
+			// has children -- go recursive with a special treatment for UNKNOWN children -- attribute them this location's name
+			for (int i = 0; i < ss.getUsed(); i++) {
+				SnapshotDeep cs = ss.getChild(i);
+				if (cs.getName().equals(insideOf)) {
+					assert !cs.hasChildren() : insideOf + " location shall not have children";
+					processLeafLocation(cs, AProfRegistry.getLocationNameWithoutSuffix(ss.getName()), dataTypeName, histoCountsLength);
+				} else
+					findLocationsDeep(cs, dataTypeName, histoCountsLength, insideOf);
+			}
 		}
-	}
 
-	private void processLeafLocation(SnapshotDeep ss, String name, String dataTypeName, int histoCountsLength) {
-		// use hash index to find location (fast path)
-		int i = locationIndex.get(name, -1);
-		if (i < 0) {
-			// if that does not work, then binary-search existing node (or create new one) and remember index in hash index
-			i = locations.findOrCreateChildInSorted(name);
-			locationIndex.put(name, i);
+		void processLeafLocation(SnapshotDeep ss, String name, String dataTypeName, int histoCountsLength) {
+			SnapshotDeep cs = getOrCreateLocation(name);
+			// append data type info for this location, true to always print average size
+			SnapshotDeep child = cs.getOrCreateChild(dataTypeName, true, histoCountsLength);
+			child.addShallow(ss);
+			// count possibly eliminated allocations separately
+			if (ss.isPossiblyEliminatedAllocation())
+				child.getOrCreateChild("<possibly eliminated>").addShallow(ss);
 		}
-		SnapshotDeep cs = locations.getChild(i);
-		// append data type info for this location, true to always print average size
-		SnapshotDeep child = cs.getOrCreateChild(dataTypeName, true, histoCountsLength);
-		child.addShallow(ss);
-		// count possibly eliminated allocations separately
-		if (ss.isPossiblyEliminatedAllocation())
-			child.getOrCreateChild("<possibly eliminated>").addShallow(ss);
 	}
 
 	public void dumpSnapshotHeader(PrintWriter out, SnapshotRoot ss, String kind) {
@@ -176,7 +231,14 @@ public class DumpFormatter {
 			countPossibleEliminatedAllocationsRec(ss.getChild(i));
 	}
 
+	/**
+	 * Prints data types in the order they are kept in the snapshot.
+	 */
 	public void dumpSnapshotByDataTypes(PrintWriter out, SnapshotRoot ss) {
+		dumpSnapshotByDataTypes(out, ss, null);
+	}
+
+	private void dumpSnapshotByDataTypes(PrintWriter out, SnapshotRoot ss, Comparator<SnapshotShallow> comparator) {
 		// compute class levels -- classes of level 0 are classes that exceed threshold
 		classLevel.fill(Integer.MAX_VALUE);
 		for (int csi = 0; csi < ss.getUsed(); csi++) {
@@ -191,29 +253,96 @@ public class DumpFormatter {
 					markClassLevelRec(cs, level);
 			}
 
-		// dump classes
+		// select classes to dump
+		SnapshotDeep[] shown = new SnapshotDeep[ss.getUsed()];
+		int n = 0;
 		int cskipped = 0;
-		rest[0].clearShallow();
+		SnapshotShallow rest = new SnapshotShallow();
 		for (int csi = 0; csi < ss.getUsed(); csi++) {
 			SnapshotDeep cs = ss.getChild(csi);
-			if (!cs.isEmpty() && classLevel.get(cs.getName()) <= config.getLevel()) {
-				out.print(cs.getName());
-				printlnDetailsShallow(out, cs, ss, true, cs.isPossiblyEliminatedAllocation());
-				printLocationsDeep(out, 1, cs, ss);
-				out.println();
-			} else if (!cs.isEmpty()) {
+			if (!cs.isEmpty() && classLevel.get(cs.getName()) <= config.getLevel())
+				shown[n++] = cs;
+			else if (!cs.isEmpty()) {
 				cskipped++;
-				rest[0].addShallow(cs);
+				rest.addShallow(cs);
 			}
 		}
+		if (comparator != null)
+			QuickSort.sort(shown, 0, n, comparator);
+		// dump classes
+		printInParallel(out, shown, n, ss, comparator, true);
 		if (cskipped > 0) {
 			out.print("... ");
 			printNum(out, cskipped);
 			out.print(" more below threshold");
-			printlnDetailsShallow(out, rest[0], ss, true, false);
+			printlnDetailsShallow(out, rest, ss, true, false);
 		}
 	}
 
+	// prints top-level items in parallel with separate buffers, and then writes buffers in order
+	private void printInParallel(PrintWriter out, final SnapshotDeep[] items, int n, final SnapshotShallow total,
+		final Comparator<SnapshotShallow> comparator, final boolean printAvg)
+	{
+		if (executor == null || n <= 1) {
+			Printer printer = new Printer(out, comparator);
+			for (int i = 0; i < n; i++)
+				printer.printItem(0, items[i], total, printAvg || items[i].isArray());
+			return;
+		}
+		List<Task<char[]>> tasks = new ArrayList<Task<char[]>>();
+		int count = getTaskCount(n);
+		for (int i = 0; i < count; i++) {
+			final int from = (int)((long)n * i / count);
+			final int to = (int)((long)n * (i + 1) / count);
+			tasks.add(new Task<char[]>() {
+				public char[] call() {
+					CharArrayWriter buffer = new CharArrayWriter();
+					Printer printer = new Printer(new PrintWriter(buffer), comparator);
+					for (int i = from; i < to; i++)
+						printer.printItem(0, items[i], total, printAvg || items[i].isArray());
+					printer.out.flush();
+					return buffer.toCharArray();
+				}
+			});
+		}
+		for (char[] chars : runAll(tasks))
+			out.write(chars);
+	}
+
+	private int getTaskCount(int n) {
+		return Math.max(1, Math.min(n, executor == null ? 1 : threads * TASKS_PER_THREAD));
+	}
+
+	private <T> List<T> runAll(List<Task<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (executor != null && tasks.size() > 1) {
+			List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+			for (Task<T> task : tasks)
+				futures.add(executor.submit(task));
+			try {
+				for (Future<T> future : futures)
+					results.add(future.get());
+			} catch (InterruptedException e) {
+				// finish remaining tasks in this thread, tasks do not share any state
+				Thread.currentThread().interrupt();
+				for (int i = results.size(); i < tasks.size(); i++) {
+					futures.get(i).cancel(false);
+					results.add(tasks.get(i).call());
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if (cause instanceof Error)
+					throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+		} else
+			for (Task<T> task : tasks)
+				results.add(task.call());
+		return results;
+	}
+
 	private void printlnDetailsShallow(PrintWriter out, SnapshotShallow item, SnapshotShallow total, boolean printAvg,
 		boolean possiblyEliminated)
 	{
@@ -267,53 +396,114 @@ public class DumpFormatter {
 		}
 	}
 
-	private void printLocationsDeep(PrintWriter out, int depth, SnapshotDeep ss, SnapshotShallow total) {
-		// count how many below threshold (1st pass)
-		int shown = 0;
-		int skipped = 0;
-		for (int i = 0; i < ss.getUsed(); i++) {
-			SnapshotDeep item = ss.getChild(i);
-			if (item.isEmpty())
-				continue; // ignore empty items
-			// always show 1st item and all that exceed threshold
-			if (shown == 0 || item.exceedsThreshold(total, config.getThreshold()))
-				shown++;
-			else
-				skipped++;
+	/**
+	 * Prints location trees with its own scratch state, so that different printers can work in parallel.
+	 */
+	private class Printer {
+		final PrintWriter out;
+		final Comparator<SnapshotShallow> comparator; // null to keep order of children
+		final SnapshotShallow[] rest = new SnapshotShallow[MAX_DEPTH];
+		final SnapshotDeep[][] shown = new SnapshotDeep[MAX_DEPTH][];
+		final int[] skipped = new int[MAX_DEPTH];
+
+		Printer(PrintWriter out, Comparator<SnapshotShallow> comparator) {
+			this.out = out;
+			this.comparator = comparator;
+			for (int i = 0; i < MAX_DEPTH; i++) {
+				rest[i] = new SnapshotShallow();
+				shown[i] = new SnapshotDeep[16];
+			}
 		}
-		boolean printAll = skipped <= 2; // avoid ... 1 more and ... 2 more messages
 
-		// print (2nd pass)
-		shown = 0;
-		skipped = 0;
-		rest[depth].clearShallow();
-		for (int i = 0; i < ss.getUsed(); i++) {
-			SnapshotDeep item = ss.getChild(i);
-			if (item.isEmpty())
-				continue; // ignore empty items
-			if (shown == 0 || printAll || item.exceedsThreshold(total, config.getThreshold())) {
-				shown++;
-				printIndent(out, depth);
-				out.print(item.getName());
-				printlnDetailsShallow(out, item, total, item.isArray(), item.isPossiblyEliminatedAllocation());
-				if (item.hasChildren())
-					printLocationsDeep(out, depth + 1, item, total);
-				if (depth == 0)
-					out.println(); // empty lines on top level
-			} else {
-				skipped++;
-				rest[depth].addShallow(item);
+		/**
+		 * Selects into <code>shown[depth]</code> the first non-empty child (by comparator) and all children
+		 * that exceed threshold, sorts only them, and accumulates the rest into <code>rest[depth]</code>.
+		 * @return number of shown children.
+		 */
+		int selectShown(int depth, SnapshotDeep ss, SnapshotShallow total) {
+			int used = ss.getUsed();
+			if (shown[depth].length < used)
+				shown[depth] = new SnapshotDeep[Math.max(used, shown[depth].length * 2)];
+			SnapshotDeep[] items = shown[depth];
+			double threshold = config.getThreshold();
+			// count how many below threshold (1st pass)
+			SnapshotDeep top = null;
+			int nonEmpty = 0;
+			int exceeding = 0;
+			for (int i = 0; i < used; i++) {
+				SnapshotDeep item = ss.getChild(i);
+				if (item.isEmpty())
+					continue; // ignore empty items
+				nonEmpty++;
+				if (top == null || comparator != null && comparator.compare(item, top) < 0)
+					top = item;
+				if (item.exceedsThreshold(total, threshold))
+					exceeding++;
 			}
+			if (top != null && !top.exceedsThreshold(total, threshold))
+				exceeding++; // always show 1st item
+			boolean printAll = nonEmpty - exceeding <= 2; // avoid ... 1 more and ... 2 more messages
+
+			// select (2nd pass)
+			int n = 0;
+			rest[depth].clearShallow();
+			for (int i = 0; i < used; i++) {
+				SnapshotDeep item = ss.getChild(i);
+				if (item.isEmpty())
+					continue; // ignore empty items
+				if (printAll || item == top || item.exceedsThreshold(total, threshold))
+					items[n++] = item;
+				else
+					rest[depth].addShallow(item);
+			}
+			skipped[depth] = nonEmpty - n;
+			if (comparator != null)
+				QuickSort.sort(items, 0, n, comparator);
+			return n;
+		}
+
+		void printLocationsDeep(int depth, SnapshotDeep ss, SnapshotShallow total) {
+			int n = selectShown(depth, ss, total);
+			SnapshotDeep[] items = shown[depth];
+			for (int i = 0; i < n; i++)
+				printItem(depth, items[i], total, items[i].isArray());
+			printRest(depth, ss, total);
 		}
-		if (skipped > 0) {
+
+		void printItem(int depth, SnapshotDeep item, SnapshotShallow total, boolean printAvg) {
 			printIndent(out, depth);
-			out.print("... ");
-			printNum(out, skipped);
-			out.print(" more below threshold");
-			printlnDetailsShallow(out, rest[depth], total, ss.isArray(), false);
+			out.print(item.getName());
+			printlnDetailsShallow(out, item, total, printAvg, item.isPossiblyEliminatedAllocation());
+			if (item.hasChildren())
+				printLocationsDeep(depth + 1, item, total);
 			if (depth == 0)
 				out.println(); // empty lines on top level
 		}
+
+		void printRest(int depth, SnapshotDeep ss, SnapshotShallow total) {
+			if (skipped[depth] > 0) {
+				printIndent(out, depth);
+				out.print("... ");
+				printNum(out, skipped[depth]);
+				out.print(" more below threshold");
+				printlnDetailsShallow(out, rest[depth], total, ss.isArray(), false);
+				if (depth == 0)
+					out.println(); // empty lines on top level
+			}
+		}
+	}
+
+	private abstract static class Task<T> implements Callable<T> {
+		public abstract T call();
 	}
 
+	private static class FormatterThreadFactory implements ThreadFactory {
+		private final AtomicInteger number = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AprofDump-Formatter-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
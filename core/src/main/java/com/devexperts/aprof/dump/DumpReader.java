@@ -0,0 +1,207 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+
+import com.devexperts.aprof.util.MappedLineReader;
+
+/**
+ * Reads snapshot from a file that is either a text dump written by {@link Dumper} (possibly gzipped, possibly with
+ * many appended dumps) or a serialized {@link SnapshotRoot} as sent by the <code>DUMP</code> command.
+ * Text dumps are read in a streaming fashion from memory-mapped file and only data types section of the
+ * last <code>TOTAL</code> dump is kept (or of the last dump of any other kind if there is no TOTAL one).
+ * Entries that were summarized as "... more below threshold" become {@link #BELOW_THRESHOLD} nodes.
+ */
+public class DumpReader {
+	public static final String BELOW_THRESHOLD = "<below threshold>";
+
+	private static final String TOTAL_KIND = "TOTAL";
+	private static final String DUMP_HEADER = " allocation dump for ";
+	private static final String DATA_TYPES_SECTION = "Top allocated data types with reverse location traces";
+	private static final String BYTES_IN = " bytes in ";
+
+	private final MappedLineReader in;
+	private SnapshotDeep[] stack = new SnapshotDeep[16];
+	private int pos; // current parsing position in line
+
+	private DumpReader(MappedLineReader in) {
+		this.in = in;
+	}
+
+	public static SnapshotRoot read(File file) throws IOException {
+		if (isSerialized(file)) {
+			ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return (SnapshotRoot)ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unexpected class in " + file + ": " + e.getMessage());
+			} finally {
+				ois.close();
+			}
+		}
+		MappedLineReader in = new MappedLineReader(file);
+		try {
+			SnapshotRoot ss = new DumpReader(in).readText();
+			if (ss == null)
+				throw new IOException("No aprof dump found in " + file);
+			return ss;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isSerialized(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= 2 && in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	private SnapshotRoot readText() throws IOException {
+		SnapshotRoot result = null;
+		boolean resultTotal = false;
+		SnapshotRoot current = null;
+		boolean currentTotal = false;
+		boolean dataTypesHeader = false;
+		boolean dataTypes = false;
+		while (in.nextLine()) {
+			int length = in.getLength();
+			if (length == 0)
+				continue;
+			char c = in.getChars()[0];
+			if (c == '=' || c == '#' || c == '-') {
+				// tear line starts data types section right after its header, and ends it otherwise
+				dataTypes = dataTypesHeader && c == '-';
+				dataTypesHeader = false;
+				continue;
+			}
+			if (dataTypes) {
+				parseEntry(current);
+				continue;
+			}
+			if (in.startsWith(DATA_TYPES_SECTION)) {
+				dataTypesHeader = current != null;
+				continue;
+			}
+			int kindEnd = indexOf(0, ' ');
+			if (kindEnd > 0 && in.regionMatches(kindEnd, DUMP_HEADER)) {
+				if (current != null && (currentTotal || !resultTotal)) {
+					result = current;
+					resultTotal = currentTotal;
+				}
+				current = new SnapshotRoot();
+				currentTotal = in.regionMatches(0, TOTAL_KIND + DUMP_HEADER);
+				pos = kindEnd + DUMP_HEADER.length();
+				current.setTime(parseNum());
+			}
+		}
+		if (current != null && (currentTotal || !resultTotal))
+			result = current;
+		if (result != null)
+			result.updateSnapshotSumShallow();
+		return result;
+	}
+
+	private void parseEntry(SnapshotRoot root) {
+		char[] chars = in.getChars();
+		int length = in.getLength();
+		int depth = 0;
+		while (depth < length && chars[depth] == '\t')
+			depth++;
+		String name;
+		if (in.regionMatches(depth, "... ")) {
+			name = BELOW_THRESHOLD;
+			pos = indexOf(depth, ':');
+		} else {
+			pos = indexOf(depth, ':');
+			while (pos >= 0 && !in.regionMatches(pos, ": "))
+				pos = indexOf(pos + 1, ':');
+			if (pos < 0)
+				return; // not an entry
+			name = in.getString(depth, pos);
+		}
+		if (pos < 0)
+			return;
+		pos += 2;
+		long size = 0;
+		long count = parseNum();
+		skipPercent();
+		if (in.regionMatches(pos, BYTES_IN)) {
+			pos += BYTES_IN.length();
+			size = count;
+			count = parseNum();
+		}
+		// find parent -- stack[depth] for well-formed dumps
+		stack[0] = root;
+		int parentDepth = Math.min(depth, stack.length - 1);
+		while (stack[parentDepth] == null)
+			parentDepth--;
+		SnapshotDeep parent = stack[parentDepth];
+		SnapshotDeep item = parent.getOrCreateChildAt(parent.getUsed(), name, false, 0); // names are unique on each level
+		item.add(count, size);
+		if (parentDepth + 2 >= stack.length) {
+			SnapshotDeep[] newStack = new SnapshotDeep[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, stack.length);
+			stack = newStack;
+		}
+		stack[parentDepth + 1] = item;
+		for (int i = parentDepth + 2; i < stack.length && stack[i] != null; i++)
+			stack[i] = null;
+	}
+
+	private int indexOf(int from, char c) {
+		char[] chars = in.getChars();
+		for (int i = from; i < in.getLength(); i++)
+			if (chars[i] == c)
+				return i;
+		return -1;
+	}
+
+	private long parseNum() {
+		char[] chars = in.getChars();
+		int length = in.getLength();
+		boolean negative = pos < length && chars[pos] == '-';
+		if (negative)
+			pos++;
+		long value = 0;
+		for (; pos < length; pos++) {
+			char c = chars[pos];
+			if (c >= '0' && c <= '9')
+				value = value * 10 + c - '0';
+			else if (c != ',')
+				break;
+		}
+		return negative ? -value : value;
+	}
+
+	private void skipPercent() {
+		if (in.regionMatches(pos, " (")) {
+			int end = indexOf(pos, ')');
+			if (end >= 0)
+				pos = end + 1;
+		}
+	}
+}
@@ -49,6 +49,12 @@ public class DumpShutdownThread extends Thread {
 			return;
 		}
 		dumper.makeDump(true);
+		try {
+			dumper.closeJournal();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
+		}
 		long treal = System.currentTimeMillis() - finish;
 		long ttrans = AProfRegistry.getTime() - trtime;
 		Log.out.println("Stopped after " + treal + " ms with " + ttrans + " ms in transformer " +
@@ -0,0 +1,54 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Renders and writes dumps that were captured by {@link Dumper#makeDump(boolean)},
+ * so that slow disk I/O never happens under the {@link Dumper} lock.
+ */
+class DumpWriterThread extends Thread {
+	private final Dumper dumper;
+
+	DumpWriterThread(Dumper dumper) {
+		super("AprofDump-Writer");
+		setDaemon(true);
+		this.dumper = dumper;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				dumper.writeNextDump();
+			} catch (InterruptedException e) {
+				// thread dies
+				Log.out.println(getName() + " was interrupted");
+				return;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -23,6 +23,12 @@ package com.devexperts.aprof.dump;
  */
 
 import java.io.*;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import com.devexperts.aprof.*;
 import com.devexperts.aprof.util.*;
@@ -30,18 +36,34 @@ import com.devexperts.aprof.util.*;
 import static com.devexperts.aprof.util.FastFmtUtil.*;
 
 /**
+ * Captures snapshots of allocation counters under its lock and hands them over to
+ * {@link DumpWriterThread} that renders and writes dump files in background.
+ * There are two dump buffers, so one dump can be captured while the previous one is being written.
+ *
  * @author Roman Elizarov
  */
 public class Dumper {
+	private static final int BUFFERS = 2;
+	private static final String GZIP_SUFFIX = ".gz";
+
 	private final Configuration config;
 	private final String argsStr;
 	private final long start;
 	private final SnapshotRoot total = new SnapshotRoot();
 	private final SnapshotRoot last = new SnapshotRoot();
-	private final SnapshotRoot temp = new SnapshotRoot();
 	private long lastTime = System.currentTimeMillis();
+	private long totalStart;
+	private final SnapshotRoot discarded = new SnapshotRoot(); // by resetTotal while windows are running
+	private final Map<String, MeasurementWindow> windows = new LinkedHashMap<String, MeasurementWindow>();
+
+	private final DumpFormat format; // default one
+	private final Map<DumpFormat, SnapshotFormatter> formatters =
+		new EnumMap<DumpFormat, SnapshotFormatter>(DumpFormat.class); // is used by writer thread only
 
-	private final DumpFormatter formatter;
+	private final BlockingQueue<DumpBuffer> freeBuffers = new ArrayBlockingQueue<DumpBuffer>(BUFFERS);
+	private final BlockingQueue<DumpBuffer> filledBuffers = new ArrayBlockingQueue<DumpBuffer>(BUFFERS);
+	private DumpWriterThread writer;
+	private SnapshotJournal journal; // is used by writer thread or by the owner of all buffers
 
 	private int fileNumber = 0;
 
@@ -52,7 +74,18 @@ public class Dumper {
 		this.config = config;
 		this.argsStr = config.toString();
 		this.start = start;
-		this.formatter = new DumpFormatter(config);
+		this.totalStart = start;
+		DumpFormat format = DumpFormat.forName(config.getFileFormat());
+		this.format = format == null ? DumpFormat.TEXT : format;
+		for (int i = 0; i < BUFFERS; i++)
+			freeBuffers.add(new DumpBuffer());
+	}
+
+	/**
+	 * Returns number of snapshots that were made to write dumps.
+	 */
+	public synchronized int getSnapshotCount() {
+		return snapshotCount;
 	}
 
 	public synchronized void makeOverflowSnapshot() {
@@ -67,19 +100,172 @@ public class Dumper {
 		ss.clearDeep();
 		ss.addDeep(total);
 		ss.addDeep(last);
-		ss.setTime(now - start);
+		ss.setTime(now - totalStart);
+	}
+
+	/**
+	 * Discards all allocations collected so far and starts new measurement window for total snapshot.
+	 * Allocations collected since the previous dump are dumped first, so they are not lost for
+	 * the journal and for the dump of the last period.
+	 */
+	public void resetTotal() {
+		Log.out.println("Resetting total snapshot...");
+		DumpBuffer buffer = null;
+		if (isDumpEnabled() && (buffer = takeFreeBuffer()) == null)
+			return;
+		synchronized (this) {
+			if (buffer != null)
+				captureDump(buffer, false, format);
+			else {
+				AProfRegistry.takeSnapshot(last);
+				total.addDeep(last);
+				last.clearDeep();
+				lastTime = System.currentTimeMillis();
+			}
+			if (hasRunningWindows()) {
+				// windows compare cumulative snapshots, so they shall not notice reset
+				discarded.addDeep(total);
+			}
+			total.clearDeep();
+			totalStart = lastTime;
+		}
 	}
 
-	public synchronized void sendDumpTo(ObjectOutputStream oos, String address) throws IOException {
-		Log.out.println("Sending dump over socket connection to " + address + " ...");
-		copyTotalSnapshotTo(temp);
-		oos.writeObject(temp);
+	/**
+	 * Starts measurement window with a given name. Running window with the same name is restarted.
+	 * At most {@link Configuration#getWindows() windows} are kept, so the oldest stopped window is
+	 * forgotten when this limit is reached.
+	 *
+	 * @throws IllegalStateException if the limit is reached and all kept windows are running.
+	 */
+	public synchronized void startWindow(String name) {
+		windows.remove(name);
+		if (windows.size() >= config.getWindows() && !forgetOldestStoppedWindow())
+			throw new IllegalStateException("Too many running measurement windows (" + windows.size() + ")");
+		Log.out.println("Starting measurement window " + name);
+		SnapshotRoot baseline = new SnapshotRoot();
+		copyCumulativeSnapshotTo(baseline);
+		windows.put(name, new MeasurementWindow(name, System.currentTimeMillis(), baseline));
 	}
 
-	public synchronized void makeDump(boolean dumpAll) {
-		String fileName = config.getFile();
-		if (fileName.length() == 0)
+	/**
+	 * Stops running measurement window with a given name.
+	 *
+	 * @throws IllegalArgumentException if there is no running window with this name.
+	 */
+	public synchronized MeasurementWindow stopWindow(String name) {
+		MeasurementWindow window = windows.get(name);
+		if (window == null || !window.isRunning())
+			throw new IllegalArgumentException("Measurement window " + name + " is not running");
+		Log.out.println("Stopping measurement window " + name);
+		SnapshotRoot current = new SnapshotRoot();
+		copyCumulativeSnapshotTo(current);
+		window.stop(System.currentTimeMillis(), current);
+		if (!hasRunningWindows())
+			discarded.clearDeep();
+		return window;
+	}
+
+	/**
+	 * Returns running or stopped measurement window with a given name or {@code null} if there is none.
+	 */
+	public synchronized MeasurementWindow getWindow(String name) {
+		return windows.get(name);
+	}
+
+	private void copyCumulativeSnapshotTo(SnapshotRoot ss) {
+		copyTotalSnapshotTo(ss);
+		ss.addDeep(discarded);
+	}
+
+	private boolean forgetOldestStoppedWindow() {
+		for (Iterator<MeasurementWindow> it = windows.values().iterator(); it.hasNext();)
+			if (!it.next().isRunning()) {
+				it.remove();
+				return true;
+			}
+		return false;
+	}
+
+	private boolean hasRunningWindows() {
+		for (MeasurementWindow window : windows.values())
+			if (window.isRunning())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Captures snapshot and queues it to be written to file in background
+	 * in {@link Configuration#getFileFormat() file.format}.
+	 * Waits (without holding the lock) only when both dump buffers are still being written.
+	 */
+	public void makeDump(boolean dumpAll) {
+		makeDump(dumpAll, format);
+	}
+
+	/**
+	 * Captures snapshot and queues it to be written to file in background in a given format.
+	 */
+	public void makeDump(boolean dumpAll, DumpFormat format) {
+		if (!isDumpEnabled())
 			return; // do not dump
+		DumpBuffer buffer = takeFreeBuffer();
+		if (buffer != null)
+			captureDump(buffer, dumpAll, format);
+	}
+
+	private boolean isDumpEnabled() {
+		return config.getFile().length() > 0 || config.getJournalFile().length() > 0;
+	}
+
+	// returns null when interrupted
+	private DumpBuffer takeFreeBuffer() {
+		try {
+			return freeBuffers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.out.println("Interrupted while waiting for previous dump to be written");
+			return null;
+		}
+	}
+
+	/**
+	 * Waits until all captured dumps are written.
+	 */
+	public void waitDumpsWritten() throws InterruptedException {
+		DumpBuffer[] buffers = takeAllBuffers();
+		for (int i = 0; i < BUFFERS; i++)
+			freeBuffers.add(buffers[i]);
+	}
+
+	/**
+	 * Waits until all captured dumps are written and closes journal.
+	 * Journal is reopened by the next dump.
+	 */
+	public void closeJournal() throws InterruptedException {
+		DumpBuffer[] buffers = takeAllBuffers(); // writer thread is idle now
+		try {
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (int i = 0; i < BUFFERS; i++)
+				freeBuffers.add(buffers[i]);
+		}
+	}
+
+	private DumpBuffer[] takeAllBuffers() throws InterruptedException {
+		DumpBuffer[] buffers = new DumpBuffer[BUFFERS];
+		for (int i = 0; i < BUFFERS; i++)
+			buffers[i] = freeBuffers.take();
+		return buffers;
+	}
+
+	private synchronized void captureDump(DumpBuffer buffer, boolean dumpAll, DumpFormat format) {
+		String fileName = config.getFile();
 		boolean fileAppend = snapshotCount > fileNumber && config.isFileAppend();
 
 		int maskEnd = fileName.lastIndexOf('#');
@@ -98,16 +284,73 @@ public class Dumper {
 			sb.append(fileName.substring(maskEnd + 1));
 			fileName = sb.toString();
 		}
+		if (config.isFileGzip() && fileName.length() > 0 && !fileName.endsWith(GZIP_SUFFIX))
+			fileName += GZIP_SUFFIX;
 
-		Log.out.println("Writing dump to file " + fileName + "...");
 		AProfRegistry.takeSnapshot(last);
 		total.addDeep(last);
 		snapshotCount++;
 
+		long now = System.currentTimeMillis();
+		buffer.fileName = fileName;
+		buffer.fileAppend = fileAppend;
+		buffer.numbered = maskEnd >= 0;
+		buffer.dumpAll = dumpAll;
+		buffer.format = format;
+		buffer.now = now;
+		buffer.transformedCount = AProfRegistry.getCount();
+		buffer.locationCount = AProfRegistry.getLocationCount();
+		buffer.transformTime = AProfRegistry.getTime();
+		buffer.frameRecomputeCount = AProfRegistry.getFrameRecomputeCount();
+		buffer.classLoaderCount = AProfRegistry.getClassLoaderCount();
+		buffer.classInfoContendedCount = AProfRegistry.getClassInfoContendedCount();
+		buffer.classInfoWaitCount = AProfRegistry.getClassInfoWaitCount();
+		buffer.snapshotCount = snapshotCount;
+		buffer.overflowCount = overflowCount;
+		if (!dumpAll || config.getJournalFile().length() > 0) {
+			buffer.last.clearDeep();
+			buffer.last.addDeep(last);
+			buffer.last.setTime(now - lastTime);
+			buffer.lastStart = lastTime;
+			lastTime = now;
+		}
+		buffer.total.clearDeep();
+		buffer.total.addDeep(total);
+		buffer.total.setTime(now - totalStart);
+		last.clearDeep();
+
+		filledBuffers.add(buffer); // under lock to keep dumps in order
+		if (writer == null) {
+			writer = new DumpWriterThread(this);
+			writer.start();
+		}
+	}
+
+	void writeNextDump() throws InterruptedException {
+		DumpBuffer buffer = filledBuffers.take();
+		try {
+			if (buffer.fileName.length() > 0)
+				writeDump(buffer);
+			if (config.getJournalFile().length() > 0)
+				writeJournal(buffer);
+		} finally {
+			freeBuffers.add(buffer);
+		}
+	}
+
+	private void writeDump(DumpBuffer buffer) {
+		File file = new File(buffer.fileName);
+		boolean fileAppend = buffer.fileAppend;
+		if (fileAppend && config.getFileSize() > 0 && file.length() >= config.getFileSize()) {
+			if (!buffer.numbered)
+				rotate(file);
+			fileAppend = false; // numbered files are already rotated by count, so just rewrite
+		}
+		Log.out.println("Writing dump to file " + buffer.fileName + "...");
 		PrintWriter out = null;
 		try {
-			out = new PrintWriter(new FastOutputStreamWriter(new FileOutputStream(fileName, fileAppend)));
-			dumpAll(out, dumpAll);
+			out = new PrintWriter(FastChannelWriter.open(file, fileAppend, config.isFileGzip()));
+			dumpAll(out, buffer);
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
@@ -118,8 +361,38 @@ public class Dumper {
 					e.printStackTrace();
 				}
 		}
-		last.clearDeep();
-		Log.out.println("Writing dump to file " + fileName + "... done");
+		Log.out.println("Writing dump to file " + buffer.fileName + "... done");
+	}
+
+	private void writeJournal(DumpBuffer buffer) {
+		try {
+			if (journal == null)
+				journal = new SnapshotJournal(new File(config.getJournalFile()));
+			journal.append(buffer.last, buffer.lastStart, buffer.now);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// shifts file to file.1, file.1 to file.2, and so on up to filecount files in total
+	private void rotate(File file) {
+		int backups = config.getFilecount() == 0 ? Integer.MAX_VALUE : config.getFilecount() - 1;
+		if (backups <= 0)
+			return; // just rewrite
+		Log.out.println("Rotating dump file " + file + " after it has reached " + file.length() + " bytes");
+		int n = 1;
+		while (n < backups && getBackupFile(file, n).exists())
+			n++;
+		for (int i = n; i > 0; i--) {
+			File from = i == 1 ? file : getBackupFile(file, i - 1);
+			File to = getBackupFile(file, i);
+			if (to.exists() && !to.delete() || !from.renameTo(to))
+				Log.out.println("Failed to rename " + from + " to " + to);
+		}
+	}
+
+	private static File getBackupFile(File file, int i) {
+		return new File(file.getPath() + "." + i);
 	}
 
 	private String resize(String str, int length) {
@@ -135,30 +408,28 @@ public class Dumper {
 		return sb.toString();
 	}
 
-	private void dumpAll(PrintWriter out, boolean dumpAll) {
-		long now = System.currentTimeMillis();
-		dumpReportHeader(out, now);
-
-		if (!dumpAll) {
-			last.setTime(now - lastTime);
-			lastTime = now;
-			formatter.dumpSnapshot(out, last, "LAST");
-		}
-
-		total.setTime(now - start);
-		formatter.dumpSnapshot(out, total, "TOTAL");
-		out.println();
+	private void dumpAll(PrintWriter out, DumpBuffer buffer) {
+		SnapshotFormatter formatter = formatters.get(buffer.format);
+		if (formatter == null)
+			formatters.put(buffer.format, formatter = buffer.format.createFormatter(config));
+		if (buffer.format == DumpFormat.TEXT)
+			dumpReportHeader(out, buffer);
+		if (!buffer.dumpAll)
+			formatter.dumpSnapshot(out, buffer.last, "LAST");
+		formatter.dumpSnapshot(out, buffer.total, "TOTAL");
+		if (buffer.format == DumpFormat.TEXT)
+			out.println();
 	}
 
-	private long dumpReportHeader(PrintWriter out, long now) {
-		long uptime = now - start;
+	private long dumpReportHeader(PrintWriter out, DumpBuffer buffer) {
+		long uptime = buffer.now - start;
 		//------ start with tear line
 		printlnTearLine(out, '#');
 		//------ Line #1
 		out.println(Version.full());
 		//------ Line #2
 		out.print("Allocation dump at ");
-		printTimeAndDate(out, System.currentTimeMillis());
+		printTimeAndDate(out, buffer.now);
 		out.print(". Uptime ");
 		printNum(out, uptime);
 		out.print(" ms (");
@@ -169,22 +440,56 @@ public class Dumper {
 		out.println(argsStr);
 		//------ Line #4
 		out.print("Transformed ");
-		printNum(out, AProfRegistry.getCount());
+		printNum(out, buffer.transformedCount);
 		out.print(" classes and registered ");
-		printNum(out, AProfRegistry.getLocationCount());
+		printNum(out, buffer.locationCount);
 		out.print(" locations in ");
-		FastFmtUtil.printNumPercent(out, AProfRegistry.getTime(), uptime);
-		out.print(" ms");
+		FastFmtUtil.printNumPercent(out, buffer.transformTime, uptime);
+		out.print(" ms, recomputed frames of ");
+		printNum(out, buffer.frameRecomputeCount);
+		out.print(" methods");
 		out.println();
-		//------ Line #4
+		//------ Line #5
+		out.print("Cached class info of ");
+		printNum(out, buffer.classLoaderCount);
+		out.print(" class loaders with ");
+		printNum(out, buffer.classInfoContendedCount);
+		out.print(" contended locks and ");
+		printNum(out, buffer.classInfoWaitCount);
+		out.println(" waits for initialization");
+		//------ Line #6
 		out.print("Snapshot of counters was made ");
-		printNum(out, snapshotCount);
+		printNum(out, buffer.snapshotCount);
 		out.print(" times to write file and ");
-		printNum(out, overflowCount);
+		printNum(out, buffer.overflowCount);
 		out.println(" times to prevent overflow");
 		//------ end with tear line
 		printlnTearLine(out, '#');
 		return uptime;
 	}
 
+	/**
+	 * Snapshots and counters captured for one dump. It is owned either by the capturing thread
+	 * or by the writer thread, but never by both at the same time.
+	 */
+	private static class DumpBuffer {
+		final SnapshotRoot last = new SnapshotRoot();
+		final SnapshotRoot total = new SnapshotRoot();
+		String fileName;
+		boolean fileAppend;
+		boolean numbered;
+		boolean dumpAll;
+		DumpFormat format;
+		long now;
+		long lastStart;
+		int transformedCount;
+		int locationCount;
+		long transformTime;
+		int frameRecomputeCount;
+		int classLoaderCount;
+		int classInfoContendedCount;
+		int classInfoWaitCount;
+		int snapshotCount;
+		int overflowCount;
+	}
 }
@@ -0,0 +1,108 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+import com.devexperts.aprof.util.Log;
+
+/**
+ * Answers single HTTP/1.x request for allocation metrics and closes connection.
+ * It runs in {@link HttpMetricsListenerThread}, so connections are served one at a time.
+ */
+class HttpMetricsHandler {
+	private static final String ENCODING = "ISO-8859-1";
+
+	private final Socket s;
+	private final int timeout;
+	private final HttpMetricsListenerThread listener;
+
+	HttpMetricsHandler(Socket s, int timeout, HttpMetricsListenerThread listener) {
+		this.s = s;
+		this.timeout = timeout;
+		this.listener = listener;
+	}
+
+	void handle() {
+		try {
+			s.setSoTimeout(timeout);
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ENCODING));
+			OutputStream out = new BufferedOutputStream(s.getOutputStream());
+			String request = in.readLine();
+			if (request == null)
+				return;
+			boolean openMetrics = false;
+			String line;
+			while ((line = in.readLine()) != null && line.length() > 0) {
+				line = line.toLowerCase(Locale.US);
+				if (line.startsWith("accept:") && line.indexOf("application/openmetrics-text") >= 0)
+					openMetrics = true;
+			}
+			String[] parts = request.split(" ");
+			if (parts.length < 2) {
+				respond(out, "400 Bad Request", null, null);
+			} else if (!parts[0].equals("GET") && !parts[0].equals("HEAD")) {
+				respond(out, "405 Method Not Allowed", null, null);
+			} else {
+				String path = parts[1];
+				int i = path.indexOf('?');
+				if (i >= 0)
+					path = path.substring(0, i);
+				if (path.equals("/metrics") || path.equals("/"))
+					respond(out, "200 OK",
+						openMetrics ? OpenMetricsFormatter.OPEN_METRICS_CONTENT_TYPE : OpenMetricsFormatter.TEXT_CONTENT_TYPE,
+						parts[0].equals("GET") ? listener.getMetrics(openMetrics) : null);
+				else
+					respond(out, "404 Not Found", null, null);
+			}
+		} catch (SocketTimeoutException e) {
+			Log.out.println("Timed out reading metrics request from " + s.getRemoteSocketAddress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			e.printStackTrace(); // listener keeps serving other requests
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void respond(OutputStream out, String status, String contentType, byte[] body) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (contentType != null)
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+		sb.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+		sb.append("Connection: close\r\n\r\n");
+		out.write(sb.toString().getBytes(ENCODING));
+		if (body != null)
+			out.write(body);
+		out.flush();
+	}
+}
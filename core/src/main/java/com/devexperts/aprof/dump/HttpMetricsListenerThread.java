@@ -0,0 +1,95 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.devexperts.aprof.Configuration;
+
+/**
+ * Serves allocation metrics over HTTP for Prometheus-compatible scrapers.
+ * Metrics are formatted from {@link SnapshotCache} and are reformatted only when it is refreshed.
+ * Requests are served one at a time in this thread with a short socket timeout,
+ * so clients cannot make profiled JVM start any threads.
+ */
+public class HttpMetricsListenerThread extends Thread {
+	private static final String ENCODING = "UTF-8";
+	private static final int SO_TIMEOUT = 5000;
+
+	private final int port;
+	private final SnapshotCache cache;
+	private final OpenMetricsFormatter formatter;
+
+	private SnapshotRoot snapshot;
+	private byte[] openMetrics;
+	private byte[] text;
+
+	public HttpMetricsListenerThread(Configuration config, SnapshotCache cache) {
+		super("Aprof-MetricsListener");
+		setDaemon(true);
+		this.port = config.getHttpPort();
+		this.cache = cache;
+		this.formatter = new OpenMetricsFormatter(config.getMetricsTop(), config.isSize());
+	}
+
+	@Override
+	public void run() {
+		try {
+			ServerSocket ss = new ServerSocket(port);
+			while (!Thread.interrupted()) {
+				Socket s = ss.accept();
+				new HttpMetricsHandler(s, SO_TIMEOUT, this).handle();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	synchronized byte[] getMetrics(boolean openMetricsFormat) throws IOException {
+		SnapshotRoot ss = cache.getSnapshot();
+		if (ss != snapshot) {
+			snapshot = ss;
+			openMetrics = null;
+			text = null;
+		}
+		if (openMetricsFormat) {
+			if (openMetrics == null)
+				openMetrics = format(true);
+			return openMetrics;
+		} else {
+			if (text == null)
+				text = format(false);
+			return text;
+		}
+	}
+
+	private byte[] format(boolean openMetricsFormat) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(buf, ENCODING));
+		formatter.format(out, snapshot, openMetricsFormat);
+		out.close();
+		return buf.toByteArray();
+	}
+}
@@ -0,0 +1,139 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+
+import com.devexperts.aprof.Configuration;
+
+import static com.devexperts.aprof.util.FastFmtUtil.printPlainNum;
+
+/**
+ * Streams snapshot as JSON lines, one line per non-empty leaf of the snapshot tree:
+ * <pre>
+ * {"kind":"TOTAL","time":60000,"type":"char[]","path":["java.lang.StringBuilder.&lt;init&gt;","com.acme.Foo.bar"],"count":10,"bytes":480,"histogram":[2,3,5]}
+ * </pre>
+ * Path lists allocation location first and then outer tracked locations. Histogram is present for
+ * data types with histogram only and starts with the count of the smallest bracket.
+ * Snapshot is walked once without any intermediate structures.
+ * <b>This class is not thread-safe</b>.
+ */
+public class JsonLinesFormatter implements SnapshotFormatter {
+	private final Configuration config;
+	private SnapshotDeep[] path = new SnapshotDeep[16];
+
+	public JsonLinesFormatter(Configuration config) {
+		this.config = config;
+	}
+
+	public void dumpSnapshot(PrintWriter out, SnapshotRoot ss, String kind) {
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep cs = ss.getChild(i);
+			if (!cs.isEmpty())
+				dumpDeep(out, ss, kind, cs, cs, 0);
+		}
+	}
+
+	private void dumpDeep(PrintWriter out, SnapshotRoot ss, String kind, SnapshotDeep dataType, SnapshotDeep item, int depth) {
+		if (!item.hasChildren()) {
+			dumpRecord(out, ss, kind, dataType, item, depth);
+			return;
+		}
+		if (depth == path.length) {
+			SnapshotDeep[] newPath = new SnapshotDeep[depth * 2];
+			System.arraycopy(path, 0, newPath, 0, depth);
+			path = newPath;
+		}
+		for (int i = 0; i < item.getUsed(); i++) {
+			SnapshotDeep cs = item.getChild(i);
+			if (cs.isEmpty())
+				continue; // ignore empty items
+			path[depth] = cs;
+			dumpDeep(out, ss, kind, dataType, cs, depth + 1);
+		}
+	}
+
+	private void dumpRecord(PrintWriter out, SnapshotRoot ss, String kind, SnapshotDeep dataType, SnapshotDeep item, int depth) {
+		out.print("{\"kind\":");
+		printString(out, kind);
+		out.print(",\"time\":");
+		printPlainNum(out, ss.getTime());
+		out.print(",\"type\":");
+		printString(out, dataType.getName());
+		out.print(",\"path\":[");
+		for (int i = 0; i < depth; i++) {
+			if (i > 0)
+				out.print(',');
+			printString(out, path[i].getName());
+		}
+		out.print("],\"count\":");
+		printPlainNum(out, item.getTotalCount());
+		if (config.isSize()) {
+			out.print(",\"bytes\":");
+			printPlainNum(out, item.getSize());
+		}
+		long[] counts = item.getHistoCounts();
+		if (counts.length > 0) {
+			out.print(",\"histogram\":[");
+			printPlainNum(out, item.getCount()); // smallest bracket first
+			for (long count : counts) {
+				out.print(',');
+				printPlainNum(out, count);
+			}
+			out.print(']');
+		}
+		if (item.isPossiblyEliminatedAllocation())
+			out.print(",\"possiblyEliminated\":true");
+		out.print('}');
+		out.print('\n');
+	}
+
+	private static void printString(PrintWriter out, String s) {
+		out.print('"');
+		if (!needsEscape(s))
+			out.print(s);
+		else
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					out.print('\\');
+					out.print(c);
+				} else if (c < 0x20) {
+					out.print("\\u00");
+					out.print(Character.forDigit(c >> 4, 16));
+					out.print(Character.forDigit(c & 0xf, 16));
+				} else
+					out.print(c);
+			}
+		out.print('"');
+	}
+
+	private static boolean needsEscape(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\' || c < 0x20)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,109 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import static com.devexperts.aprof.util.FastFmtUtil.*;
+
+/**
+ * Named measurement window that captures baseline snapshot on start and
+ * allocations made since start on stop. Windows are managed by {@link Dumper} and may overlap.
+ */
+public class MeasurementWindow {
+	public static final int REPORT_TOP = 20;
+
+	private final String name;
+	private final long startTime;
+	private SnapshotRoot baseline;
+	private SnapshotRoot result;
+
+	MeasurementWindow(String name, long startTime, SnapshotRoot baseline) {
+		this.name = name;
+		this.startTime = startTime;
+		this.baseline = baseline;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public boolean isRunning() {
+		return result == null;
+	}
+
+	/**
+	 * Returns allocations made in this window with window duration as its time
+	 * or {@code null} while window is running.
+	 */
+	public SnapshotRoot getResult() {
+		return result;
+	}
+
+	// current is a cumulative snapshot that is consumed by this method
+	void stop(long stopTime, SnapshotRoot current) {
+		current.subDeep(baseline);
+		current.setTime(stopTime - startTime);
+		baseline = null;
+		result = current;
+	}
+
+	/**
+	 * Prints allocation rates of the whole window and its top allocation sites followed by formatted snapshot.
+	 */
+	public static void printReport(PrintWriter out, String name, SnapshotRoot result, boolean size, SnapshotFormatter formatter) {
+		long time = Math.max(1, result.getTime());
+		out.print("Window " + name + " for ");
+		printNum(out, result.getTime());
+		out.print(" ms (");
+		printTimePeriod(out, result.getTime());
+		out.println(")");
+		out.print("Allocated ");
+		printRate(out, result.getSize(), time);
+		out.print(" bytes/s in ");
+		printRate(out, result.getTotalCount(), time);
+		out.println(" objects/s");
+		List<AllocationSite> sites = AllocationSite.selectTop(result, REPORT_TOP, true, size);
+		if (!sites.isEmpty()) {
+			out.println("Top allocation sites:");
+			for (AllocationSite site : sites) {
+				out.print("\t");
+				printRate(out, site.getSize(), time);
+				out.print(" bytes/s, ");
+				printRate(out, site.getCount(), time);
+				out.println(" objects/s: " + site.getType() + " at " + site.getLocation());
+			}
+		}
+		out.println();
+		formatter.dumpSnapshot(out, result, "WINDOW " + name);
+	}
+
+	private static void printRate(PrintWriter out, long value, long millis) {
+		printNum(out, Math.round(value * 1000.0 / millis));
+	}
+}
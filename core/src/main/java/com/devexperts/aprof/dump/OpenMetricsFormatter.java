@@ -0,0 +1,132 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import static com.devexperts.aprof.util.FastFmtUtil.print3;
+import static com.devexperts.aprof.util.FastFmtUtil.printPlainNum;
+
+/**
+ * Formats total snapshot as OpenMetrics text (or as Prometheus text format version 0.0.4 for older scrapers).
+ * All allocation metrics are counters, so that rates are computed by monitoring system,
+ * and only top data types and top allocation sites (data type and its allocation location) are exposed.
+ */
+public class OpenMetricsFormatter {
+	public static final String OPEN_METRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+	public static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final int top;
+	private final boolean size;
+
+	public OpenMetricsFormatter(int top, boolean size) {
+		this.top = top;
+		this.size = size;
+	}
+
+	public void format(PrintWriter out, SnapshotRoot ss, boolean openMetrics) {
+		printHeader(out, "aprof_uptime_seconds", "gauge", "Time since aprof agent start.");
+		out.print("aprof_uptime_seconds ");
+		printPlainNum(out, ss.getTime() / 1000);
+		out.print('.');
+		print3(out, (int)(ss.getTime() % 1000), true);
+		out.print('\n');
+
+		printCounterHeader(out, "aprof_allocated_objects", "Objects allocated.", openMetrics);
+		printSample(out, "aprof_allocated_objects_total", null, null, ss.getTotalCount());
+		if (size) {
+			printCounterHeader(out, "aprof_allocated_bytes", "Bytes allocated.", openMetrics);
+			printSample(out, "aprof_allocated_bytes_total", null, null, ss.getSize());
+		}
+
+		List<AllocationSite> types = AllocationSite.selectTop(ss, top, false, size);
+		printCounterHeader(out, "aprof_type_allocated_objects", "Objects allocated by top data types.", openMetrics);
+		for (AllocationSite site : types)
+			printSample(out, "aprof_type_allocated_objects_total", site.getType(), null, site.getCount());
+		if (size) {
+			printCounterHeader(out, "aprof_type_allocated_bytes", "Bytes allocated by top data types.", openMetrics);
+			for (AllocationSite site : types)
+				printSample(out, "aprof_type_allocated_bytes_total", site.getType(), null, site.getSize());
+		}
+
+		List<AllocationSite> sites = AllocationSite.selectTop(ss, top, true, size);
+		printCounterHeader(out, "aprof_site_allocated_objects", "Objects allocated at top allocation sites.", openMetrics);
+		for (AllocationSite site : sites)
+			printSample(out, "aprof_site_allocated_objects_total", site.getType(), site.getLocation(), site.getCount());
+		if (size) {
+			printCounterHeader(out, "aprof_site_allocated_bytes", "Bytes allocated at top allocation sites.", openMetrics);
+			for (AllocationSite site : sites)
+				printSample(out, "aprof_site_allocated_bytes_total", site.getType(), site.getLocation(), site.getSize());
+		}
+		if (openMetrics)
+			out.print("# EOF\n");
+	}
+
+	private static void printCounterHeader(PrintWriter out, String family, String help, boolean openMetrics) {
+		// Prometheus text format names counters with their _total suffix
+		printHeader(out, openMetrics ? family : family + "_total", "counter", help);
+	}
+
+	private static void printHeader(PrintWriter out, String name, String type, String help) {
+		out.print("# TYPE ");
+		out.print(name);
+		out.print(' ');
+		out.print(type);
+		out.print('\n');
+		out.print("# HELP ");
+		out.print(name);
+		out.print(' ');
+		out.print(help);
+		out.print('\n');
+	}
+
+	private static void printSample(PrintWriter out, String name, String type, String location, long value) {
+		out.print(name);
+		if (type != null) {
+			out.print("{type=\"");
+			printLabelValue(out, type);
+			if (location != null) {
+				out.print("\",location=\"");
+				printLabelValue(out, location);
+			}
+			out.print("\"}");
+		}
+		out.print(' ');
+		printPlainNum(out, value);
+		out.print('\n');
+	}
+
+	private static void printLabelValue(PrintWriter out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' || c == '"') {
+				out.print('\\');
+				out.print(c);
+			} else if (c == '\n')
+				out.print("\\n");
+			else
+				out.print(c);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.devexperts.aprof.util.FastFmtUtil.printNum;
+
+/**
+ * Concurrently retrieves total snapshots from many aprof agents and merges them into a single profile.
+ */
+public class SnapshotAggregator {
+	private static final int MAX_THREADS = 32;
+
+	private final List<String> addresses;
+	private final int timeout;
+	private final ExecutorService executor;
+
+	public SnapshotAggregator(List<String> addresses, int timeout) {
+		this.addresses = addresses;
+		this.timeout = timeout;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(addresses.size(), MAX_THREADS)),
+			new AggregatorThreadFactory());
+	}
+
+	public Result aggregate() throws InterruptedException {
+		List<Future<SnapshotRoot>> futures = new ArrayList<Future<SnapshotRoot>>(addresses.size());
+		for (final String address : addresses)
+			futures.add(executor.submit(new Callable<SnapshotRoot>() {
+				public SnapshotRoot call() throws IOException {
+					return SnapshotClient.fetch(address, timeout);
+				}
+			}));
+		Result result = new Result(addresses);
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				result.nodes[i] = futures.get(i).get();
+			} catch (ExecutionException e) {
+				result.errors[i] = String.valueOf(e.getCause());
+			}
+		}
+		result.merged = merge(result.nodes);
+		return result;
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Merges snapshots, skipping <code>null</code> ones. The time of merged snapshot is the longest one.
+	 */
+	public static SnapshotRoot merge(SnapshotRoot[] nodes) {
+		SnapshotRoot merged = new SnapshotRoot();
+		long time = 0;
+		for (SnapshotRoot ss : nodes)
+			if (ss != null) {
+				merged.addDeep(ss);
+				time = Math.max(time, ss.getTime());
+			}
+		merged.setTime(time);
+		return merged;
+	}
+
+	public static class Result {
+		private final List<String> addresses;
+		private final SnapshotRoot[] nodes;
+		private final String[] errors;
+		private SnapshotRoot merged;
+
+		Result(List<String> addresses) {
+			this.addresses = addresses;
+			this.nodes = new SnapshotRoot[addresses.size()];
+			this.errors = new String[addresses.size()];
+		}
+
+		public SnapshotRoot getMerged() {
+			return merged;
+		}
+
+		public int getFailedCount() {
+			int n = 0;
+			for (String error : errors)
+				if (error != null)
+					n++;
+			return n;
+		}
+
+		public void printNodeTotals(PrintWriter out) {
+			for (int i = 0; i < nodes.length; i++)
+				if (nodes[i] != null)
+					printTotals(out, addresses.get(i), nodes[i]);
+				else
+					out.println(addresses.get(i) + ": failed: " + errors[i]);
+			printTotals(out, "MERGED from " + (nodes.length - getFailedCount()) + " of " + nodes.length + " nodes", merged);
+		}
+
+		private static void printTotals(PrintWriter out, String title, SnapshotRoot ss) {
+			out.print(title);
+			out.print(": ");
+			printNum(out, ss.getSize());
+			out.print(" bytes in ");
+			printNum(out, ss.getTotalCount());
+			out.print(" objects for ");
+			printNum(out, ss.getTime());
+			out.println(" ms");
+		}
+	}
+
+	private static class AggregatorThreadFactory implements ThreadFactory {
+		private final AtomicInteger number = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Aprof-Aggregator-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
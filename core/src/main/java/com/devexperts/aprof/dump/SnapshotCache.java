@@ -0,0 +1,57 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Keeps total snapshot for monitoring requests (HTTP and JMX), so that snapshot of
+ * {@link com.devexperts.aprof.AProfRegistry registry} is taken at most once per refresh period
+ * regardless of the number of monitoring clients.
+ * Returned snapshots are never modified and shall not be modified by callers.
+ */
+public class SnapshotCache {
+	private final Dumper dumper;
+	private final long refresh;
+
+	private SnapshotRoot snapshot;
+	private long lastRefresh;
+
+	public SnapshotCache(Dumper dumper, long refresh) {
+		this.dumper = dumper;
+		this.refresh = refresh;
+	}
+
+	public synchronized SnapshotRoot getSnapshot() {
+		long now = System.currentTimeMillis();
+		if (snapshot == null || now - lastRefresh >= refresh) {
+			SnapshotRoot ss = new SnapshotRoot();
+			dumper.copyTotalSnapshotTo(ss);
+			snapshot = ss;
+			lastRefresh = now;
+		}
+		return snapshot;
+	}
+
+	public synchronized void invalidate() {
+		snapshot = null;
+	}
+}
@@ -0,0 +1,121 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends commands to a running aprof agent over its socket protocol
+ * (see {@link com.devexperts.aprof.Configuration#getPort() port} option).
+ */
+public class SnapshotClient {
+	public static final String ERROR_PREFIX = "ERROR: ";
+
+	private static final String ENCODING = "UTF-8";
+	private static final int STREAM_MAGIC_FIRST_BYTE = 0xac;
+
+	private SnapshotClient() {} // do not create
+
+	/**
+	 * Retrieves total snapshot from the specified <code>[host:]port</code> address.
+	 *
+	 * @param timeout connect and read timeout in milliseconds (0 -- no timeout).
+	 */
+	public static SnapshotRoot fetch(String address, int timeout) throws IOException {
+		return fetch(address, timeout, "DUMP");
+	}
+
+	/**
+	 * Retrieves a part of total snapshot that matches the {@link SnapshotQuery query},
+	 * a stopped {@link MeasurementWindow measurement window} for <code>WINDOW STOP|GET &lt;name&gt;</code> command,
+	 * or the whole snapshot for <code>DUMP</code> command.
+	 *
+	 * @param timeout connect and read timeout in milliseconds (0 -- no timeout).
+	 * @throws IOException if communication fails or agent rejects the query.
+	 */
+	public static SnapshotRoot fetch(String address, int timeout, String command) throws IOException {
+		Socket socket = connect(address, timeout);
+		try {
+			OutputStream outputStream = socket.getOutputStream();
+			outputStream.write((command + "\r\n").getBytes(ENCODING));
+			outputStream.flush();
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			in.mark(1);
+			int first = in.read();
+			if (first < 0)
+				throw new EOFException("Connection closed by " + address);
+			in.reset();
+			if (first != STREAM_MAGIC_FIRST_BYTE) // text error message instead of serialized snapshot
+				throw new IOException(new BufferedReader(new InputStreamReader(in, ENCODING)).readLine());
+			ObjectInputStream ois = new ObjectInputStream(in);
+			try {
+				return (SnapshotRoot)ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unexpected response from " + address + ": " + e);
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Sends command with a text response to the specified <code>[host:]port</code> address.
+	 *
+	 * @param timeout connect and read timeout in milliseconds (0 -- no timeout).
+	 * @return response line.
+	 * @throws IOException if communication fails or agent rejects the command.
+	 */
+	public static String sendCommand(String address, int timeout, String command) throws IOException {
+		Socket socket = connect(address, timeout);
+		try {
+			OutputStream outputStream = socket.getOutputStream();
+			outputStream.write((command + "\r\n").getBytes(ENCODING));
+			outputStream.flush();
+			String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), ENCODING)).readLine();
+			if (line == null)
+				throw new EOFException("Connection closed by " + address);
+			if (line.startsWith(ERROR_PREFIX))
+				throw new IOException(line);
+			return line;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static Socket connect(String address, int timeout) throws IOException {
+		int i = address.lastIndexOf(':');
+		String host = i < 0 ? "localhost" : address.substring(0, i);
+		int port = Integer.parseInt(address.substring(i + 1).trim());
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setSoTimeout(timeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+}
@@ -241,6 +241,14 @@ public class SnapshotDeep extends SnapshotShallow {
 		return i;
 	}
 
+	// appends child with a name that is known to be absent
+	public void addChild(SnapshotDeep child) {
+		ensureChildrenCapacity(used + 1);
+		children[used++] = child;
+		if (isPossiblyEliminatedAllocation())
+			child.setPossiblyEliminatedAllocation();
+	}
+
 	public SnapshotDeep getOrCreateChildAt(int index, String name) {
 		// inherit isArray and histogramLength attributes
 		return getOrCreateChildAt(index, name, isArray(), getHistoCountsLength());
@@ -0,0 +1,202 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.PrintWriter;
+import java.util.*;
+
+import static com.devexperts.aprof.util.FastFmtUtil.*;
+
+/**
+ * Aligns two snapshots by data type and location path and compares allocation rates per second.
+ * Every leaf of snapshot tree is a site with a key of the form <code>type;location;location...</code>.
+ */
+public class SnapshotDiff {
+	public static final char PATH_SEPARATOR = ';';
+
+	public enum Metric {
+		BYTES("bytes") {
+			@Override
+			public long getValue(SnapshotShallow ss) {
+				return ss.getSize();
+			}
+		},
+
+		COUNT("count") {
+			@Override
+			public long getValue(SnapshotShallow ss) {
+				return ss.getTotalCount();
+			}
+		};
+
+		private final String name;
+
+		Metric(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public abstract long getValue(SnapshotShallow ss);
+
+		public static Metric forName(String name) {
+			for (Metric metric : values())
+				if (metric.name.equalsIgnoreCase(name))
+					return metric;
+			return null;
+		}
+	}
+
+	public class Site {
+		private final String key;
+		private final SnapshotShallow baseline = new SnapshotShallow();
+		private final SnapshotShallow current = new SnapshotShallow();
+		private boolean inBaseline;
+
+		Site(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isInBaseline() {
+			return inBaseline;
+		}
+
+		public double getBaselineRate(Metric metric) {
+			return metric.getValue(baseline) / baselineSeconds;
+		}
+
+		public double getCurrentRate(Metric metric) {
+			return metric.getValue(current) / currentSeconds;
+		}
+
+		public double getDeltaRate(Metric metric) {
+			return getCurrentRate(metric) - getBaselineRate(metric);
+		}
+	}
+
+	private final Map<String, Site> sites = new LinkedHashMap<String, Site>();
+	private final double baselineSeconds;
+	private final double currentSeconds;
+
+	/**
+	 * Snapshot times are used to normalize values per second, snapshots without time are taken as 1 second long.
+	 */
+	public SnapshotDiff(SnapshotRoot baseline, SnapshotRoot current) {
+		baselineSeconds = getSeconds(baseline);
+		currentSeconds = getSeconds(current);
+		StringBuilder sb = new StringBuilder();
+		collectSites(baseline, sb, true);
+		collectSites(current, sb, false);
+	}
+
+	private static double getSeconds(SnapshotRoot ss) {
+		return ss.getTime() > 0 ? ss.getTime() / 1000.0 : 1;
+	}
+
+	private void collectSites(SnapshotDeep ss, StringBuilder sb, boolean isBaseline) {
+		int length = sb.length();
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep item = ss.getChild(i);
+			if (item.isEmpty())
+				continue;
+			if (length > 0)
+				sb.append(PATH_SEPARATOR);
+			sb.append(item.getName());
+			if (item.hasChildren())
+				collectSites(item, sb, isBaseline);
+			else {
+				String key = sb.toString();
+				Site site = sites.get(key);
+				if (site == null)
+					sites.put(key, site = new Site(key));
+				if (isBaseline) {
+					site.baseline.addShallow(item);
+					site.inBaseline = true;
+				} else
+					site.current.addShallow(item);
+			}
+			sb.setLength(length);
+		}
+	}
+
+	public Collection<Site> getSites() {
+		return sites.values();
+	}
+
+	/**
+	 * Returns sites sorted by absolute change of their rate in the specified metric, largest first.
+	 */
+	public List<Site> getTopMovers(final Metric metric, int top) {
+		List<Site> list = new ArrayList<Site>(sites.values());
+		Collections.sort(list, new Comparator<Site>() {
+			public int compare(Site o1, Site o2) {
+				int cmp = Double.compare(Math.abs(o2.getDeltaRate(metric)), Math.abs(o1.getDeltaRate(metric)));
+				return cmp != 0 ? cmp : o1.key.compareTo(o2.key);
+			}
+		});
+		return list.size() > top ? list.subList(0, top) : list;
+	}
+
+	public void printTopMovers(PrintWriter out, int top) {
+		for (Metric metric : Metric.values()) {
+			out.print("Top ");
+			printNum(out, top);
+			out.println(" movers by " + metric.getName() + " per second");
+			for (Site site : getTopMovers(metric, top)) {
+				if (site.getDeltaRate(metric) == 0)
+					break;
+				out.print("\t");
+				out.print(site.key);
+				out.print(": ");
+				printRate(out, site, metric);
+				out.println();
+			}
+			out.println();
+		}
+	}
+
+	public void printRate(PrintWriter out, Site site, Metric metric) {
+		printNum(out, Math.round(site.getBaselineRate(metric)));
+		out.print(" -> ");
+		printNum(out, Math.round(site.getCurrentRate(metric)));
+		out.print(" ");
+		out.print(metric.getName());
+		out.print("/s (");
+		long delta = Math.round(site.getDeltaRate(metric));
+		if (delta >= 0)
+			out.print("+");
+		printNum(out, delta);
+		if (site.getBaselineRate(metric) > 0) {
+			out.print(", ");
+			printSignedPercent(out, site.getDeltaRate(metric) * 100 / site.getBaselineRate(metric));
+		} else
+			out.print(", new");
+		out.print(")");
+	}
+}
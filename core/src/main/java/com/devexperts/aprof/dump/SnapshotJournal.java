@@ -0,0 +1,203 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Append-only journal of snapshot deltas. Every record is a deflated snapshot tree with the time range
+ * it was collected over. Index file (journal file name with {@link #INDEX_SUFFIX}) keeps fixed-size entries
+ * of record start time, end time, and offset in journal, so that {@link SnapshotJournalReader} can map it
+ * into memory and binary search records by time. Index entry is written only after its record is forced
+ * to disk, and is forced itself before append returns, so a record that was not completely written is
+ * never referenced and an appended record is never lost from the index.
+ * <b>This class is not thread-safe</b>.
+ */
+public class SnapshotJournal implements Closeable {
+	public static final String INDEX_SUFFIX = ".idx";
+
+	static final int MAGIC = 0x41504a31; // "APJ1"
+	static final int INDEX_ENTRY_SIZE = 24;
+
+	private static final int FLAG_ARRAY = 1;
+	private static final int FLAG_POSSIBLY_ELIMINATED = 2;
+
+	private final FileChannel journal;
+	private final FileChannel index;
+	private final ByteBuffer header = ByteBuffer.allocate(8);
+	private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	public SnapshotJournal(File file) throws IOException {
+		journal = new RandomAccessFile(file, "rw").getChannel();
+		if (journal.size() >= 4) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			journal.read(magic, 0);
+			if (magic.getInt(0) != MAGIC) {
+				journal.close();
+				throw new IOException("Not an aprof snapshot journal: " + file);
+			}
+		}
+		index = new RandomAccessFile(getIndexFile(file), "rw").getChannel();
+		// drop partially written index entry and records that are not indexed
+		long entries = index.size() / INDEX_ENTRY_SIZE;
+		index.truncate(entries * INDEX_ENTRY_SIZE);
+		index.position(index.size());
+		long end = 0;
+		if (entries > 0) {
+			ByteBuffer last = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+			index.read(last, (entries - 1) * INDEX_ENTRY_SIZE);
+			long offset = last.getLong(16);
+			ByteBuffer length = ByteBuffer.allocate(4);
+			journal.read(length, offset);
+			end = offset + 4 + length.getInt(0);
+		}
+		if (end == 0) {
+			journal.truncate(0);
+			header.clear();
+			header.putInt(MAGIC).putInt(0).flip();
+			writeFully(journal, header, 0);
+			end = header.limit();
+		}
+		journal.truncate(end);
+		journal.position(end);
+	}
+
+	public static File getIndexFile(File file) {
+		return new File(file.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Appends snapshot delta that was collected from startTime to endTime.
+	 */
+	public void append(SnapshotRoot ss, long startTime, long endTime) throws IOException {
+		bytes.reset();
+		DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+		out.writeLong(startTime);
+		out.writeLong(endTime);
+		writeChildren(out, ss);
+		out.close();
+		long offset = journal.position();
+		header.clear();
+		header.putInt(bytes.size()).flip();
+		writeFully(journal, header, offset);
+		writeFully(journal, ByteBuffer.wrap(bytes.toByteArray()), offset + 4);
+		journal.position(offset + 4 + bytes.size());
+		journal.force(false);
+		entry.clear();
+		entry.putLong(startTime).putLong(endTime).putLong(offset).flip();
+		writeFully(index, entry, index.position());
+		index.position(index.position() + INDEX_ENTRY_SIZE);
+		index.force(false);
+	}
+
+	public void close() throws IOException {
+		try {
+			journal.close();
+		} finally {
+			index.close();
+		}
+	}
+
+	private static void writeChildren(DataOutputStream out, SnapshotDeep ss) throws IOException {
+		int n = 0;
+		for (int i = 0; i < ss.getUsed(); i++)
+			if (!ss.getChild(i).isEmpty())
+				n++;
+		writeVarLong(out, n);
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep item = ss.getChild(i);
+			if (item.isEmpty())
+				continue;
+			out.writeUTF(item.getName());
+			out.writeByte((item.isArray() ? FLAG_ARRAY : 0) |
+				(item.isPossiblyEliminatedAllocation() ? FLAG_POSSIBLY_ELIMINATED : 0));
+			writeVarLong(out, item.getCount());
+			writeVarLong(out, item.getSize());
+			long[] counts = item.getHistoCounts();
+			writeVarLong(out, counts.length);
+			for (long count : counts)
+				writeVarLong(out, count);
+			writeChildren(out, item);
+		}
+	}
+
+	static SnapshotRoot readRecord(DataInputStream in, long[] times) throws IOException {
+		times[0] = in.readLong();
+		times[1] = in.readLong();
+		SnapshotRoot ss = new SnapshotRoot();
+		readChildren(in, ss);
+		ss.updateSnapshotSumShallow();
+		ss.setTime(times[1] - times[0]);
+		return ss;
+	}
+
+	private static void readChildren(DataInputStream in, SnapshotDeep ss) throws IOException {
+		int n = (int)readVarLong(in);
+		ss.ensureChildrenCapacity(n);
+		for (int i = 0; i < n; i++) {
+			String name = in.readUTF();
+			int flags = in.readByte();
+			long count = readVarLong(in);
+			long size = readVarLong(in);
+			int histogramLength = (int)readVarLong(in);
+			// names are unique on each level
+			SnapshotDeep item = ss.getOrCreateChildAt(ss.getUsed(), name, (flags & FLAG_ARRAY) != 0, histogramLength);
+			if ((flags & FLAG_POSSIBLY_ELIMINATED) != 0)
+				item.setPossiblyEliminatedAllocation();
+			item.add(count, size);
+			for (int j = 0; j < histogramLength; j++)
+				item.addHistoCount(j, readVarLong(in));
+			readChildren(in, item);
+		}
+	}
+
+	// zig-zag encoding, so that small negative values (that are possible in deltas) are compact too
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		value = (value << 1) ^ (value >> 63);
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+}
@@ -0,0 +1,128 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads records of {@link SnapshotJournal} with memory-mapped time index.
+ * <b>This class is not thread-safe</b>.
+ */
+public class SnapshotJournalReader implements Closeable {
+	private final FileChannel journal;
+	private final MappedByteBuffer index;
+	private final int count;
+
+	public SnapshotJournalReader(File file) throws IOException {
+		journal = new FileInputStream(file).getChannel();
+		ByteBuffer header = ByteBuffer.allocate(4);
+		journal.read(header, 0);
+		if (header.position() < 4 || header.getInt(0) != SnapshotJournal.MAGIC) {
+			journal.close();
+			throw new IOException("Not an aprof snapshot journal: " + file);
+		}
+		FileChannel indexChannel = new FileInputStream(SnapshotJournal.getIndexFile(file)).getChannel();
+		try {
+			count = (int)(indexChannel.size() / SnapshotJournal.INDEX_ENTRY_SIZE);
+			index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long)count * SnapshotJournal.INDEX_ENTRY_SIZE);
+		} finally {
+			indexChannel.close();
+		}
+	}
+
+	public int getRecordCount() {
+		return count;
+	}
+
+	public long getStartTime(int i) {
+		return index.getLong(i * SnapshotJournal.INDEX_ENTRY_SIZE);
+	}
+
+	public long getEndTime(int i) {
+		return index.getLong(i * SnapshotJournal.INDEX_ENTRY_SIZE + 8);
+	}
+
+	private long getOffset(int i) {
+		return index.getLong(i * SnapshotJournal.INDEX_ENTRY_SIZE + 16);
+	}
+
+	/**
+	 * Returns index of the first record that ends after the specified time or {@link #getRecordCount()} if none.
+	 */
+	public int findFirstEndingAfter(long time) {
+		int a = 0;
+		int b = count;
+		while (a < b) {
+			int m = (a + b) >>> 1;
+			if (getEndTime(m) <= time)
+				a = m + 1;
+			else
+				b = m;
+		}
+		return a;
+	}
+
+	public SnapshotRoot readRecord(int i) throws IOException {
+		long offset = getOffset(i);
+		ByteBuffer length = ByteBuffer.allocate(4);
+		journal.read(length, offset);
+		ByteBuffer data = ByteBuffer.allocate(length.getInt(0));
+		while (data.hasRemaining())
+			if (journal.read(data, offset + 4 + data.position()) < 0)
+				throw new EOFException("Truncated record #" + i);
+		DataInputStream in = new DataInputStream(new InflaterInputStream(
+			new ByteArrayInputStream(data.array())));
+		return SnapshotJournal.readRecord(in, new long[2]);
+	}
+
+	/**
+	 * Sums all records that overlap with the specified time range.
+	 * Time of the resulting snapshot is the time range covered by those records.
+	 * @return null if there are no such records.
+	 */
+	public SnapshotRoot query(long from, long to) throws IOException {
+		SnapshotRoot result = null;
+		long start = 0;
+		long end = 0;
+		for (int i = findFirstEndingAfter(from); i < count && getStartTime(i) < to; i++) {
+			SnapshotRoot record = readRecord(i);
+			if (result == null) {
+				result = new SnapshotRoot();
+				start = getStartTime(i);
+			}
+			result.addDeep(record);
+			end = getEndTime(i);
+		}
+		if (result != null)
+			result.setTime(end - start);
+		return result;
+	}
+
+	public void close() throws IOException {
+		journal.close();
+	}
+}
@@ -0,0 +1,129 @@
+package com.devexperts.aprof.dump;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query that is evaluated by aprof agent to return only a pruned part of total snapshot:
+ * <pre>
+ * TOP &lt;n&gt; [BY SIZE|COUNT] [WHERE TYPE LIKE '&lt;pattern&gt;'] [DEPTH &lt;d&gt;]
+ * </pre>
+ * At most <code>n</code> largest children are kept at each level of the tree, and only
+ * <code>d</code> levels are kept (<code>DEPTH 1</code> keeps data types only).
+ * In pattern '%' matches any sequence of characters and '_' matches any single character.
+ * Totals of the result are the totals of all data types that match the pattern.
+ */
+public class SnapshotQuery {
+	public static final String COMMAND = "TOP";
+
+	private static final Pattern QUERY = Pattern.compile(
+		"TOP\\s+(\\d+)(?:\\s+BY\\s+(SIZE|COUNT))?(?:\\s+WHERE\\s+TYPE\\s+LIKE\\s+'((?:[^']|'')*)')?(?:\\s+DEPTH\\s+(\\d+))?",
+		Pattern.CASE_INSENSITIVE);
+
+	private final int top;
+	private final boolean bySize;
+	private final Pattern typePattern;
+	private final int depth;
+
+	private SnapshotQuery(int top, boolean bySize, Pattern typePattern, int depth) {
+		this.top = top;
+		this.bySize = bySize;
+		this.typePattern = typePattern;
+		this.depth = depth;
+	}
+
+	public static SnapshotQuery parse(String query) {
+		Matcher m = QUERY.matcher(query.trim());
+		if (!m.matches())
+			throw new IllegalArgumentException("Invalid query, expected " +
+				"TOP <n> [BY SIZE|COUNT] [WHERE TYPE LIKE '<pattern>'] [DEPTH <d>]: " + query);
+		try {
+			int top = Integer.parseInt(m.group(1));
+			boolean bySize = m.group(2) == null || m.group(2).equalsIgnoreCase("SIZE");
+			Pattern typePattern = m.group(3) == null ? null : compileLike(m.group(3).replace("''", "'"));
+			int depth = m.group(4) == null ? Integer.MAX_VALUE : Integer.parseInt(m.group(4));
+			if (depth <= 0)
+				throw new IllegalArgumentException("Depth shall be positive: " + query);
+			return new SnapshotQuery(top, bySize, typePattern, depth);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in query: " + query);
+		}
+	}
+
+	private static Pattern compileLike(String like) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < like.length(); i++) {
+			char c = like.charAt(i);
+			if (c == '%' || c == '_') {
+				if (i > start)
+					sb.append(Pattern.quote(like.substring(start, i)));
+				sb.append(c == '%' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (like.length() > start)
+			sb.append(Pattern.quote(like.substring(start)));
+		return Pattern.compile(sb.toString(), Pattern.DOTALL);
+	}
+
+	public SnapshotRoot apply(SnapshotRoot ss) {
+		SnapshotRoot result = new SnapshotRoot();
+		result.setTime(ss.getTime());
+		List<SnapshotDeep> types = new ArrayList<SnapshotDeep>();
+		for (int i = 0; i < ss.getUsed(); i++) {
+			SnapshotDeep type = ss.getChild(i);
+			if (!type.isEmpty() && (typePattern == null || typePattern.matcher(type.getName()).matches())) {
+				types.add(type);
+				result.addShallow(type);
+			}
+		}
+		copyTop(types, result, depth);
+		return result;
+	}
+
+	private void copyTop(List<SnapshotDeep> items, SnapshotDeep to, int depth) {
+		Collections.sort(items, bySize ? SnapshotShallow.COMPARATOR_SIZE : SnapshotShallow.COMPARATOR_COUNT);
+		if (items.size() > top)
+			items = items.subList(0, top);
+		// children are kept sorted by name, so that result can be merged and searched like any other snapshot
+		Collections.sort(items, SnapshotShallow.COMPARATOR_NAME);
+		for (SnapshotDeep item : items) {
+			SnapshotDeep copy = new SnapshotDeep(item.getName(), item.isArray(), item.getHistoCountsLength());
+			to.addChild(copy);
+			if (item.isPossiblyEliminatedAllocation())
+				copy.setPossiblyEliminatedAllocation();
+			copy.addShallow(item);
+			if (depth > 1 && item.hasChildren()) {
+				List<SnapshotDeep> children = new ArrayList<SnapshotDeep>(item.getUsed());
+				for (int j = 0; j < item.getUsed(); j++)
+					if (!item.getChild(j).isEmpty())
+						children.add(item.getChild(j));
+				copyTop(children, copy, depth - 1);
+			}
+		}
+	}
+}
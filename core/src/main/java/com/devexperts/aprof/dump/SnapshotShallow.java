@@ -161,21 +161,21 @@ public class SnapshotShallow implements Serializable {
 	}
 
 	public void add(long count, long size, long[] histoCounts) {
-		add(count, size);
 		int n = Math.min(this.histoCounts.length, histoCounts.length);
+		for (int i = n; i < histoCounts.length; i++)
+			count += histoCounts[i]; // histogram brackets that are not present here are counted as plain count
+		add(count, size);
 		for (int i = 0; i < n; i++)
 			addHistoCount(i, histoCounts[i]);
-		for (int i = n; i < histoCounts.length; i++)
-			count += histoCounts[i];
 	}
 
 	public void sub(long count, long size, long[] histoCounts) {
-		sub(count, size);
 		int n = Math.min(this.histoCounts.length, histoCounts.length);
+		for (int i = n; i < histoCounts.length; i++)
+			count += histoCounts[i]; // histogram brackets that are not present here are counted as plain count
+		sub(count, size);
 		for (int i = 0; i < n; i++)
 			subHistoCount(i, histoCounts[i]);
-		for (int i = n; i < histoCounts.length; i++)
-			count -= histoCounts[i];
 	}
 
 	public void addShallow(SnapshotShallow ss) {
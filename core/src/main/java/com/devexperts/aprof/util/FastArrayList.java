@@ -24,48 +24,112 @@ package com.devexperts.aprof.util;
 
 import com.devexperts.aprof.Internal;
 
+import static com.devexperts.aprof.util.UnsafeHolder.UNSAFE;
+
 /**
+ * Index-addressed list of elements that are set at most once. All operations are lock-free:
+ * elements are published with CAS and the underlying array is copied into a larger one on resize.
+ * Free slots of the array that is being copied are marked with {@link #MOVED}, so that concurrent
+ * puts retry in the new array.
+ *
  * @author Roman Elizarov
  */
 @Internal
 public class FastArrayList<T> {
-	private volatile T[] list;
+	private static final int INITIAL_LENGTH = 1024;
 
-	@SuppressWarnings("unchecked")
-	public FastArrayList() {
-		list = (T[]) new Object[1024];
+	/**
+	 * Marks free slots of an array that is being copied into a larger one.
+	 */
+	private static final Object MOVED = new Object();
+
+	private static final long RESIZING_OFFSET;
+	private static final int OBJECT_ARRAY_BASE_OFFSET;
+	private static final int OBJECT_ARRAY_INDEX_SCALE;
+
+	static {
+		try {
+			RESIZING_OFFSET = UNSAFE.objectFieldOffset(FastArrayList.class.getDeclaredField("resizing"));
+			OBJECT_ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(Object[].class);
+			OBJECT_ARRAY_INDEX_SCALE = UNSAFE.arrayIndexScale(Object[].class);
+		} catch (Throwable t) {
+			throw new ExceptionInInitializerError(t);
+		}
 	}
 
-	public T getSafely(int i) {
-		// try to read w/o synchronization first
-		T result = getUnsync(i);
-		// double-checked locking
-		if (result == null)
-			synchronized (this) {
-				return list[i];
-			}
-		return result;
+	private volatile Object[] list = new Object[INITIAL_LENGTH];
+	private volatile int resizing;
+
+	// does not need external synchronization, returns null if the element was not set yet
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		// try plain read first
+		Object[] curList = list;
+		Object result = i < curList.length ? curList[i] : null;
+		if (result == null || result == MOVED)
+			result = getSlowPath(i);
+		return (T)result;
 	}
 
-	// requires external synchronization
-	public T getUnsync(int i) {
-		T[] curList = list;
-		return i < curList.length ? curList[i] : null;
+	private Object getSlowPath(int i) {
+		while (true) {
+			Object[] curList = list;
+			if (i >= curList.length)
+				return null;
+			Object result = UNSAFE.getObjectVolatile(curList, offset(i));
+			if (result != MOVED)
+				return result;
+			waitResize(curList);
+		}
 	}
 
-	// requires external synchronization
+	// does not need external synchronization, returns the element that is actually stored at the specified index
 	@SuppressWarnings("unchecked")
-	public void putUnsync(int i, T val) {
-		int n = list.length;
-		if (i >= n) {
-			T[] a = (T[]) new Object[Math.max(2 * n, i + 1)];
-			System.arraycopy(list, 0, a, 0, n);
-			list = a;
+	public T putIfAbsent(int i, T val) {
+		while (true) {
+			Object[] curList = list;
+			if (i >= curList.length) {
+				resize(curList, i + 1);
+				continue;
+			}
+			long offset = offset(i);
+			if (UNSAFE.compareAndSwapObject(curList, offset, null, val))
+				return val;
+			Object cur = UNSAFE.getObjectVolatile(curList, offset);
+			if (cur != MOVED)
+				return (T)cur;
+			waitResize(curList);
 		}
-		list[i] = val;
 	}
 
 	public int length() {
 		return list.length;
 	}
+
+	private void resize(Object[] oldList, int minLength) {
+		if (!UNSAFE.compareAndSwapInt(this, RESIZING_OFFSET, 0, 1)) {
+			waitResize(oldList);
+			return;
+		}
+		if (list == oldList) { // was not resized by somebody else before we've started
+			Object[] newList = new Object[Math.max(2 * oldList.length, minLength)];
+			for (int i = 0; i < oldList.length; i++) {
+				long offset = offset(i);
+				if (UNSAFE.getObjectVolatile(oldList, offset) == null && UNSAFE.compareAndSwapObject(oldList, offset, null, MOVED))
+					continue;
+				newList[i] = UNSAFE.getObjectVolatile(oldList, offset);
+			}
+			list = newList;
+		}
+		resizing = 0;
+	}
+
+	private void waitResize(Object[] oldList) {
+		while (list == oldList)
+			Thread.yield();
+	}
+
+	private static long offset(int i) {
+		return OBJECT_ARRAY_BASE_OFFSET + (long)i * OBJECT_ARRAY_INDEX_SCALE;
+	}
 }
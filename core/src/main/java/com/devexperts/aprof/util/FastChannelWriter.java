@@ -0,0 +1,185 @@
+package com.devexperts.aprof.util;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes text into file channel through direct byte buffer with optional on-the-fly gzip compression.
+ * Characters are encoded in bulk as ASCII and other characters are escaped like in {@link FastOutputStreamWriter}.
+ * <b>This class is not thread-safe</b>.
+ */
+public class FastChannelWriter extends Writer {
+	private static final int BUFFER_SIZE = 65536;
+	private static final int MAX_ENCODED_CHAR = 6; // \\uXXXX
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] bytes = new byte[BUFFER_SIZE];
+	private final char[] chars = new char[BUFFER_SIZE / MAX_ENCODED_CHAR];
+	private int size;
+
+	private final Deflater deflater; // null when not compressing
+	private final CRC32 crc;
+	private final byte[] deflated;
+
+	private boolean closed;
+
+	public FastChannelWriter(FileChannel channel, boolean gzip) throws IOException {
+		this.channel = channel;
+		if (gzip) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			crc = new CRC32();
+			deflated = new byte[BUFFER_SIZE];
+			put(GZIP_HEADER, 0, GZIP_HEADER.length);
+		} else {
+			deflater = null;
+			crc = null;
+			deflated = null;
+		}
+	}
+
+	public static FastChannelWriter open(File file, boolean append, boolean gzip) throws IOException {
+		FileChannel channel = new FileOutputStream(file, append).getChannel();
+		try {
+			return new FastChannelWriter(channel, gzip);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public void write(int c) throws IOException {
+		if (size > bytes.length - MAX_ENCODED_CHAR)
+			flushBytes();
+		encode((char)c);
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			// number of chars that surely fit into bytes without further checks
+			int n = Math.min(end - off, (bytes.length - size) / MAX_ENCODED_CHAR);
+			if (n == 0) {
+				flushBytes();
+				continue;
+			}
+			for (int i = off; i < off + n; i++)
+				encode(cbuf[i]);
+			off += n;
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			int n = Math.min(end - off, chars.length);
+			str.getChars(off, off + n, chars, 0);
+			write(chars, 0, n);
+			off += n;
+		}
+	}
+
+	public void flush() throws IOException {
+		flushBytes();
+		drainBuffer();
+	}
+
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			flushBytes();
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished())
+					put(deflated, 0, deflater.deflate(deflated));
+				putIntLE((int)crc.getValue());
+				putIntLE((int)deflater.getBytesRead());
+			}
+			drainBuffer();
+		} finally {
+			if (deflater != null)
+				deflater.end();
+			channel.close();
+		}
+	}
+
+	private void encode(char c) {
+		if (c <= 0x7f)
+			bytes[size++] = (byte)c;
+		else {
+			bytes[size++] = '\\';
+			bytes[size++] = 'u';
+			bytes[size++] = (byte)HEX[(c >> 12) & 0xf];
+			bytes[size++] = (byte)HEX[(c >> 8) & 0xf];
+			bytes[size++] = (byte)HEX[(c >> 4) & 0xf];
+			bytes[size++] = (byte)HEX[c & 0xf];
+		}
+	}
+
+	private void flushBytes() throws IOException {
+		if (size == 0)
+			return;
+		if (deflater == null)
+			put(bytes, 0, size);
+		else {
+			crc.update(bytes, 0, size);
+			deflater.setInput(bytes, 0, size);
+			while (!deflater.needsInput())
+				put(deflated, 0, deflater.deflate(deflated));
+		}
+		size = 0;
+	}
+
+	private void putIntLE(int v) throws IOException {
+		for (int i = 0; i < 4; i++)
+			deflated[i] = (byte)(v >>> (8 * i));
+		put(deflated, 0, 4);
+	}
+
+	private void put(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!buffer.hasRemaining())
+				drainBuffer();
+		}
+	}
+
+	private void drainBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -62,6 +62,23 @@ public class FastFmtUtil {
 			out.print("0");
 	}
 
+	// prints number without grouping separators and without allocating strings
+	public static void printPlainNum(PrintWriter out, long value) {
+		if (value < 0) {
+			out.print('-');
+			if (value == Long.MIN_VALUE) {
+				out.print("9223372036854775808");
+				return;
+			}
+			value = -value;
+		}
+		long x = 1;
+		while (x <= value / 10)
+			x *= 10;
+		for (; x >= 1; x /= 10)
+			out.print((char)(value / x % 10 + '0'));
+	}
+
 	public static void print3(PrintWriter out, int value, boolean fill) {
 		if (fill || value >= 100)
 			out.print((char)(value / 100 + '0'));
@@ -92,6 +109,17 @@ public class FastFmtUtil {
 		}
 	}
 
+	// prints percent with explicit sign and two decimal places like +12.34%
+	public static void printSignedPercent(PrintWriter out, double percent) {
+		long pp = Math.round(percent * 100);
+		out.print(pp < 0 ? '-' : '+');
+		pp = Math.abs(pp);
+		printNum(out, pp / 100);
+		out.print(".");
+		print2(out, (int)(pp % 100), true);
+		out.print("%");
+	}
+
 	public static void printTimePeriod(PrintWriter out, long millis) {
 		long hour = millis / (60 * 60000);
 		int min = (int)(millis / 60000 % 60);
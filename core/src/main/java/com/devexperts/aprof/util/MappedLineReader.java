@@ -0,0 +1,152 @@
+package com.devexperts.aprof.util;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads ASCII lines from a file that is mapped into memory window by window,
+ * or streamed through decompressor for gzip files.
+ * Line characters are kept in a reusable buffer, so no memory is allocated per line.
+ * <b>This class is not thread-safe</b>.
+ */
+public class MappedLineReader implements Closeable {
+	private static final long WINDOW_SIZE = 64L << 20;
+	private static final int STREAM_BUFFER_SIZE = 65536;
+
+	private final FileChannel channel; // null when reading stream
+	private final long fileSize;
+	private long windowEnd;
+	private MappedByteBuffer window;
+
+	private final InputStream in; // null when reading mapped file
+	private final byte[] streamBuffer;
+	private int streamPos;
+	private int streamLimit;
+
+	private char[] line = new char[256];
+	private int length;
+
+	public MappedLineReader(File file) throws IOException {
+		if (isGzip(file)) {
+			channel = null;
+			fileSize = 0;
+			in = new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+			streamBuffer = new byte[STREAM_BUFFER_SIZE];
+		} else {
+			channel = new FileInputStream(file).getChannel();
+			fileSize = channel.size();
+			in = null;
+			streamBuffer = null;
+		}
+	}
+
+	public static boolean isGzip(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= 2 && in.readUnsignedShort() == 0x1f8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads next line into internal buffer without line terminator.
+	 * @return false at the end of file.
+	 */
+	public boolean nextLine() throws IOException {
+		length = 0;
+		int b = read();
+		if (b < 0)
+			return false;
+		while (b >= 0 && b != '\n') {
+			if (b != '\r') {
+				if (length == line.length) {
+					char[] newLine = new char[length * 2];
+					System.arraycopy(line, 0, newLine, 0, length);
+					line = newLine;
+				}
+				line[length++] = (char)b;
+			}
+			b = read();
+		}
+		return true;
+	}
+
+	public char[] getChars() {
+		return line;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean startsWith(String prefix) {
+		return regionMatches(0, prefix);
+	}
+
+	public boolean regionMatches(int offset, String s) {
+		if (offset + s.length() > length)
+			return false;
+		for (int i = 0; i < s.length(); i++)
+			if (line[offset + i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+	public String getString(int from, int to) {
+		return new String(line, from, to - from);
+	}
+
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		else
+			in.close();
+	}
+
+	private int read() throws IOException {
+		if (channel != null) {
+			if (window == null || !window.hasRemaining()) {
+				if (windowEnd >= fileSize)
+					return -1;
+				long size = Math.min(WINDOW_SIZE, fileSize - windowEnd);
+				window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, size);
+				windowEnd += size;
+			}
+			return window.get() & 0xff;
+		}
+		if (streamPos == streamLimit) {
+			streamLimit = in.read(streamBuffer);
+			streamPos = 0;
+			if (streamLimit <= 0) {
+				streamLimit = 0;
+				return -1;
+			}
+		}
+		return streamBuffer[streamPos++] & 0xff;
+	}
+}
@@ -0,0 +1,138 @@
+package com.devexperts.aprof.util;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches names against a list of rules that is compiled once into a character trie, so that
+ * matching time depends only on the length of the name and not on the number of rules.
+ * Rule that ends with '*' matches all names that start with the rest of it (use package.* for a package
+ * with its subpackages), other rules match names exactly, unless all rules are compiled as prefixes.
+ * Matcher is immutable and thread-safe.
+ */
+public class NameMatcher {
+	private static final char WILDCARD = '*';
+
+	private static final NameMatcher EMPTY = new NameMatcher(new Node());
+
+	private final Node root;
+
+	private NameMatcher(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * Compiles rules into a matcher.
+	 * @param rules the rules.
+	 * @param prefixes when true, all rules match names with a given prefix as if they end with '*'.
+	 */
+	public static NameMatcher compile(String[] rules, boolean prefixes) {
+		if (rules.length == 0)
+			return EMPTY;
+		Builder root = new Builder();
+		for (String rule : rules) {
+			boolean prefix = prefixes;
+			if (rule.length() > 0 && rule.charAt(rule.length() - 1) == WILDCARD) {
+				rule = rule.substring(0, rule.length() - 1);
+				prefix = true;
+			}
+			Builder node = root;
+			for (int i = 0; i < rule.length(); i++)
+				node = node.getOrCreateChild(rule.charAt(i));
+			node.terminal |= prefix ? Node.PREFIX : Node.EXACT;
+		}
+		return new NameMatcher(root.build());
+	}
+
+	public boolean isEmpty() {
+		return this == EMPTY;
+	}
+
+	public boolean matches(CharSequence name) {
+		return matchLength(name) >= 0;
+	}
+
+	/**
+	 * Returns length of the longest prefix rule or of the exact rule that matches the name or -1 if none matches.
+	 */
+	public int matchLength(CharSequence name) {
+		Node node = root;
+		int length = name.length();
+		int result = -1;
+		for (int i = 0;; i++) {
+			if ((node.terminal & Node.PREFIX) != 0 || i == length && (node.terminal & Node.EXACT) != 0)
+				result = i;
+			if (i == length || (node = node.getChild(name.charAt(i))) == null)
+				return result;
+		}
+	}
+
+	private static class Node {
+		static final int EXACT = 1;
+		static final int PREFIX = 2;
+
+		static final char[] NO_CHARS = new char[0];
+		static final Node[] NO_NODES = new Node[0];
+
+		char[] chars = NO_CHARS; // sorted
+		Node[] children = NO_NODES;
+		int terminal;
+
+		Node getChild(char c) {
+			int i = Arrays.binarySearch(chars, c);
+			return i < 0 ? null : children[i];
+		}
+	}
+
+	private static class Builder {
+		private final Map<Character, Builder> childBuilders = new TreeMap<Character, Builder>();
+		int terminal;
+
+		Builder getOrCreateChild(char c) {
+			Builder child = childBuilders.get(c);
+			if (child == null)
+				childBuilders.put(c, child = new Builder());
+			return child;
+		}
+
+		Node build() {
+			Node node = new Node();
+			node.terminal = terminal;
+			int n = childBuilders.size();
+			if (n > 0) {
+				node.chars = new char[n];
+				node.children = new Node[n];
+				int i = 0;
+				for (Map.Entry<Character, Builder> entry : childBuilders.entrySet()) {
+					node.chars[i] = entry.getKey();
+					node.children[i] = entry.getValue().build();
+					i++;
+				}
+			}
+			return node;
+		}
+	}
+}
@@ -22,20 +22,50 @@ package com.devexperts.aprof.util;
  * #L%
  */
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.devexperts.aprof.Internal;
 
+import static com.devexperts.aprof.util.UnsafeHolder.UNSAFE;
+
 /**
+ * Assigns consecutive positive ids to strings. Registration is lock-free: new strings are published into
+ * the hash table with CAS and the table is copied into a larger one on resize. Free slots of the table that is
+ * being copied are marked with {@link #MOVED}, so that concurrent registrations retry in the new table.
+ *
  * @author Dmitry Paraschenko
  */
 @Internal
 public class StringIndexer {
 	private static final int MIN_LENGTH = 8;
 
+	/**
+	 * Marks free slots of a core that is being copied into a larger one.
+	 */
+	private static final String MOVED = new String("<moved>");
+
+	private static final int STRING_ARRAY_BASE_OFFSET;
+	private static final int STRING_ARRAY_INDEX_SCALE;
+	private static final int INT_ARRAY_BASE_OFFSET;
+	private static final int INT_ARRAY_INDEX_SCALE;
+
+	static {
+		try {
+			STRING_ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(String[].class);
+			STRING_ARRAY_INDEX_SCALE = UNSAFE.arrayIndexScale(String[].class);
+			INT_ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(int[].class);
+			INT_ARRAY_INDEX_SCALE = UNSAFE.arrayIndexScale(int[].class);
+		} catch (Throwable t) {
+			throw new ExceptionInInitializerError(t);
+		}
+	}
+
 	private volatile Core core = new Core(MIN_LENGTH);
-	private volatile int size;
+	private final AtomicInteger size = new AtomicInteger();
 
 	public int size() {
-		return size;
+		return size.get();
 	}
 
 	// does not need external synchronization
@@ -45,36 +75,34 @@ public class StringIndexer {
 
 	// does not need external synchronization
 	public int get(String string) {
-		return core.get(string);
+		Core core = this.core;
+		int id;
+		while ((id = core.get(string)) < 0 && core != this.core)
+			core = this.core;
+		return id < 0 ? 0 : id; // core is still being copied, so string was not registered before copy had started
 	}
 
 	// does not need external synchronization
 	public int register(String string) {
-		int id = core.get(string);
-		if (id == 0) {
-			return registerImpl(string);
+		while (true) {
+			Core core = this.core;
+			int id = core.register(string, size);
+			if (id > 0)
+				return id;
+			// core is full or is being copied -- resize it (or wait for resize) and retry with the new core
+			resize(core);
 		}
-		return id;
 	}
 
-	private synchronized int registerImpl(String string) {
-		int id = core.get(string);
-		if (id == 0) {
-			id = ++size;
-			core.register(string, id);
-			if (size >= core.length / 2) // 50% fill factor for speed
-				rehash();
+	private void resize(Core oldCore) {
+		if (oldCore.startResize()) {
+			Core newCore = new Core(2 * oldCore.length);
+			oldCore.copyTo(newCore);
+			core = newCore;
+		} else {
+			while (core == oldCore)
+				Thread.yield();
 		}
-		return id;
-	}
-
-	private void rehash() {
-		Core oldCore = core;
-		Core newCore = new Core(2 * oldCore.length);
-		for (int i = 0; i < oldCore.length; i++)
-			if (oldCore.strings[i] != null)
-				newCore.register(oldCore.strings[i], oldCore.ids[i]);
-		core = newCore;
 	}
 
 	private static class Core {
@@ -83,6 +111,8 @@ public class StringIndexer {
 		final String[] strings;
 		final int[] ids;
 		final String[] id2string;
+		final AtomicInteger fill = new AtomicInteger();
+		final AtomicBoolean resizing = new AtomicBoolean();
 
 		Core(int length) {
 			this.length = length;
@@ -93,46 +123,107 @@ public class StringIndexer {
 		}
 
 		// does not need external synchronization
-		public String get(int id) {
-			if (id >= length) {
+		String get(int id) {
+			if (id >= length)
 				return null;
-			}
-			return id2string[id];
+			String s = id2string[id];
+			if (s == null) // double-check with volatile read
+				s = (String)UNSAFE.getObjectVolatile(id2string, stringOffset(id));
+			return s;
 		}
 
-		// does not need external synchronization
-		private int get(String string) {
+		// does not need external synchronization, returns -1 when string is not found and core is being copied
+		int get(String string) {
 			int i = string.hashCode() & mask;
-			String s;
-			while (!string.equals(s = strings[i])) {
-				if (s == null) {
+			while (true) {
+				String s = strings[i];
+				if (s == null)
 					return 0;
-				}
-
+				if (s == MOVED)
+					return -1;
+				if (string.equals(s))
+					return waitId(i);
 				if (i == 0)
 					i = length;
 				i--;
 			}
-			return ids[i];
 		}
 
-		// needs external synchronization
-		private void register(String string, int id) {
+		// does not need external synchronization, returns 0 when core is full or is being copied
+		int register(String string, AtomicInteger size) {
 			int i = string.hashCode() & mask;
-			String s;
-			while (!string.equals(s = strings[i])) {
+			while (true) {
+				String s = getStringVolatile(i);
 				if (s == null) {
-					ids[i] = id;
-					strings[i] = string;
-					id2string[id] = string;
-					return;
+					if (fill.incrementAndGet() > length / 2) // 50% fill factor for speed
+						return 0;
+					if (UNSAFE.compareAndSwapObject(strings, stringOffset(i), null, string)) {
+						int id = size.incrementAndGet();
+						UNSAFE.putObjectVolatile(id2string, stringOffset(id), string);
+						UNSAFE.putIntVolatile(ids, intOffset(i), id);
+						return id;
+					}
+					// lost race for this slot -- release reservation and look at the winner
+					fill.decrementAndGet();
+					s = getStringVolatile(i);
 				}
+				if (s == MOVED)
+					return 0;
+				if (string.equals(s))
+					return waitId(i);
+				if (i == 0)
+					i = length;
+				i--;
+			}
+		}
+
+		boolean startResize() {
+			return resizing.compareAndSet(false, true);
+		}
 
+		// must be invoked only by a thread that had successfully started resize
+		void copyTo(Core newCore) {
+			int count = 0;
+			for (int i = 0; i < length; i++) {
+				if (getStringVolatile(i) == null && UNSAFE.compareAndSwapObject(strings, stringOffset(i), null, MOVED))
+					continue;
+				newCore.put(getStringVolatile(i), waitId(i));
+				count++;
+			}
+			newCore.fill.set(count);
+		}
+
+		// needs exclusive access, is used to fill a core before it is published
+		private void put(String string, int id) {
+			int i = string.hashCode() & mask;
+			while (strings[i] != null) {
 				if (i == 0)
 					i = length;
 				i--;
 			}
-			throw new IllegalStateException();
+			strings[i] = string;
+			ids[i] = id;
+			id2string[id] = string;
+		}
+
+		// id is published right after the string, so the wait is short
+		private int waitId(int i) {
+			int id;
+			while ((id = UNSAFE.getIntVolatile(ids, intOffset(i))) == 0)
+				Thread.yield();
+			return id;
+		}
+
+		private String getStringVolatile(int i) {
+			return (String)UNSAFE.getObjectVolatile(strings, stringOffset(i));
+		}
+
+		private static long stringOffset(int i) {
+			return STRING_ARRAY_BASE_OFFSET + (long)i * STRING_ARRAY_INDEX_SCALE;
+		}
+
+		private static long intOffset(int i) {
+			return INT_ARRAY_BASE_OFFSET + (long)i * INT_ARRAY_INDEX_SCALE;
 		}
 	}
 }
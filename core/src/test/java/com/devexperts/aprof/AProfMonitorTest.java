@@ -0,0 +1,74 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class AProfMonitorTest extends TestCase {
+	private File file;
+	private Dumper dumper;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("aprof", ".txt");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (dumper != null)
+			dumper.waitDumpsWritten();
+		file.delete();
+	}
+
+	public void testMBean() throws Exception {
+		Configuration config = new Configuration("file=" + file.getPath());
+		AProfRegistry.init(config);
+		dumper = new Dumper(config, System.currentTimeMillis());
+		AProfMonitor monitor = new AProfMonitor(config, dumper, new SnapshotCache(dumper, 1000));
+		monitor.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AProfMonitor.OBJECT_NAME);
+		try {
+			assertEquals(0L, server.getAttribute(name, "AllocatedBytes"));
+			assertEquals(0, ((CompositeData[])server.getAttribute(name, "TopSites")).length);
+			server.setAttribute(name, new Attribute("Threshold", 1.5));
+			assertEquals(1.5, config.getThreshold());
+			try {
+				monitor.setThreshold(-1);
+				fail("negative threshold shall be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			server.invoke(name, "resetWindow", null, null);
+			assertTrue((Long)server.getAttribute(name, "WindowTime") < 1000);
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class AProfProbeTest extends TestCase {
+	private static final String TYPE = "com.example.ProbeItem";
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("aprof", ".txt");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testMeasure() throws Exception {
+		AProfRegistry.init(new Configuration("file=" + file.getPath()));
+		final int loc = AProfRegistry.registerAllocationPoint(TYPE, "com.example.Probe.run");
+		final int arrayLoc = AProfRegistry.registerAllocationPoint("int[]", "com.example.Probe.run");
+		final SnapshotRoot[] inner = new SnapshotRoot[1];
+		SnapshotRoot outer = AProfProbe.measure(new Runnable() {
+			public void run() {
+				allocate(loc, 2);
+				inner[0] = AProfProbe.measure(new Runnable() {
+					public void run() {
+						allocate(loc, 3);
+						AProfOps.intAllocateArraySize(10, LocationStack.get(), arrayLoc);
+					}
+				});
+			}
+		});
+		assertEquals(5, getCount(outer));
+		assertEquals(3, getCount(inner[0]));
+		assertEquals(6, outer.getTotalCount());
+		SnapshotDeep array = outer.getChild(outer.findChild("int[]"));
+		assertEquals(1, array.getTotalCount());
+		assertTrue(array.getSize() > 0);
+		assertEquals("com.example.Probe.run", array.getChild(0).getName());
+		// no probe outside of measure
+		assertNull(LocationStack.get().probe);
+
+		// other threads are not measured
+		SnapshotRoot empty = AProfProbe.measure(new Runnable() {
+			public void run() {
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						allocate(loc, 7);
+					}
+				};
+				t.start();
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		assertEquals(0, empty.getTotalCount());
+	}
+
+	private static void allocate(int loc, int n) {
+		for (int i = 0; i < n; i++)
+			AProfOps.allocate(LocationStack.get(), loc);
+	}
+
+	private static long getCount(SnapshotRoot ss) {
+		int i = ss.findChild(TYPE);
+		return i < ss.getUsed() ? ss.getChild(i).getTotalCount() : 0;
+	}
+}
@@ -0,0 +1,62 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.util.*;
+
+import junit.framework.TestCase;
+
+public class DetailsConfigurationTest extends TestCase {
+	public void testUpdateTrackedMethods() throws Exception {
+		DetailsConfiguration dc = new DetailsConfiguration();
+		dc.addClassMethods(new String[] {"a.B.foo", "a.B.bar", "a.C.*"});
+		Map<String, Set<String>> changed = dc.updateTrackedMethods(
+			new String[] {"a.B.baz", "a.B.foo", "a.D.qux"}, new String[] {"a.B.bar", "a.E.none"});
+		assertEquals(2, changed.size());
+		assertEquals(new HashSet<String>(Arrays.asList("bar", "baz")), changed.get("a.B"));
+		assertEquals(Collections.singleton("qux"), changed.get("a.D"));
+		assertTrue(dc.isMethodTracked("a.B", "foo"));
+		assertFalse(dc.isMethodTracked("a.B", "bar"));
+		assertTrue(dc.isMethodTracked("a.B", "baz"));
+		assertTrue(dc.isMethodTracked("a.D", "qux"));
+		assertTrue(dc.isMethodTracked("a.C", "any"));
+	}
+
+	public void testRemoveAllMethods() throws Exception {
+		DetailsConfiguration dc = new DetailsConfiguration();
+		dc.addClassMethods(new String[] {"a.B.foo", "a.B.bar"});
+		Map<String, Set<String>> changed = dc.updateTrackedMethods(new String[0], new String[] {"a.B.*"});
+		assertEquals(2, changed.get("a.B").size());
+		assertFalse(dc.isMethodTracked("a.B", "foo"));
+		assertFalse(dc.getTrackedClasses().contains("a.B"));
+	}
+
+	public void testInvalidLocation() {
+		DetailsConfiguration dc = new DetailsConfiguration();
+		try {
+			dc.updateTrackedMethods(new String[] {"foo"}, new String[0]);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class DumpFormatterTest extends TestCase {
+	private static final String[] METHODS = { "a", "b", "c", "d", "e", "f", "g" };
+
+	// output of the sequential formatter that sorted whole snapshots before printing
+	private static final String GOLDEN_SIZE = lines(
+		"",
+		"========================================================================================================================",
+		"TEST allocation dump for 0 ms (0h00m00s)",
+		"Allocated 208,656 bytes in 8,522 objects of 7 classes in 14 locations",
+		"========================================================================================================================",
+		"",
+		"Top allocation-inducing locations with data types allocated from them",
+		"------------------------------------------------------------------------------------------------------------------------",
+		"A.a: 56,016 (26.84%) bytes in 2,001 (23.48%) objects (avg size 28 bytes)",
+		"\tchar[]: 32,000 (15.33%) bytes in 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tjava.lang.String: 24,000 (11.50%) bytes in 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tZ.Tiny: 16 (0.00%) bytes in 1 (0.01%) objects (avg size 16 bytes)",
+		"",
+		"B.b: 56,016 (26.84%) bytes in 2,001 (23.48%) objects (avg size 28 bytes)",
+		"\tchar[]: 32,000 (15.33%) bytes in 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tjava.lang.String: 24,000 (11.50%) bytes in 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tY.Tiny: 16 (0.00%) bytes in 1 (0.01%) objects (avg size 16 bytes)",
+		"",
+		"Y.y: 48,000 (23.00%) bytes in 2,000 (23.46%) objects (avg size 24 bytes)",
+		"\tjava.lang.String: 48,000 (23.00%) bytes in 2,000 (23.46%) objects (avg size 24 bytes)",
+		"",
+		"G.g: 24,000 (11.50%) bytes in 1,500 (17.60%) objects (avg size 16 bytes)",
+		"\tjava.lang.Integer: 24,000 (11.50%) bytes in 1,500 (17.60%) objects (avg size 16 bytes)",
+		"",
+		"H.h: 24,000 (11.50%) bytes in 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tjava.lang.Long: 24,000 (11.50%) bytes in 1,000 (11.73%) objects (avg size 24 bytes)",
+		"",
+		"... 4 more below threshold: 624 (0.29%) bytes in 20 (0.23%) objects (avg size 31 bytes)",
+		"",
+		"Top allocated data types with reverse location traces",
+		"------------------------------------------------------------------------------------------------------------------------",
+		"java.lang.String: 96,000 (46.00%) bytes in 4,000 (46.93%) objects (avg size 24 bytes)",
+		"\tX.x: 48,000 (23.00%) bytes in 2,000 (23.46%) objects",
+		"\t\tA.a: 24,000 (11.50%) bytes in 1,000 (11.73%) objects",
+		"\t\tB.b: 24,000 (11.50%) bytes in 1,000 (11.73%) objects",
+		"\tY.y: 48,000 (23.00%) bytes in 2,000 (23.46%) objects",
+		"",
+		"char[]: 64,608 (30.96%) bytes in 2,019 (23.69%) objects (avg size 32 bytes)",
+		"\tA.a: 32,000 (15.33%) bytes in 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tB.b: 32,000 (15.33%) bytes in 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\t... 4 more below threshold: 608 (0.29%) bytes in 19 (0.22%) objects (avg size 32 bytes)",
+		"",
+		"java.lang.Integer: 24,000 (11.50%) bytes in 1,500 (17.60%) objects (avg size 16 bytes)",
+		"\tG.g: 24,000 (11.50%) bytes in 1,500 (17.60%) objects",
+		"",
+		"java.lang.Long: 24,000 (11.50%) bytes in 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tH.h: 24,000 (11.50%) bytes in 1,000 (11.73%) objects",
+		"",
+		"... 3 more below threshold: 48 (0.02%) bytes in 3 (0.03%) objects (avg size 16 bytes)");
+
+	private static final String GOLDEN_COUNT = lines(
+		"",
+		"========================================================================================================================",
+		"TEST allocation dump for 0 ms (0h00m00s)",
+		"Allocated 8,522 objects of 7 classes in 14 locations",
+		"========================================================================================================================",
+		"",
+		"Top allocation-inducing locations with data types allocated from them",
+		"------------------------------------------------------------------------------------------------------------------------",
+		"A.a: 2,001 (23.48%) objects (avg size 28 bytes)",
+		"\tchar[]: 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tjava.lang.String: 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tZ.Tiny: 1 (0.01%) objects (avg size 16 bytes)",
+		"",
+		"B.b: 2,001 (23.48%) objects (avg size 28 bytes)",
+		"\tchar[]: 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tjava.lang.String: 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tY.Tiny: 1 (0.01%) objects (avg size 16 bytes)",
+		"",
+		"Y.y: 2,000 (23.46%) objects (avg size 24 bytes)",
+		"\tjava.lang.String: 2,000 (23.46%) objects (avg size 24 bytes)",
+		"",
+		"G.g: 1,500 (17.60%) objects (avg size 16 bytes)",
+		"\tjava.lang.Integer: 1,500 (17.60%) objects (avg size 16 bytes)",
+		"",
+		"H.h: 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tjava.lang.Long: 1,000 (11.73%) objects (avg size 24 bytes)",
+		"",
+		"... 4 more below threshold: 20 (0.23%) objects (avg size 31 bytes)",
+		"",
+		"Top allocated data types with reverse location traces",
+		"------------------------------------------------------------------------------------------------------------------------",
+		"java.lang.String: 4,000 (46.93%) objects (avg size 24 bytes)",
+		"\tX.x: 2,000 (23.46%) objects",
+		"\t\tA.a: 1,000 (11.73%) objects",
+		"\t\tB.b: 1,000 (11.73%) objects",
+		"\tY.y: 2,000 (23.46%) objects",
+		"",
+		"char[]: 2,019 (23.69%) objects (avg size 32 bytes)",
+		"\tA.a: 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\tB.b: 1,000 (11.73%) objects (avg size 32 bytes)",
+		"\t... 4 more below threshold: 19 (0.22%) objects (avg size 32 bytes)",
+		"",
+		"java.lang.Integer: 1,500 (17.60%) objects (avg size 16 bytes)",
+		"\tG.g: 1,500 (17.60%) objects",
+		"",
+		"java.lang.Long: 1,000 (11.73%) objects (avg size 24 bytes)",
+		"\tH.h: 1,000 (11.73%) objects",
+		"",
+		"... 3 more below threshold: 3 (0.03%) objects (avg size 16 bytes)");
+
+	public void testParallelSameAsSequential() throws Exception {
+		SnapshotRoot ss = createSnapshot(new Random(1), 2000);
+		String expected = format(ss, "dump.threads=1");
+		assertTrue(expected.contains("more below threshold"));
+		assertEquals(expected, format(ss, "dump.threads=4"));
+	}
+
+	public void testParallelSameAsSequentialByCount() throws Exception {
+		SnapshotRoot ss = createSnapshot(new Random(2), 500);
+		assertEquals(format(ss, "dump.threads=1:size=false"), format(ss, "dump.threads=3:size=false"));
+	}
+
+	public void testSameAsGolden() throws Exception {
+		SnapshotRoot ss = createGoldenSnapshot();
+		for (int threads = 1; threads <= 4; threads++) {
+			assertEquals(GOLDEN_SIZE, format(ss, "threshold=5:dump.threads=" + threads));
+			assertEquals(GOLDEN_COUNT, format(ss, "threshold=5:size=false:dump.threads=" + threads));
+		}
+	}
+
+	private static String format(SnapshotRoot ss, String args) throws Exception {
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		new DumpFormatter(new Configuration(args)).dumpSnapshot(out, ss, "TEST");
+		out.flush();
+		return sw.toString();
+	}
+
+	private static String lines(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines)
+			sb.append(line).append(System.getProperty("line.separator"));
+		return sb.toString();
+	}
+
+	// equal sizes and counts make sure that ties are broken by name
+	private static SnapshotRoot createGoldenSnapshot() {
+		SnapshotRoot ss = new SnapshotRoot();
+		SnapshotDeep cs = ss.getOrCreateChild("char[]", true, 0);
+		cs.getOrCreateChild("B.b").add(1000, 32000);
+		cs.getOrCreateChild("A.a").add(1000, 32000);
+		cs.getOrCreateChild("C.c").add(10, 320);
+		cs.getOrCreateChild("D.d").add(5, 160);
+		cs.getOrCreateChild("E.e").add(3, 96);
+		cs.getOrCreateChild("F.f").add(1, 32);
+		cs = ss.getOrCreateChild("java.lang.String", false, 0);
+		cs.getOrCreateChild("X.x").getOrCreateChild("A.a").add(1000, 24000);
+		cs.getOrCreateChild("X.x").getOrCreateChild("B.b").add(1000, 24000);
+		cs.getOrCreateChild("Y.y").add(2000, 48000);
+		ss.getOrCreateChild("java.lang.Long", false, 0).getOrCreateChild("H.h").add(1000, 24000);
+		ss.getOrCreateChild("java.lang.Integer", false, 0).getOrCreateChild("G.g").add(1500, 24000);
+		ss.getOrCreateChild("Z.Tiny", false, 0).getOrCreateChild("A.a").add(1, 16);
+		ss.getOrCreateChild("Y.Tiny", false, 0).getOrCreateChild("B.b").add(1, 16);
+		ss.getOrCreateChild("W.Tiny", false, 0).getOrCreateChild("C.c").add(1, 16);
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+
+	private static SnapshotRoot createSnapshot(Random r, int dataTypes) {
+		SnapshotRoot ss = new SnapshotRoot();
+		for (int i = 0; i < dataTypes; i++) {
+			boolean array = i % 5 == 0;
+			SnapshotDeep cs = ss.getOrCreateChild("T" + i + (array ? "[]" : ""), array, 0);
+			fill(r, cs, dataTypes / 4 + 1, 0);
+		}
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+
+	private static void fill(Random r, SnapshotDeep ss, int locations, int depth) {
+		int n = depth == 0 ? 1 + r.nextInt(8) : r.nextInt(4);
+		if (depth >= 3 || n == 0) {
+			long count = 1 + (long)Math.pow(10, r.nextDouble() * 6);
+			ss.add(count, count * (8 + r.nextInt(64)));
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			int loc = r.nextInt(locations);
+			fill(r, ss.getOrCreateChild("C" + loc + "." + METHODS[loc % METHODS.length]), locations, depth + 1);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+import com.devexperts.aprof.util.FastChannelWriter;
+import junit.framework.TestCase;
+
+public class FastChannelWriterTest extends TestCase {
+	public void testPlain() throws IOException {
+		checkWriteRead(false);
+	}
+
+	public void testGzip() throws IOException {
+		checkWriteRead(true);
+	}
+
+	public void testGzipAppend() throws IOException {
+		File file = File.createTempFile("aprof", ".txt.gz");
+		try {
+			for (int i = 0; i < 2; i++) {
+				Writer out = FastChannelWriter.open(file, i > 0, true);
+				out.write("line " + i + "\n");
+				out.close();
+			}
+			assertEquals("line 0\nline 1\n", read(new GZIPInputStream(new FileInputStream(file))));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void checkWriteRead(boolean gzip) throws IOException {
+		StringBuilder expected = new StringBuilder();
+		File file = File.createTempFile("aprof", gzip ? ".txt.gz" : ".txt");
+		try {
+			PrintWriter out = new PrintWriter(FastChannelWriter.open(file, false, gzip));
+			for (int i = 0; i < 100000; i++) {
+				out.print(i);
+				out.print(' ');
+				expected.append(i).append(' ');
+				if (i % 1000 == 0) {
+					out.println("\u0436");
+					expected.append("\\u0436").append(System.getProperty("line.separator"));
+				}
+			}
+			out.close();
+			InputStream in = new FileInputStream(file);
+			assertEquals(expected.toString(), read(gzip ? new GZIPInputStream(in) : in));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				bytes.write(buf, 0, n);
+			return bytes.toString("US-ASCII");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class MeasurementWindowTest extends TestCase {
+	private File file;
+	private Dumper dumper;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("aprof", ".txt");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (dumper != null)
+			dumper.waitDumpsWritten();
+		file.delete();
+	}
+
+	public void testOverlappingWindows() throws Exception {
+		Dumper dumper = createDumper("");
+		int loc = AProfRegistry.registerAllocationPoint("com.example.WindowItem", "com.example.Phase.run");
+		allocate(loc, 3);
+		dumper.startWindow("all");
+		allocate(loc, 5);
+		dumper.startWindow("steady");
+		allocate(loc, 7);
+		dumper.resetTotal(); // shall not affect windows
+		allocate(loc, 11);
+		assertEquals(18, getCount(dumper.stopWindow("steady").getResult()));
+		allocate(loc, 13);
+		MeasurementWindow all = dumper.stopWindow("all");
+		assertEquals(36, getCount(all.getResult()));
+		assertSame(all, dumper.getWindow("all"));
+		try {
+			dumper.stopWindow("all");
+			fail("Stopped window shall not be stopped again");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		dumper.startWindow("all"); // restart
+		allocate(loc, 1);
+		assertEquals(1, getCount(dumper.stopWindow("all").getResult()));
+	}
+
+	public void testWindowLimit() throws Exception {
+		Dumper dumper = createDumper(":windows=2");
+		dumper.startWindow("a");
+		dumper.startWindow("b");
+		dumper.startWindow("b"); // restart does not need another window
+		try {
+			dumper.startWindow("c");
+			fail("Window shall not be started when all kept windows are running");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		dumper.stopWindow("a");
+		dumper.startWindow("c"); // forgets stopped window a
+		assertNull(dumper.getWindow("a"));
+		assertTrue(dumper.getWindow("b").isRunning());
+		assertTrue(dumper.getWindow("c").isRunning());
+	}
+
+	private Dumper createDumper(String args) throws Exception {
+		Configuration config = new Configuration("file=" + file.getPath() + args);
+		AProfRegistry.init(config);
+		return dumper = new Dumper(config, System.currentTimeMillis());
+	}
+
+	private static void allocate(int loc, int n) {
+		for (int i = 0; i < n; i++)
+			AProfOps.allocate(LocationStack.get(), loc);
+	}
+
+	private static long getCount(SnapshotRoot ss) {
+		int i = ss.findChild("com.example.WindowItem");
+		return i < ss.getUsed() ? ss.getChild(i).getTotalCount() : 0;
+	}
+}
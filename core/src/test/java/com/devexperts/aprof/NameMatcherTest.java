@@ -0,0 +1,67 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import com.devexperts.aprof.util.NameMatcher;
+import junit.framework.TestCase;
+
+public class NameMatcherTest extends TestCase {
+	public void testEmpty() {
+		NameMatcher m = NameMatcher.compile(new String[0], false);
+		assertTrue(m.isEmpty());
+		assertFalse(m.matches("java.lang.String"));
+		assertEquals(-1, m.matchLength(""));
+	}
+
+	public void testExactAndWildcard() {
+		NameMatcher m = NameMatcher.compile(new String[] {"java.lang.String", "com.example.*", "a.B.foo"}, false);
+		assertFalse(m.isEmpty());
+		assertTrue(m.matches("java.lang.String"));
+		assertFalse(m.matches("java.lang.StringBuilder"));
+		assertFalse(m.matches("java.lang.Strin"));
+		assertTrue(m.matches("com.example.Foo"));
+		assertTrue(m.matches("com.example.sub.Bar"));
+		assertFalse(m.matches("com.examples.Foo"));
+		assertTrue(m.matches(new StringBuilder("a.B.foo")));
+		assertFalse(m.matches("a.B.fo"));
+		assertEquals(12, m.matchLength("com.example.Foo"));
+		assertEquals(16, m.matchLength("java.lang.String"));
+	}
+
+	public void testPrefixes() {
+		NameMatcher m = NameMatcher.compile(new String[] {"sun.reflect.GeneratedMethodAccessor", "sun.reflect.Generated"}, true);
+		assertEquals(35, m.matchLength("sun.reflect.GeneratedMethodAccessor12"));
+		assertEquals(21, m.matchLength("sun.reflect.GeneratedConstructorAccessor12"));
+		assertEquals(21, m.matchLength("sun.reflect.Generated"));
+		assertEquals(-1, m.matchLength("sun.reflect.Gen"));
+	}
+
+	public void testOverlappingAggregates() throws IOException {
+		AProfRegistry.init(new Configuration("aggregate=sun.reflect.GeneratedMethodAccessor,sun.reflect.Generated"));
+		assertEquals("sun.reflect.GeneratedMethodAccessor", AProfRegistry.normalize("sun.reflect.GeneratedMethodAccessor12"));
+		assertEquals("sun.reflect.Generated", AProfRegistry.normalize("sun.reflect.Generated34"));
+		assertEquals("sun.reflect.GeneratedConstructorAccessor", AProfRegistry.normalize("sun.reflect.GeneratedConstructorAccessor"));
+	}
+}
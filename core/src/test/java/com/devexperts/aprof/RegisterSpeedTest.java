@@ -0,0 +1,103 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures throughput of concurrent registration of allocation roots during warmup,
+ * when many threads discover new datatypes and locations (like reflection-heavy frameworks do).
+ * Usage: <code>RegisterSpeedTest [&lt;threads&gt; [&lt;datatypes&gt; [&lt;locations&gt;]]]</code>.
+ */
+public class RegisterSpeedTest {
+	private static final int PASSES = 5;
+
+	private final NumberFormat nf = NumberFormat.getInstance(Locale.US);
+
+	private final int threads;
+	private final int datatypes;
+	private final int locations;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int datatypes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int locations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		AProfRegistry.init(new Configuration());
+		new RegisterSpeedTest(threads, datatypes, locations).go();
+	}
+
+	private RegisterSpeedTest(int threads, int datatypes, int locations) {
+		this.threads = threads;
+		this.datatypes = datatypes;
+		this.locations = locations;
+	}
+
+	private void go() throws InterruptedException {
+		for (int pass = 1; pass <= PASSES; pass++) {
+			// every pass registers brand new names, so that it measures warmup and not lookup of registered roots
+			String[] names = new String[datatypes];
+			String[] locs = new String[locations];
+			for (int i = 0; i < datatypes; i++)
+				names[i] = "com.example.pass" + pass + ".Bean" + i + "$$EnhancerByProxy";
+			for (int i = 0; i < locations; i++)
+				locs[i] = "com.example.pass" + pass + ".Mapper.read" + i;
+			runPass(pass, names, locs);
+		}
+	}
+
+	private void runPass(int pass, final String[] names, final String[] locs) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] ts = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int threadNo = t;
+			ts[t] = new Thread("Register-" + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					// all threads register the same roots starting from different offsets to collide on slow path
+					int n = names.length * locs.length;
+					for (int i = 0; i < n; i++) {
+						int k = (i + threadNo * (n / threads)) % n;
+						AProfRegistry.registerAllocationPoint(names[k / locs.length], locs[k % locs.length]);
+					}
+				}
+			};
+			ts[t].start();
+		}
+		long time = System.nanoTime();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		time = System.nanoTime() - time;
+		long ops = (long)threads * names.length * locs.length;
+		System.out.println("Pass #" + pass + ": " + threads + " threads registered " +
+			nf.format(names.length * locs.length) + " roots with " + nf.format(ops) + " calls in " +
+			nf.format(time / 1000000) + " ms (" + nf.format(ops * 1000000000L / time) + " ops)");
+	}
+}
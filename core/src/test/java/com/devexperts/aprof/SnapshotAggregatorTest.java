@@ -0,0 +1,49 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class SnapshotAggregatorTest extends TestCase {
+	public void testMerge() {
+		SnapshotRoot merged = SnapshotAggregator.merge(new SnapshotRoot[] {
+			createSnapshot(1000, "a.B.c", 2, 32), null, createSnapshot(3000, "x.Y.z", 1, 16) });
+		assertEquals(3000, merged.getTime());
+		assertEquals(3, merged.getTotalCount());
+		assertEquals(48, merged.getSize());
+		assertEquals(1, merged.getUsed());
+		SnapshotDeep type = merged.getChild(0);
+		assertEquals(2, type.getUsed());
+		assertEquals(2, type.getChild(type.findChild("a.B.c")).getTotalCount());
+		assertEquals(16, type.getChild(type.findChild("x.Y.z")).getSize());
+	}
+
+	private static SnapshotRoot createSnapshot(long time, String location, long count, long size) {
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.setTime(time);
+		ss.getOrCreateChild("java.lang.Object", false, 0).getOrCreateChild(location).add(count, size);
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+}
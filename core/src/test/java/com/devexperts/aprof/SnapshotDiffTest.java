@@ -0,0 +1,113 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.*;
+import java.util.*;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class SnapshotDiffTest extends TestCase {
+	public void testReadTextDump() throws Exception {
+		File file = File.createTempFile("aprof", ".txt");
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			DumpFormatter formatter = new DumpFormatter(new Configuration("threshold=10:level=0"));
+			formatter.dumpSnapshot(out, createSnapshot(10000, 1, 1), "LAST");
+			formatter.dumpSnapshot(out, createSnapshot(20000, 2, 3), "TOTAL");
+			out.close();
+			SnapshotRoot ss = DumpReader.read(file);
+			assertEquals(20000, ss.getTime());
+			assertEquals(2 * 1000 + 2 * 10 + 2 * 10 + 3 * 1000, ss.getTotalCount());
+			SnapshotDiff diff = new SnapshotDiff(ss, ss);
+			Set<String> keys = new HashSet<String>();
+			for (SnapshotDiff.Site site : diff.getSites())
+				keys.add(site.getKey());
+			assertEquals(new HashSet<String>(Arrays.asList(
+				"char[];a.B.c;x.Y.z", "char[];a.B.c;<unknown>", "char[];rare.Location.m", "java.lang.String;a.B.c")),
+				keys);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testReadSerializedDump() throws Exception {
+		File file = File.createTempFile("aprof", ".ser");
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+			out.writeObject(createSnapshot(5000, 1, 1));
+			out.close();
+			SnapshotRoot ss = DumpReader.read(file);
+			assertEquals(5000, ss.getTime());
+			assertEquals(1000 + 1000 + 2 * 10, ss.getTotalCount());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testBudget() throws Exception {
+		// same time, string allocations grow 3 times, arrays do not change
+		SnapshotDiff diff = new SnapshotDiff(createSnapshot(10000, 1, 1), createSnapshot(10000, 1, 3));
+		SnapshotDiff.Site top = diff.getTopMovers(SnapshotDiff.Metric.COUNT, 1).get(0);
+		assertEquals("java.lang.String;a.B.c", top.getKey());
+		assertEquals(200.0, top.getDeltaRate(SnapshotDiff.Metric.COUNT), 1e-9);
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		diff.printRate(out, top, SnapshotDiff.Metric.COUNT);
+		out.print("; ");
+		SnapshotDiff drop = new SnapshotDiff(createSnapshot(10000, 3, 1), createSnapshot(10000, 1, 1));
+		drop.printRate(out, drop.getTopMovers(SnapshotDiff.Metric.COUNT, 1).get(0), SnapshotDiff.Metric.COUNT);
+		out.flush();
+		assertEquals("100 -> 300 count/s (+200, +200.00%); 300 -> 100 count/s (-200, -66.67%)", sw.toString());
+		assertEquals(0, check(diff, "char[];* bytes +0%"));
+		assertEquals(0, check(diff, "java.lang.String;* count +201/s"));
+		assertEquals(1, check(diff, "java.lang.String;* count +199/s"));
+		assertEquals(1, check(diff, "java.lang.* bytes +199%\n# comment\n*;x.Y.? count +10%"));
+		assertEquals(0, check(diff, "java.lang.* bytes +200%"));
+	}
+
+	private static int check(SnapshotDiff diff, String rules) throws IOException {
+		File file = File.createTempFile("aprof", ".budget");
+		try {
+			FileWriter out = new FileWriter(file);
+			out.write(rules);
+			out.close();
+			return DiffBudget.load(file).check(diff, new PrintWriter(new StringWriter()));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static SnapshotRoot createSnapshot(long time, int arrays, int strings) {
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.setTime(time);
+		SnapshotDeep array = ss.getOrCreateChild("char[]", true, 0);
+		SnapshotDeep location = array.getOrCreateChild("a.B.c");
+		location.getOrCreateChild("x.Y.z").add(arrays * 1000, arrays * 48000);
+		location.getOrCreateChild(SnapshotDeep.UNKNOWN).add(arrays * 10, arrays * 480);
+		array.getOrCreateChild("rare.Location.m").add(arrays * 10, arrays * 480);
+		ss.getOrCreateChild("java.lang.String", false, 0).getOrCreateChild("a.B.c").add(strings * 1000, strings * 24000);
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+}
@@ -0,0 +1,142 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.*;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class SnapshotExportTest extends TestCase {
+	public void testJsonLines() throws Exception {
+		assertEquals(
+			"{\"kind\":\"TOTAL\",\"time\":1000,\"type\":\"char[]\",\"path\":[\"a.B.c\",\"x.Y.z\"],\"count\":5,\"bytes\":100,\"histogram\":[1,2,2]}\n" +
+			"{\"kind\":\"TOTAL\",\"time\":1000,\"type\":\"char[]\",\"path\":[\"a.B.c\",\"<unknown>\"],\"count\":1,\"bytes\":-20}\n" +
+			"{\"kind\":\"TOTAL\",\"time\":1000,\"type\":\"q\\\"q\",\"path\":[],\"count\":3,\"bytes\":72}\n",
+			format(new JsonLinesFormatter(new Configuration()), createSnapshot()));
+	}
+
+	public void testCollapsedStacks() throws Exception {
+		assertEquals(
+			"TOTAL;x.Y.z;a.B.c;char[] 100\n" +
+			"TOTAL;q\"q 72\n",
+			format(new CollapsedStackFormatter(new Configuration()), createSnapshot()));
+		assertEquals(
+			"TOTAL;x.Y.z;a.B.c;char[] 5\n" +
+			"TOTAL;<unknown>;a.B.c;char[] 1\n" +
+			"TOTAL;q\"q 3\n",
+			format(new CollapsedStackFormatter(new Configuration("size=false")), createSnapshot()));
+	}
+
+	public void testOpenMetrics() throws Exception {
+		SnapshotRoot ss = createSnapshot();
+		ss.getOrCreateChild("line\nbreak", false, 0).getOrCreateChild("a\\b").add(1, 16);
+		ss.updateSnapshotSumDeep();
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		new OpenMetricsFormatter(2, true).format(out, ss, true);
+		out.flush();
+		assertEquals(
+			"# TYPE aprof_uptime_seconds gauge\n" +
+			"# HELP aprof_uptime_seconds Time since aprof agent start.\n" +
+			"aprof_uptime_seconds 1.000\n" +
+			"# TYPE aprof_allocated_objects counter\n" +
+			"# HELP aprof_allocated_objects Objects allocated.\n" +
+			"aprof_allocated_objects_total 10\n" +
+			"# TYPE aprof_allocated_bytes counter\n" +
+			"# HELP aprof_allocated_bytes Bytes allocated.\n" +
+			"aprof_allocated_bytes_total 168\n" +
+			"# TYPE aprof_type_allocated_objects counter\n" +
+			"# HELP aprof_type_allocated_objects Objects allocated by top data types.\n" +
+			"aprof_type_allocated_objects_total{type=\"char[]\"} 6\n" +
+			"aprof_type_allocated_objects_total{type=\"q\\\"q\"} 3\n" +
+			"# TYPE aprof_type_allocated_bytes counter\n" +
+			"# HELP aprof_type_allocated_bytes Bytes allocated by top data types.\n" +
+			"aprof_type_allocated_bytes_total{type=\"char[]\"} 80\n" +
+			"aprof_type_allocated_bytes_total{type=\"q\\\"q\"} 72\n" +
+			"# TYPE aprof_site_allocated_objects counter\n" +
+			"# HELP aprof_site_allocated_objects Objects allocated at top allocation sites.\n" +
+			"aprof_site_allocated_objects_total{type=\"char[]\",location=\"a.B.c\"} 6\n" +
+			"aprof_site_allocated_objects_total{type=\"line\\nbreak\",location=\"a\\\\b\"} 1\n" +
+			"# TYPE aprof_site_allocated_bytes counter\n" +
+			"# HELP aprof_site_allocated_bytes Bytes allocated at top allocation sites.\n" +
+			"aprof_site_allocated_bytes_total{type=\"char[]\",location=\"a.B.c\"} 80\n" +
+			"aprof_site_allocated_bytes_total{type=\"line\\nbreak\",location=\"a\\\\b\"} 16\n" +
+			"# EOF\n",
+			sw.toString());
+	}
+
+	public void testFormatPerDump() throws Exception {
+		File file = File.createTempFile("aprof", ".txt");
+		try {
+			Configuration config = new Configuration("file=" + file.getPath());
+			AProfRegistry.init(config);
+			Dumper dumper = new Dumper(config, System.currentTimeMillis());
+			dumper.makeDump(false, DumpFormat.COLLAPSED);
+			dumper.waitDumpsWritten();
+			assertFalse(readFile(file).startsWith("#")); // no report header
+			dumper.makeDump(false);
+			dumper.waitDumpsWritten();
+			assertTrue(readFile(file).startsWith("####"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static String readFile(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] buf = new char[4096];
+			for (int n; (n = in.read(buf)) > 0;)
+				sb.append(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return sb.toString();
+	}
+
+	private static String format(SnapshotFormatter formatter, SnapshotRoot ss) {
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		formatter.dumpSnapshot(out, ss, "TOTAL");
+		out.flush();
+		return sw.toString();
+	}
+
+	private static SnapshotRoot createSnapshot() {
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.setTime(1000);
+		SnapshotDeep array = ss.getOrCreateChild("char[]", true, 2);
+		SnapshotDeep location = array.getOrCreateChild("a.B.c");
+		SnapshotDeep tracked = location.getOrCreateChild("x.Y.z");
+		tracked.add(1, 100);
+		tracked.addHistoCount(0, 2);
+		tracked.addHistoCount(1, 2);
+		location.getOrCreateChild("<unknown>", true, 0).add(1, -20);
+		location.getOrCreateChild("empty");
+		ss.getOrCreateChild("q\"q", false, 0).add(3, 72);
+		ss.getOrCreateChild("empty", false, 0);
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+}
@@ -0,0 +1,123 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class SnapshotJournalTest extends TestCase {
+	private File file;
+	private File dumpFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("aprof", ".journal");
+		file.delete();
+		dumpFile = File.createTempFile("aprof", ".txt");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		SnapshotJournal.getIndexFile(file).delete();
+		dumpFile.delete();
+	}
+
+	public void testAppendAndQuery() throws IOException {
+		SnapshotJournal journal = new SnapshotJournal(file);
+		journal.append(createDelta(1, 100), 1000, 2000);
+		journal.append(createDelta(2, -3), 2000, 3000);
+		journal.close();
+		// reopen and append after partially written index entry
+		RandomAccessFile index = new RandomAccessFile(SnapshotJournal.getIndexFile(file), "rw");
+		index.seek(index.length());
+		index.write(new byte[5]);
+		index.close();
+		journal = new SnapshotJournal(file);
+		journal.append(createDelta(4, 7), 3000, 4000);
+		journal.close();
+
+		SnapshotJournalReader reader = new SnapshotJournalReader(file);
+		try {
+			assertEquals(3, reader.getRecordCount());
+			assertEquals(3000, reader.getStartTime(2));
+			assertEquals(1, reader.findFirstEndingAfter(2000));
+
+			SnapshotRoot ss = reader.query(2500, 3500);
+			assertEquals(2000, ss.getTime());
+			assertEquals(6, ss.getTotalCount());
+			SnapshotDeep type = ss.getChild(ss.findChild("char[]"));
+			assertTrue(type.isArray());
+			assertEquals(6 * 16 + 7, type.getSize());
+			assertEquals(6, type.getOrCreateChild("a.B.c").getOrCreateChild(SnapshotDeep.UNKNOWN).getTotalCount());
+			assertEquals(6, type.getHistoCounts()[1]);
+
+			assertEquals(7, reader.query(0, Long.MAX_VALUE).getTotalCount());
+			assertNull(reader.query(5000, 6000));
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testResetTotalIsJournaled() throws Exception {
+		Configuration config = new Configuration("journal.file=" + file.getPath() + ":file=" + dumpFile.getPath());
+		AProfRegistry.init(config);
+		int loc = AProfRegistry.registerAllocationPoint("com.example.ResetItem", "com.example.Phase.run");
+		Dumper dumper = new Dumper(config, System.currentTimeMillis());
+		for (int i = 0; i < 5; i++)
+			AProfOps.allocate(LocationStack.get(), loc);
+		dumper.resetTotal(); // shall write allocations since previous dump before discarding them
+		dumper.closeJournal();
+		SnapshotRoot total = new SnapshotRoot();
+		dumper.copyTotalSnapshotTo(total);
+		assertEquals(0, findCount(total));
+		SnapshotJournalReader reader = new SnapshotJournalReader(file);
+		try {
+			assertEquals(1, reader.getRecordCount());
+			assertEquals(5, findCount(reader.query(0, Long.MAX_VALUE)));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static long findCount(SnapshotRoot ss) {
+		int i = ss.findChild("com.example.ResetItem");
+		return i < ss.getUsed() ? ss.getChild(i).getTotalCount() : 0;
+	}
+
+	private static SnapshotRoot createDelta(int count, int tracked) {
+		SnapshotRoot ss = new SnapshotRoot();
+		SnapshotDeep type = ss.getOrCreateChild("char[]", true, 2);
+		SnapshotDeep location = type.getOrCreateChild("a.B.c");
+		if (tracked > 0)
+			location.getOrCreateChild("x.Y.z").add(0, tracked);
+		SnapshotDeep unknown = location.getOrCreateChild(SnapshotDeep.UNKNOWN);
+		unknown.addHistoCount(1, count);
+		unknown.add(0, count * 16);
+		ss.updateSnapshotSumDeep();
+		return ss;
+	}
+}
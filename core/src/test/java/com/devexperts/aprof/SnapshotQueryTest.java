@@ -0,0 +1,103 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.dump.*;
+import junit.framework.TestCase;
+
+public class SnapshotQueryTest extends TestCase {
+	public void testParse() {
+		SnapshotQuery.parse("TOP 50 BY SIZE WHERE TYPE LIKE 'char[]' DEPTH 2");
+		SnapshotQuery.parse("top 1 by count");
+		SnapshotQuery.parse("TOP 10 WHERE TYPE LIKE 'it''s%'");
+		assertInvalid("TOP");
+		assertInvalid("TOP 5 BY NAME");
+		assertInvalid("TOP 5 DEPTH 0");
+		assertInvalid("TOP 5 WHERE TYPE LIKE 'x");
+	}
+
+	public void testApply() {
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.setTime(1000);
+		SnapshotDeep chars = ss.getOrCreateChild("char[]", true, 0);
+		chars.getOrCreateChild("a.B.c").getOrCreateChild("x.Y.z").add(1, 100);
+		chars.getOrCreateChild("a.B.d").add(2, 50);
+		chars.getOrCreateChild("a.B.e").add(5, 10);
+		ss.getOrCreateChild("byte[]", true, 0).getOrCreateChild("a.B.c").add(1, 1000);
+		ss.getOrCreateChild("java.lang.String", false, 0).getOrCreateChild("a.B.c").add(3, 72);
+		ss.updateSnapshotSumDeep();
+
+		SnapshotRoot result = SnapshotQuery.parse("TOP 2 BY SIZE WHERE TYPE LIKE '%[]' DEPTH 2").apply(ss);
+		assertEquals(1000, result.getTime());
+		assertEquals(1160, result.getSize());
+		assertEquals(9, result.getTotalCount());
+		assertEquals(2, result.getUsed());
+		assertEquals("byte[]", result.getChild(0).getName());
+		SnapshotDeep type = result.getChild(1);
+		assertEquals("char[]", type.getName());
+		assertEquals(160, type.getSize());
+		assertEquals(2, type.getUsed());
+		assertEquals("a.B.c", type.getChild(0).getName());
+		assertEquals(0, type.getChild(0).getUsed()); // pruned by depth
+		assertEquals(100, type.getChild(0).getSize());
+		assertEquals("a.B.d", type.getChild(1).getName());
+
+		result = SnapshotQuery.parse("TOP 1 BY COUNT WHERE TYPE LIKE 'char__'").apply(ss);
+		assertEquals(1, result.getChild(0).getUsed());
+		assertEquals("a.B.e", result.getChild(0).getChild(0).getName());
+	}
+
+	public void testResultIsSortedByName() {
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.getOrCreateChild("a.Small", false, 0).getOrCreateChild("z.Z.z").add(1, 16);
+		SnapshotDeep big = ss.getOrCreateChild("b.Big", false, 0);
+		big.getOrCreateChild("z.Z.z").add(10, 160);
+		big.getOrCreateChild("a.A.a").add(5, 80);
+		ss.getOrCreateChild("c.Medium", false, 0).getOrCreateChild("m.M.m").add(3, 48);
+		ss.updateSnapshotSumDeep();
+
+		SnapshotRoot result = SnapshotQuery.parse("TOP 2 BY SIZE").apply(ss);
+		assertEquals("b.Big", result.getChild(0).getName());
+		assertEquals("c.Medium", result.getChild(1).getName());
+		assertEquals("a.A.a", result.getChild(0).getChild(0).getName());
+		assertEquals("z.Z.z", result.getChild(0).getChild(1).getName());
+		// merges with a snapshot that has the same nodes
+		result.addDeep(ss);
+		assertEquals(3, result.getUsed());
+		assertEquals(20, big(result).getChild(big(result).findChild("z.Z.z")).getTotalCount());
+		assertEquals(10, big(result).getChild(big(result).findChild("a.A.a")).getTotalCount());
+	}
+
+	private static SnapshotDeep big(SnapshotRoot ss) {
+		return ss.getChild(ss.findChild("b.Big"));
+	}
+
+	private static void assertInvalid(String query) {
+		try {
+			SnapshotQuery.parse(query);
+			fail("Invalid query shall be rejected: " + query);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.devexperts.aprof.dump.SnapshotShallow;
+import junit.framework.TestCase;
+
+public class SnapshotShallowTest extends TestCase {
+	public void testAddLongerHistogram() {
+		SnapshotShallow to = new SnapshotShallow("int[]", true, 1);
+		to.add(1, 100, new long[] {2, 3, 4});
+		assertEquals(1 + 3 + 4, to.getCount());
+		assertEquals(2, to.getHistoCounts()[0]);
+		assertEquals(10, to.getTotalCount());
+		assertEquals(100, to.getSize());
+	}
+
+	public void testSubLongerHistogram() {
+		SnapshotShallow to = new SnapshotShallow("int[]", true, 1);
+		to.add(1, 100, new long[] {2, 3, 4});
+		to.sub(1, 100, new long[] {2, 3, 4});
+		assertTrue(to.isEmpty());
+		assertEquals(0, to.getTotalCount());
+	}
+
+	public void testAddShallowIntoPlainNode() {
+		SnapshotShallow from = new SnapshotShallow("int[]", true, 2);
+		from.add(5, 50);
+		from.addHistoCount(0, 1);
+		from.addHistoCount(1, 2);
+		SnapshotShallow to = new SnapshotShallow();
+		to.addShallow(from);
+		assertEquals(from.getTotalCount(), to.getTotalCount());
+		to.subShallow(from);
+		assertEquals(0, to.getTotalCount());
+	}
+}
@@ -0,0 +1,119 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.devexperts.aprof.util.FastArrayList;
+import com.devexperts.aprof.util.StringIndexer;
+import junit.framework.TestCase;
+
+public class StringIndexerTest extends TestCase {
+	private static final int THREADS = 8;
+	private static final int COUNT = 10000;
+
+	public void testBasic() {
+		StringIndexer indexer = new StringIndexer();
+		for (int i = 0; i < COUNT; i++)
+			assertEquals(i + 1, indexer.register(String.valueOf(i)));
+		assertEquals(COUNT, indexer.size());
+		for (int i = 0; i < COUNT; i++) {
+			assertEquals(i + 1, indexer.get(String.valueOf(i)));
+			assertEquals(String.valueOf(i), indexer.get(i + 1));
+		}
+		assertEquals(0, indexer.get("missing"));
+	}
+
+	public void testConcurrentRegister() throws Throwable {
+		final StringIndexer indexer = new StringIndexer();
+		final int[][] ids = new int[THREADS][COUNT];
+		runConcurrently(new Task() {
+			public void run(int t) {
+				// every thread registers the same strings, but in a different order
+				for (int i = 0; i < COUNT; i++) {
+					int k = (i * 7919 + t * 104729) % COUNT;
+					ids[t][k] = indexer.register(String.valueOf(k));
+				}
+			}
+		});
+		assertEquals(COUNT, indexer.size());
+		boolean[] used = new boolean[COUNT + 1];
+		for (int k = 0; k < COUNT; k++) {
+			int id = ids[0][k];
+			for (int t = 1; t < THREADS; t++)
+				assertEquals(id, ids[t][k]);
+			assertFalse(used[id]);
+			used[id] = true;
+			assertEquals(String.valueOf(k), indexer.get(id));
+		}
+	}
+
+	public void testConcurrentPutIfAbsent() throws Throwable {
+		final FastArrayList<String> list = new FastArrayList<String>();
+		final String[][] results = new String[THREADS][COUNT];
+		runConcurrently(new Task() {
+			public void run(int t) {
+				for (int i = 0; i < COUNT; i++) {
+					int k = (i * 7919 + t * 104729) % COUNT;
+					results[t][k] = list.putIfAbsent(k, t + ":" + k);
+				}
+			}
+		});
+		for (int k = 0; k < COUNT; k++) {
+			assertNotNull(list.get(k));
+			for (int t = 0; t < THREADS; t++)
+				assertSame(list.get(k), results[t][k]);
+		}
+	}
+
+	private interface Task {
+		void run(int t);
+	}
+
+	private static void runConcurrently(final Task task) throws Throwable {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int threadNo = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run(threadNo);
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw error.get();
+	}
+}
@@ -0,0 +1,80 @@
+package com.devexperts.aprof;
+
+/*-
+ * #%L
+ * Aprof Core
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.security.ProtectionDomain;
+import java.util.*;
+
+import com.devexperts.aprof.dump.SnapshotDeep;
+import com.devexperts.aprof.dump.SnapshotRoot;
+import junit.framework.TestCase;
+
+public class TrackingDiscoveryTest extends TestCase {
+	public void testFindCandidates() throws Exception {
+		Configuration config = new Configuration("track.file.replace=true:track=a.T.tracked:discover.callers=2");
+		final Map<String, Integer> callers = new HashMap<String, Integer>();
+		callers.put("a.F.make", 5);
+		callers.put("a.G.make", 1);
+		callers.put("a.H.many", 10);
+		callers.put("a.T.tracked", 10);
+		callers.put("a.S.small", 10);
+		callers.put("a.F.transform", 10);
+		TrackingTransformer transformer = new TrackingTransformer() {
+			public Set<String> updateTrackedMethods(Map<String, Set<String>> changedMethods) {
+				return Collections.emptySet();
+			}
+
+			public int getCallerCount(String className, String methodName) {
+				Integer count = callers.get(className + "." + methodName);
+				return count == null ? 0 : count;
+			}
+
+			public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+				ProtectionDomain protectionDomain, byte[] classfileBuffer)
+			{
+				return null;
+			}
+		};
+		SnapshotRoot ss = new SnapshotRoot();
+		ss.getOrCreateChild("byte[]", true, 0).getOrCreateChild("a.F.make").add(100, 1000);
+		ss.getOrCreateChild("char[]", true, 0).getOrCreateChild("a.F.make(int)").add(100, 500);
+		ss.getOrCreateChild("int[]", true, 0).getOrCreateChild("a.G.make").add(100, 2000);
+		for (String type : new String[] {"a.X1", "a.X2", "a.X3", "a.X4"})
+			ss.getOrCreateChild(type, false, 0).getOrCreateChild("a.H.many").add(10, 300);
+		ss.getOrCreateChild("long[]", true, 0).getOrCreateChild("a.T.tracked").add(100, 800);
+		ss.getOrCreateChild("short[]", true, 0).getOrCreateChild("a.S.small").add(1, 1);
+		ss.getOrCreateChild("float[]", true, 0).getOrCreateChild("a.F.transform")
+			.getOrCreateChild(AProfRegistry.TRANSFORM_NAME).add(100, 900);
+		ss.getOrCreateChild("java.lang.Object", false, 0).getOrCreateChild(SnapshotDeep.UNKNOWN).add(100, 100);
+		ss.updateSnapshotSumDeep();
+
+		List<TrackingDiscovery.Candidate> candidates =
+			new TrackingDiscovery(config, null, transformer, null).findCandidates(ss);
+		assertEquals(1, candidates.size());
+		TrackingDiscovery.Candidate candidate = candidates.get(0);
+		assertEquals("a.F", candidate.className);
+		assertEquals("make", candidate.methodName);
+		assertEquals(1500, candidate.allocations.getSize());
+		assertEquals(2, candidate.datatypes.size());
+		assertEquals(5, candidate.callers);
+	}
+}
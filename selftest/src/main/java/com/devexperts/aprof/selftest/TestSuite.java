@@ -50,6 +50,9 @@ public class TestSuite {
 			new TrackingTest(),
 			new TrackingDeepTest(),
 			new TrackingIntfTest(),
+			new TrackingRuntimeTest(),
+			new TrackingRuntimeIntfTest(),
+			new TrackingCallersTest(),
 			new DoubleTest(),
 			new IntegerTest(),
 			new StringTest(),
@@ -0,0 +1,101 @@
+package com.devexperts.aprof.selftest;
+
+/*-
+ * #%L
+ * Aprof Integration tests (selftest)
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.AProfAgent;
+import com.devexperts.aprof.Configuration;
+import com.devexperts.aprof.TrackingDiscovery;
+
+/**
+ * Checks that callers of static methods with the same name in different classes are counted separately
+ * when methods to track are discovered.
+ */
+class TrackingCallersTest implements TestCase {
+	private static Object temp; // prevent elimination
+
+	public String name() {
+		return "trackingCallers";
+	}
+
+	public String verifyConfiguration(Configuration config) {
+		AProfAgent agent = AProfAgent.getInstance();
+		if (agent == null || agent.getTrackingDiscovery() == null)
+			return "track.runtime";
+		return null;
+	}
+
+	public String[] getCheckedClasses() {
+		return null;
+	}
+
+	public String getExpectedStatistics(Configuration config) {
+		return null;
+	}
+
+	public void doTest() {
+		// make sure that all callers are loaded and transformed
+		temp = CallerA.run();
+		temp = CallerB.run();
+		temp = CallerC.run();
+		TrackingDiscovery discovery = AProfAgent.getInstance().getTrackingDiscovery();
+		checkCallerCount(discovery, MakerA.class, 1);
+		checkCallerCount(discovery, MakerB.class, 2);
+	}
+
+	private static void checkCallerCount(TrackingDiscovery discovery, Class<?> maker, int expected) {
+		int count = discovery.getCallerCount(maker.getName(), "make");
+		if (count != expected)
+			throw new AssertionError(maker.getName() + ".make is invoked from " + expected + " classes, " +
+				"but " + count + " are counted");
+	}
+
+	private static class MakerA {
+		static Object make() {
+			return new Object();
+		}
+	}
+
+	private static class MakerB {
+		static Object make() {
+			return new Object();
+		}
+	}
+
+	private static class CallerA {
+		static Object run() {
+			return MakerA.make();
+		}
+	}
+
+	private static class CallerB {
+		static Object run() {
+			return MakerB.make();
+		}
+	}
+
+	private static class CallerC {
+		static Object run() {
+			return MakerB.make();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.devexperts.aprof.selftest;
+
+/*-
+ * #%L
+ * Aprof Integration tests (selftest)
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.AProfAgent;
+import com.devexperts.aprof.AProfSizeUtil;
+import com.devexperts.aprof.Configuration;
+import com.devexperts.aprof.TrackingReconfiguration;
+
+/**
+ * Starts and stops tracking of a method at run-time, so that allocations made while it is tracked
+ * are attributed to its caller and the others are not.
+ */
+class TrackingRuntimeTest implements TestCase {
+	private static final int COUNT = 100000;
+	private static final String TRACKED_METHOD = Maker.class.getName() + ".make";
+	private static Entity temp; // prevent elimination
+
+	public String name() {
+		return "trackingRuntime";
+	}
+
+	public String verifyConfiguration(Configuration config) {
+		AProfAgent agent = AProfAgent.getInstance();
+		if (agent == null || agent.getTrackingReconfiguration() == null)
+			return "track.runtime";
+		if (config.isMethodTracked(Maker.class.getName(), "make"))
+			return "not tracked " + TRACKED_METHOD;
+		return null;
+	}
+
+	public String[] getCheckedClasses() {
+		return new String[] {getClass().getName() + "$"};
+	}
+
+	public String getExpectedStatistics(Configuration config) {
+		long objSize = AProfSizeUtil.getObjectSize(new Entity());
+		return TestUtil.fmt(
+			"{class}$Entity: {size2} bytes in {count2} objects (avg size {objSize} bytes)\n" +
+			"\t{class}$Maker.make: {size2} bytes in {count2} objects\n" +
+			"\t\t<unknown>: {size} bytes in {count} objects\n" +
+			"\t\t{class}.invokeMaker: {size} bytes in {count} objects\n",
+			"class=" + getClass().getName(),
+			"size=" + TestUtil.fmt(objSize * COUNT),
+			"count=" + TestUtil.fmt(COUNT),
+			"size2=" + TestUtil.fmt(2 * objSize * COUNT),
+			"count2=" + TestUtil.fmt(2 * COUNT),
+			"objSize=" + objSize);
+	}
+
+	public void doTest() throws InterruptedException {
+		TrackingReconfiguration reconfiguration = AProfAgent.getInstance().getTrackingReconfiguration();
+		// classes are redefined in between, so allocations are made from methods that are invoked afterwards
+		reconfiguration.requestUpdate(new String[] {TRACKED_METHOD}, new String[0]);
+		reconfiguration.waitUpdated();
+		invokeMaker();
+		reconfiguration.requestUpdate(new String[0], new String[] {TRACKED_METHOD});
+		reconfiguration.waitUpdated();
+		invokeMaker();
+	}
+
+	private void invokeMaker() {
+		for (int i = 0; i < COUNT; i++)
+			temp = Maker.make();
+	}
+
+	private static class Maker {
+		static Entity make() {
+			return new Entity();
+		}
+	}
+
+	private static class Entity {
+	}
+}
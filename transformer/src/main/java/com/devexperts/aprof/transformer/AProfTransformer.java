@@ -25,35 +25,37 @@ package com.devexperts.aprof.transformer;
 import com.devexperts.aprof.AProfRegistry;
 import com.devexperts.aprof.Configuration;
 import com.devexperts.aprof.LocationStack;
+import com.devexperts.aprof.TrackingTransformer;
 import com.devexperts.aprof.util.Log;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.commons.TryCatchBlockSorter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 /**
  * @author Roman Elizarov
  * @author Dmitry Paraschenko
  * @author Denis Davydov
  */
-public class AProfTransformer implements ClassFileTransformer {
+public class AProfTransformer implements TrackingTransformer {
 	private final Configuration config;
 	private final ClassInfoCache ciCache;
+	private final InvocationIndex invocationIndex; // null when tracked methods do not change at run-time
 	private final StringBuilder sharedStringBuilder = new StringBuilder();
 
 	public AProfTransformer(Configuration config) {
 		this.config = config;
 		ciCache = new ClassInfoCache(config);
+		invocationIndex = config.isRuntimeTracking() ? new InvocationIndex() : null;
 		AProfRegistry.addDirectCloneClass(TransformerUtil.OBJECT_CLASS_NAME);
 	}
 
@@ -71,6 +73,27 @@ public class AProfTransformer implements ClassFileTransformer {
 		}
 	}
 
+	public Set<String> updateTrackedMethods(Map<String, Set<String>> changedMethods) {
+		ciCache.updateTrackedClasses(changedMethods.keySet());
+		Set<String> keys = new HashSet<String>();
+		for (Map.Entry<String, Set<String>> entry : changedMethods.entrySet()) {
+			String internalClassName = entry.getKey().replace('.', '/');
+			Set<String> methodNames = entry.getValue().contains(TransformerUtil.ANY_METHOD) ?
+				ciCache.getMethodNames(internalClassName) : entry.getValue();
+			ciCache.collectInvocationKeys(internalClassName, methodNames, keys);
+		}
+		// classes with changed tracked methods have their bodies transformed differently, too
+		Set<String> classNames = new HashSet<String>(changedMethods.keySet());
+		invocationIndex.collectCallers(keys, classNames);
+		return classNames;
+	}
+
+	public int getCallerCount(String className, String methodName) {
+		Set<String> keys = new HashSet<String>();
+		ciCache.collectInvocationKeys(className.replace('.', '/'), Collections.singleton(methodName), keys);
+		return invocationIndex.getCallerCount(keys);
+	}
+
 	int anonCount;
 
 	private byte[] transformImpl(ClassLoader loader, String internalClassName,
@@ -91,10 +114,29 @@ public class AProfTransformer implements ClassFileTransformer {
 			log(classNo, "Skipping transformation of excluded class", cname, loader, null);
 			return null;
 		}
+		if (!anonymous && !config.isIncludedClass(cname)) {
+			if (config.isVerbose())
+				log(classNo, "Skipping transformation of not included class", cname, loader, null);
+			return null;
+		}
 		try {
 			ClassReader cr = new ClassReader(classFileBuffer);
 
-			// ---- 1ST PASS: ANALYZE CLASS ----
+			// ---- PARSE CLASS ONCE ----
+
+			// Class file is parsed into a tree exactly once, both analysis and transformation replay it.
+			// Major version is peeked from the header, because reader flags depend on it.
+			int fileVersion = cr.readUnsignedShort(6);
+			boolean computeFrames = fileVersion >= Opcodes.V1_6 && !config.isNoFrames();
+			boolean keepFrames = computeFrames && config.isKeepFrames();
+			int readFlags =
+				(config.isSkipDebug() ? ClassReader.SKIP_DEBUG : 0) +
+				(keepFrames ? ClassReader.EXPAND_FRAMES :
+					config.isNoFrames() || computeFrames ? ClassReader.SKIP_FRAMES : 0);
+			ClassNode classNode = new ClassNode(TransformerUtil.ASM_API);
+			cr.accept(classNode, readFlags);
+
+			// ---- ANALYZE CLASS ----
 
 			// Also build class info if we don't have it yet in cache
 			ClassInfo classInfo = anonymous ? null : classInfoMap.get(internalClassName);
@@ -104,9 +146,11 @@ public class AProfTransformer implements ClassFileTransformer {
 			// set & check name if it was not anonymous
 			if (!anonymous)
 				classAnalyzer.initNames(internalClassName, cname);
-			cr.accept(classAnalyzer, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES);
+			classNode.accept(classAnalyzer);
 			if (classInfoVisitor != null)
 				classInfoMap.put(internalClassName, classInfoVisitor.result);
+			if (!anonymous && invocationIndex != null)
+				invocationIndex.addCaller(loader, cname, classAnalyzer.invokedMethods);
 			// get names from analyzer (from inside class file) if it was anonymous
 			if (anonymous) {
 				internalClassName = classAnalyzer.binaryClassName;
@@ -115,29 +159,24 @@ public class AProfTransformer implements ClassFileTransformer {
 
 			// check if transformation is needed
 			boolean transformationNeeded = false;
-			for (Context methodContext : classAnalyzer.contexts) {
-				if (methodContext.isTransformationNeeded()) {
+			for (Context methodContext : classAnalyzer.contexts)
+				if (methodContext.isTransformationNeeded())
 					transformationNeeded = true;
-					break;
-				}
-			}
 			if (!transformationNeeded) {
 				if (config.isVerbose()) // Note: shall have the same message length as "Transformed"
 					log(classNo, "Analyzed   ", cname, loader, null);
-				return null; // don't transform classes that don't need transformation
+				return null; // don't write classes that don't need transformation
 			}
 
-			// ---- 2ND PASS: TRANSFORM CLASS ----
+			// ---- TRANSFORM CLASS ----
 
-			boolean computeFrames = classAnalyzer.classVersion >= Opcodes.V1_6 && !config.isNoFrames();
-			ClassWriter cw = computeFrames ?
+			ClassWriter cw = computeFrames && !keepFrames ?
 				new FrameClassWriter(cr, loader) :
-				new ClassWriter(ClassWriter.COMPUTE_MAXS);
-			ClassVisitor classTransformer = new ClassTransformer(cw, classAnalyzer.contexts, classAnalyzer.classVersion);
-			int transformFlags =
-				(config.isSkipDebug() ? ClassReader.SKIP_DEBUG : 0) +
-				(config.isNoFrames() || computeFrames ? ClassReader.SKIP_FRAMES : 0);
-			cr.accept(classTransformer, transformFlags);
+				new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+			Iterator<MethodNode> computedMethods = keepFrames ?
+				computeFrames(classNode, classAnalyzer.contexts, classAnalyzer.classVersion, loader) : null;
+			classNode.accept(new ClassTransformer(cw, classAnalyzer.contexts, classAnalyzer.classVersion, keepFrames,
+				computedMethods));
 
 			// Convert transformed class to byte array, dump (if needed) and return
 			byte[] bytes = cw.toByteArray();
@@ -153,13 +192,38 @@ public class AProfTransformer implements ClassFileTransformer {
 		}
 	}
 
-	private boolean isExcluded(String cname) {
-		for (String s : config.getExcludedClasses()) {
-			if (cname.equals(s)) {
-				return true;
+	/**
+	 * ClassWriter computes frames for a whole class, so methods that need frame computation are transformed
+	 * in a separate class that contains only them, and are copied from there.
+	 * @return transformed methods that need frame computation in order.
+	 */
+	private Iterator<MethodNode> computeFrames(ClassNode classNode, List<Context> contexts, int classVersion,
+		ClassLoader loader)
+	{
+		ClassNode stub = new ClassNode(TransformerUtil.ASM_API);
+		stub.version = classNode.version;
+		stub.access = classNode.access;
+		stub.name = classNode.name;
+		stub.superName = classNode.superName;
+		stub.interfaces = classNode.interfaces;
+		List<Context> stubContexts = new ArrayList<Context>();
+		for (int i = 0; i < contexts.size(); i++)
+			if (contexts.get(i).isFrameComputationNeeded()) {
+				stub.methods.add(classNode.methods.get(i));
+				stubContexts.add(contexts.get(i));
 			}
-		}
-		return false;
+		if (stubContexts.isEmpty())
+			return Collections.<MethodNode>emptyList().iterator();
+		AProfRegistry.incrementFrameRecomputeCount(stubContexts.size());
+		ClassWriter cw = new FrameClassWriter(loader);
+		stub.accept(new ClassTransformer(cw, stubContexts, classVersion, false, null));
+		ClassNode computed = new ClassNode(TransformerUtil.ASM_API);
+		new ClassReader(cw.toByteArray()).accept(computed, 0);
+		return computed.methods.iterator();
+	}
+
+	private boolean isExcluded(String cname) {
+		return config.isExcludedClass(cname);
 	}
 
 	private void log(int classNo, String message, String cname, ClassLoader loader, Throwable error) {
@@ -212,6 +276,7 @@ public class AProfTransformer implements ClassFileTransformer {
 		private boolean isNormal;
 
 		final List<Context> contexts = new ArrayList<Context>();
+		final Set<String> invokedMethods = new HashSet<String>();
 		int classVersion;
 
 		public ClassAnalyzer(int classNo, ClassLoader loader, ClassVisitor cv) {
@@ -255,18 +320,27 @@ public class AProfTransformer implements ClassFileTransformer {
 			}
 			Context context = new Context(config, ciCache, loader, binaryClassName, cname, mname, desc);
 			contexts.add(context);
-			return new MethodAnalyzer(new GeneratorAdapter(new EmptyMethodVisitor(), access, mname, desc), context, classVersion);
+			return new MethodAnalyzer(new GeneratorAdapter(new EmptyMethodVisitor(), access, mname, desc), context, classVersion,
+				invokedMethods);
 		}
 	}
 
 	private class ClassTransformer extends ClassVisitor {
 		private final Iterator<Context> contextIterator;
 		private final int classVersion;
+		private final boolean keepFrames;
+		private final Iterator<MethodNode> computedMethods; // methods that need frame computation when frames are kept
+
+		private String className;
 
-		public ClassTransformer(ClassVisitor cv, List<Context> contexts, int classVersion) {
+		public ClassTransformer(ClassVisitor cv, List<Context> contexts, int classVersion, boolean keepFrames,
+			Iterator<MethodNode> computedMethods)
+		{
 			super(TransformerUtil.ASM_API, cv);
 			this.contextIterator = contexts.iterator();
 			this.classVersion = classVersion;
+			this.keepFrames = keepFrames;
+			this.computedMethods = computedMethods;
 		}
 
 		@Override
@@ -275,15 +349,26 @@ public class AProfTransformer implements ClassFileTransformer {
 			// but keep deprecated flag intact.
 			if ((version & TransformerUtil.MAJOR_VERSION_MASK) < TransformerUtil.MIN_CLASS_VERSION)
 				version = TransformerUtil.MIN_CLASS_VERSION | (version & Opcodes.ACC_DEPRECATED);
+			className = name;
 			super.visit(version, access, name, signature, superName, interfaces);
 		}
 
 		@Override
 		public MethodVisitor visitMethod(final int access, final String mname, final String desc, final String signature, final String[] exceptions) {
+			Context context = contextIterator.next();
+			if (keepFrames && context.isFrameComputationNeeded()) {
+				computedMethods.next().accept(cv); // already transformed
+				return null;
+			}
 			MethodVisitor visitor = super.visitMethod(access, mname, desc, signature, exceptions);
 			visitor = new TryCatchBlockSorter(visitor, access, mname, desc, signature, exceptions);
-			Context context = contextIterator.next();
-			visitor = new MethodTransformer(new GeneratorAdapter(visitor, access, mname, desc), context, classVersion);
+			// methods that analysis found untouched are copied as is
+			if (context.isTransformationNeeded()) {
+				FrameTracker frames = keepFrames ? new FrameTracker(className, access, mname, desc, visitor) : null;
+				if (frames != null)
+					visitor = frames;
+				visitor = new MethodTransformer(new GeneratorAdapter(visitor, access, mname, desc), context, classVersion, frames);
+			}
 			visitor = new JSRInlinerAdapter(visitor, access, mname, desc, signature, exceptions);
 			return visitor;
 		}
@@ -310,6 +395,11 @@ public class AProfTransformer implements ClassFileTransformer {
 			this.loader = loader;
 		}
 
+		FrameClassWriter(ClassLoader loader) {
+			super(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+			this.loader = loader;
+		}
+
 		/**
 		 * The reason of overriding is to avoid ClassCircularityError which occurs during processing of classes related
 		 * to java.util.TimeZone and use cache of ClassInfo.
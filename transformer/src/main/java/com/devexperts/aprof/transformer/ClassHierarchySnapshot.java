@@ -0,0 +1,221 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.Configuration;
+import com.devexperts.aprof.util.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Snapshot of tracked classes info for bootstrap class loader that is saved into a cache directory
+ * after the first analysis and is reused by subsequent runs on the same JDK with the same
+ * tracked locations configuration.
+ */
+class ClassHierarchySnapshot {
+	private static final int MAGIC = 0x41504853; // "APHS"
+	private static final int FORMAT_VERSION = 2;
+
+	private final Configuration config;
+	private final String key;
+	private final byte[] keyBytes; // key may exceed 64K limit of writeUTF because of tracked locations
+	private final File file;
+
+	ClassHierarchySnapshot(Configuration config) {
+		this.config = config;
+		this.key = FORMAT_VERSION + "\n" +
+			System.getProperty("java.home") + "\n" +
+			System.getProperty("java.runtime.version") + "\n" +
+			System.getProperty("java.vm.version") + "\n" +
+			System.getProperty("sun.boot.class.path") + "\n" +
+			config.getTrackedLocationsDescription();
+		byte[] keyBytes;
+		try {
+			keyBytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		this.keyBytes = keyBytes;
+		String dir = config.getHierarchyCacheDir();
+		this.file = dir.length() == 0 ? null :
+			new File(dir, "jdk-hierarchy-" + Integer.toHexString(key.hashCode()) + ".bin");
+	}
+
+	/**
+	 * Loads class infos from snapshot into the given map.
+	 * @return true if snapshot was loaded, false if it is missing or stale.
+	 */
+	boolean load(ClassInfoMap classInfoMap) {
+		if (file == null || !file.isFile())
+			return false;
+		try {
+			byte[] bytes;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+			} finally {
+				raf.close();
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (in.readInt() != MAGIC || !readKey(in))
+				return false; // hash collision or corrupted file -- will be overwritten
+			List<ClassInfo> classInfos = new ArrayList<ClassInfo>();
+			for (int i = readCount(in); i > 0; i--)
+				classInfos.add(readClassInfo(in));
+			for (ClassInfo classInfo : classInfos)
+				classInfoMap.put(classInfo.getInternalName(), classInfo);
+			if (config.isVerboseTracked())
+				Log.out.println("Loaded " + classInfos.size() + " tracked classes info from " + file);
+			return true;
+		} catch (IOException e) {
+			Log.out.println("Failed to load tracked classes info from " + file + " because of exception " + e);
+			return false;
+		} catch (RuntimeException e) {
+			// corrupted file -- classes are analyzed again and file is overwritten
+			Log.out.println("Failed to load tracked classes info from " + file + " because of exception " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Saves sealed class infos into snapshot.
+	 */
+	void save(List<ClassInfo> classInfos) {
+		if (file == null)
+			return;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(keyBytes.length);
+			out.write(keyBytes);
+			out.writeInt(classInfos.size());
+			for (ClassInfo classInfo : classInfos)
+				writeClassInfo(out, classInfo);
+			out.flush();
+			// write to a temporary file and rename, so that concurrently starting JVMs never see a partial snapshot
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create directory " + dir);
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			try {
+				FileOutputStream fos = new FileOutputStream(tmp);
+				try {
+					bytes.writeTo(fos);
+				} finally {
+					fos.close();
+				}
+				if (!tmp.renameTo(file) && !file.isFile())
+					throw new IOException("Cannot rename " + tmp + " to " + file);
+			} finally {
+				tmp.delete(); // does nothing when renamed
+			}
+			if (config.isVerboseTracked())
+				Log.out.println("Saved " + classInfos.size() + " tracked classes info to " + file);
+		} catch (IOException e) {
+			Log.out.println("Failed to save tracked classes info to " + file + " because of exception " + e);
+		}
+	}
+
+	private static void writeClassInfo(DataOutputStream out, ClassInfo classInfo) throws IOException {
+		out.writeUTF(classInfo.getInternalName());
+		out.writeInt(classInfo.getAccess());
+		writeString(out, classInfo.getInternalSuperName());
+		String[] interfaceNames = classInfo.getInternalInterfaceNames();
+		out.writeInt(interfaceNames == null ? 0 : interfaceNames.length);
+		if (interfaceNames != null)
+			for (String interfaceName : interfaceNames)
+				out.writeUTF(interfaceName);
+		writeMethods(out, classInfo.getVirtualMethods());
+		writeMethods(out, classInfo.getTrackedMethodInvocations());
+	}
+
+	private static ClassInfo readClassInfo(DataInputStream in) throws IOException {
+		String internalName = in.readUTF();
+		int access = in.readInt();
+		String internalSuperName = readString(in);
+		String[] interfaceNames = new String[readCount(in)];
+		for (int i = 0; i < interfaceNames.length; i++)
+			interfaceNames[i] = in.readUTF();
+		ClassInfo classInfo = new ClassInfo(access, internalName, internalSuperName, interfaceNames);
+		classInfo.setVirtualMethods(readMethods(in));
+		classInfo.markInheritedMethods();
+		classInfo.setTrackedMethodInvocations(readMethods(in));
+		classInfo.markSealed();
+		return classInfo;
+	}
+
+	private static void writeMethods(DataOutputStream out, Map<String, Set<String>> methods) throws IOException {
+		out.writeInt(methods.size());
+		for (Map.Entry<String, Set<String>> entry : methods.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (String desc : entry.getValue())
+				out.writeUTF(desc);
+		}
+	}
+
+	private static Map<String, Set<String>> readMethods(DataInputStream in) throws IOException {
+		Map<String, Set<String>> methods = new HashMap<String, Set<String>>();
+		for (int i = readCount(in); i > 0; i--) {
+			String name = in.readUTF();
+			Set<String> descSet = new HashSet<String>();
+			for (int j = readCount(in); j > 0; j--)
+				descSet.add(in.readUTF());
+			methods.put(name, descSet);
+		}
+		return methods;
+	}
+
+	private boolean readKey(DataInputStream in) throws IOException {
+		if (in.readInt() != keyBytes.length)
+			return false;
+		byte[] bytes = new byte[keyBytes.length];
+		in.readFully(bytes);
+		return Arrays.equals(bytes, keyBytes);
+	}
+
+	// every counted item takes at least one byte, so larger counts come from corrupted file
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > in.available())
+			throw new IOException("Invalid count " + count);
+		return count;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -36,7 +36,7 @@ class ClassInfo {
 		NO_METHODS,                 // was loaded without analysis of methods (virtualMethods is null)
 		DECLARED_METHODS,           // set of declared virtual methods loaded
 		INHERITED_METHODS,          // virtual methods == declared + iherited
-		SEALED                      // trackedMethodInvocations are finalized
+		SEALED                      // trackedMethodInvocations are computed, they are replaced as a whole on change
 	}
 
 	private static final ClassInfo[] EMPTY_INFOS = new ClassInfo[0];
@@ -54,7 +54,7 @@ class ClassInfo {
 	private ClassInfo[] interfaceInfos;
 
 	private Map<String, Set<String>> virtualMethods;
-	private Map<String, Set<String>> trackedMethodInvocations;
+	private volatile Map<String, Set<String>> trackedMethodInvocations = Collections.emptyMap();
 
 	ClassInfo(int access, String internalName, String internalSuperName, String[] internalInterfaceNames) {
 		this.access = access;
@@ -81,10 +81,22 @@ class ClassInfo {
 		state = State.INHERITED_METHODS;
 	}
 
+	int getAccess() {
+		return access;
+	}
+
 	String getInternalName() {
 		return internalName;
 	}
 
+	String getInternalSuperName() {
+		return internalSuperName;
+	}
+
+	String[] getInternalInterfaceNames() {
+		return internalInterfaceNames;
+	}
+
 	String getClassName() {
 		if (className == null)
 			className = internalName.replace('/', '.');
@@ -96,17 +108,20 @@ class ClassInfo {
 	}
 
 	void setVirtualMethods(Map<String, Set<String>> virtualMethods) {
-		assert state == State.NEW : "Can set virtual methods just once";
+		assert state == State.NEW || state == State.NO_METHODS && virtualMethods != null :
+			"Can set virtual methods just once";
 		this.state = virtualMethods == null ? State.NO_METHODS : State.DECLARED_METHODS;
 		this.virtualMethods = virtualMethods;
 	}
 
 	Map<String, Set<String>> getTrackedMethodInvocations() {
-		if (trackedMethodInvocations == null)
-			trackedMethodInvocations = new HashMap<String, Set<String>>();
 		return trackedMethodInvocations;
 	}
 
+	void setTrackedMethodInvocations(Map<String, Set<String>> trackedMethodInvocations) {
+		this.trackedMethodInvocations = trackedMethodInvocations;
+	}
+
 	boolean isInterface() {
 		return (access & Opcodes.ACC_INTERFACE) != 0;
 	}
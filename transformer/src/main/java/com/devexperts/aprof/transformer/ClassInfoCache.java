@@ -22,27 +22,42 @@ package com.devexperts.aprof.transformer;
  * #L%
  */
 
+import com.devexperts.aprof.AProfRegistry;
 import com.devexperts.aprof.Configuration;
 import com.devexperts.aprof.util.Log;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Caches class info for each class loader. Reference to class loader is never explicitly stored and is
  * always passed in arguments, so that there is not strong references to it. They are cached using
  * weak references to make class loaders eligible for garbage collection despite this cache.
+ * Class loaders that were already initialized are looked up without locking, so that parallel class
+ * loading does not serialize on this cache.
  */
 class ClassInfoCache {
 	private final Configuration config;
+	private final ClassHierarchySnapshot bootstrapSnapshot;
 
-	// ClassLoader -> internalClassName -> ClassInfo, GuardedBy classInfoCache
-	private final WeakHashMap<ClassLoader, ClassInfoMap> classInfoCache =
-		new WeakHashMap<ClassLoader, ClassInfoMap>();
+	// ClassLoader -> internalClassName -> ClassInfo
+	private final WeakClassLoaderMap<ClassInfoMap> classInfoCache = new WeakClassLoaderMap<ClassInfoMap>();
+
+	// ClassLoader -> index of its class path
+	private final WeakClassLoaderMap<ClassPathIndex> classPathIndexes = new WeakClassLoaderMap<ClassPathIndex>();
+
+	// initialization of tracked classes in different class loaders is concurrent, but update of tracked methods
+	// at run-time is exclusive. Initialization does not wait for other class loaders while holding read lock.
+	private final ReentrantReadWriteLock trackedClassesLock = new ReentrantReadWriteLock();
 
 	ClassInfoCache(Configuration config) {
 		this.config = config;
+		this.bootstrapSnapshot = new ClassHierarchySnapshot(config);
 	}
 
 	ClassInfo getClassInfo(String internalClassName, ClassLoader loader) {
@@ -77,35 +92,39 @@ class ClassInfoCache {
 	}
 
 	ClassInfoMap getOrInitClassInfoMap(ClassLoader loader) {
-		ClassInfoMap classInfoMap;
-		synchronized (classInfoCache) {
-			classInfoMap = classInfoCache.get(loader);
-		}
-		if (classInfoMap != null) // ClassInfoMap was created by another thread. Wait until it is initialized
+		ClassInfoMap classInfoMap = classInfoCache.get(loader);
+		if (classInfoMap != null) {
+			if (!classInfoMap.isInitTrackedClasses())
+				return classInfoMap; // fast path -- already initialized
+			// ClassInfoMap was created by another thread. Wait until it is initialized
 			return waitForClassInfoMapInit(loader, classInfoMap);
+		}
 		// make sure we have parent loader's map first
 		if (loader != null)
 			getOrInitClassInfoMap(loader.getParent());
-		boolean alreadyCreated = false;
-		synchronized (classInfoCache) {
-			// double check that this info map is still not created
-			classInfoMap = classInfoCache.get(loader);
-			if (classInfoMap != null)
-				alreadyCreated = true;
-			else
-				classInfoCache.put(loader, classInfoMap = new ClassInfoMap());
+		classInfoMap = new ClassInfoMap();
+		ClassInfoMap createdMap = classInfoCache.putIfAbsent(loader, classInfoMap);
+		if (createdMap != null) // was concurrently created by another thread
+			return waitForClassInfoMapInit(loader, createdMap);
+		AProfRegistry.incrementClassLoaderCount();
+		// update of tracked methods skips maps that are being initialized, so it must not see this map
+		// before it is initialized with the current configuration
+		trackedClassesLock.readLock().lock();
+		try {
+			// at first time when class loader is discovered, tracked classes in this class loader are cached
+			if (loader != null || !bootstrapSnapshot.load(classInfoMap))
+				initTrackedClasses(loader);
+			classInfoMap.doneInit();
+		} finally {
+			trackedClassesLock.readLock().unlock();
 		}
-		if (alreadyCreated)
-			return waitForClassInfoMapInit(loader, classInfoMap);
-		// at first time when class loader is discovered, tracked classes in this class loader are cached
-		initTrackedClasses(loader);
-		classInfoMap.doneInit();
 		return classInfoMap;
 	}
 
 	private ClassInfoMap waitForClassInfoMapInit(ClassLoader loader, ClassInfoMap classInfoMap) {
 		try {
-			classInfoMap.waitInit();
+			if (classInfoMap.waitInit())
+				AProfRegistry.incrementClassInfoWaitCount();
 		} catch (InterruptedException e) {
 			StringBuilder sb = new StringBuilder("Interrupted while waiting to initialize tracking classes");
 			TransformerUtil.describeClassLoaderForLog(sb, loader);
@@ -115,41 +134,142 @@ class ClassInfoCache {
 		return classInfoMap;
 	}
 
-	// classInfoMap: internalClassName -> ClassInfo
+	// is invoked under read lock of trackedClassesLock
 	private void initTrackedClasses(ClassLoader loader) {
 		if (config.isVerboseTracked()) {
 			StringBuilder sb = new StringBuilder("Initializing tracked classes info");
 			TransformerUtil.describeClassLoaderForLog(sb, loader);
 			Log.out.println(sb);
 		}
+		List<ClassInfo> analyzed = analyzeTrackedClasses(config.getTrackedClasses(), loader,
+			new HashSet<ClassInfo>(), false);
+		// JDK classes are analyzed just once and reused by subsequent runs
+		if (loader == null)
+			bootstrapSnapshot.save(analyzed);
+	}
+
+	/**
+	 * Recomputes tracked method invocations in all class loaders after tracked methods were changed in
+	 * configuration. Tracked classes with changed methods are analyzed together with all other tracked
+	 * classes, so that invocations that were pulled up the hierarchy from them are recomputed, too.
+	 * @param changedClassNames names of classes whose tracked methods have changed.
+	 */
+	void updateTrackedClasses(Set<String> changedClassNames) {
+		Set<String> trackedClassNames = new LinkedHashSet<String>(config.getTrackedClasses());
+		trackedClassNames.addAll(changedClassNames); // to recompute classes that are not tracked anymore
+		trackedClassesLock.writeLock().lock();
+		try {
+			Set<ClassInfo> analyzed = new HashSet<ClassInfo>();
+			for (ClassLoader loader : getClassLoadersParentFirst()) {
+				ClassInfoMap classInfoMap = classInfoCache.get(loader);
+				if (classInfoMap == null || classInfoMap.isInitTrackedClasses())
+					continue; // being initialized now -- it uses updated configuration
+				analyzeTrackedClasses(trackedClassNames, loader, analyzed, true);
+			}
+		} finally {
+			trackedClassesLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns names of all methods that can be invoked on a class in any class loader, that is names of
+	 * its declared methods and of virtual methods that it inherits (when they are known).
+	 */
+	Set<String> getMethodNames(String internalClassName) {
+		Set<String> methodNames = new HashSet<String>();
+		for (ClassLoader loader : classInfoCache.getClassLoaders()) {
+			ClassInfoMap classInfoMap = classInfoCache.get(loader);
+			ClassInfo classInfo = classInfoMap == null ? null : classInfoMap.get(internalClassName);
+			if (classInfo == null)
+				continue;
+			if (classInfo.getVirtualMethods() != null)
+				methodNames.addAll(classInfo.getVirtualMethods().keySet());
+			collectMethodNames(internalClassName, loader, methodNames);
+		}
+		return methodNames;
+	}
+
+	/**
+	 * Collects {@link InvocationIndex#getKey(String, String) keys} of invocations of given methods of a class
+	 * that are tracked when these methods are tracked. Invocations of virtual methods are tracked through
+	 * super classes and interfaces of the class, too, while constructors, static, private and final methods
+	 * are tracked only when they are invoked directly on the class.
+	 */
+	void collectInvocationKeys(String internalClassName, Collection<String> methodNames, Set<String> keys) {
+		Set<String> supertypeNames = new LinkedHashSet<String>();
+		Set<String> virtualMethodNames = new HashSet<String>();
+		for (ClassLoader loader : classInfoCache.getClassLoaders()) {
+			ClassInfoMap classInfoMap = classInfoCache.get(loader);
+			ClassInfo classInfo = classInfoMap == null ? null : classInfoMap.get(internalClassName);
+			if (classInfo == null)
+				continue;
+			List<ClassInfo> hierarchy = new ArrayList<ClassInfo>();
+			collectHierarchy(classInfo, loader, hierarchy);
+			for (ClassInfo info : hierarchy) {
+				supertypeNames.add(info.getInternalName());
+				Map<String, Set<String>> virtualMethods = info.getVirtualMethods();
+				if (virtualMethods == null) // not analyzed -- just read them without changing class info
+					virtualMethods = readVirtualMethods(info.getInternalName(), loader);
+				virtualMethodNames.addAll(virtualMethods.keySet());
+			}
+		}
+		for (String methodName : methodNames) {
+			keys.add(InvocationIndex.getKey(internalClassName, methodName));
+			if (!virtualMethodNames.contains(methodName))
+				continue;
+			for (String supertypeName : supertypeNames)
+				keys.add(InvocationIndex.getKey(supertypeName, methodName));
+		}
+	}
+
+	private void collectHierarchy(ClassInfo classInfo, ClassLoader loader, List<ClassInfo> hierarchy) {
+		if (classInfo == null || hierarchy.contains(classInfo))
+			return;
+		hierarchy.add(classInfo);
+		collectHierarchy(classInfo.getSuperclassInfo(this, loader), loader, hierarchy);
+		for (ClassInfo intf : classInfo.getInterfaceInfos(this, loader))
+			collectHierarchy(intf, loader, hierarchy);
+	}
+
+	/**
+	 * Loads tracked classes with their super classes and interfaces and computes tracked method invocations
+	 * for them. Class infos that are already in analyzed set are skipped, as well as sealed ones unless they
+	 * are reanalyzed after change of tracked methods.
+	 * @return class infos that were analyzed, they are also added to analyzed set.
+	 */
+	private List<ClassInfo> analyzeTrackedClasses(Collection<String> trackedClassNames, ClassLoader loader,
+		Set<ClassInfo> analyzed, boolean reanalyze)
+	{
 		// using a queue of classes to analyze, load all tracked classes and their parents in hierarchy
 		List<ClassInfo> queue = new ArrayList<ClassInfo>();
-		Set<ClassInfo> inQueue = new HashSet<ClassInfo>();
-		for (String trackedClassName : config.getTrackedClasses()) {
+		for (String trackedClassName : trackedClassNames) {
 			String internalClassName = trackedClassName.replace('.', '/');
-			ClassInfo classInfo = getOrBuildClassInfo(internalClassName, loader);
-			if (classInfo == null || classInfo.isSealed())
-				continue; // not found or sealed class info from parent class loader -- skip (don't add to analyze queue)
-			queue.add(classInfo);
-			inQueue.add(classInfo);
+			// not found or sealed class info from parent class loader -- skip (don't add to analyze queue)
+			enqueueClass(getOrBuildClassInfo(internalClassName, loader), queue, analyzed, reanalyze);
 		}
 		for (int i = 0; i < queue.size(); i++) {
 			ClassInfo classInfo = queue.get(i);
-			enqueueClass(classInfo.getSuperclassInfo(this, loader), queue, inQueue);
+			if (classInfo.getVirtualMethods() == null)
+				loadVirtualMethods(classInfo, loader);
+			enqueueClass(classInfo.getSuperclassInfo(this, loader), queue, analyzed, reanalyze);
 			for (ClassInfo intf : classInfo.getInterfaceInfos(this, loader))
-				enqueueClass(intf, queue, inQueue);
+				enqueueClass(intf, queue, analyzed, reanalyze);
 		}
 		// push virtual methods down hierarchy, e.g. virtual methods = virtual methods + inherited
 		for (ClassInfo classInfo : queue)
 			pushDownVirtualMethods(classInfo, loader);
+		// tracked method invocations are computed aside and replace previous ones only when complete
+		Map<ClassInfo, Map<String, Set<String>>> invocations = new HashMap<ClassInfo, Map<String, Set<String>>>();
+		for (ClassInfo classInfo : queue)
+			invocations.put(classInfo, new HashMap<String, Set<String>>());
 		// Compute tracked method invocations for each class we've analyzed
 		for (ClassInfo classInfo : queue) {
 			// figure out which tracked methods this class actually has as virtual methods
 			Map<String, Set<String>> virtualMethods = classInfo.getVirtualMethods();
+			Map<String, Set<String>> methodNameMap = invocations.get(classInfo);
 			for (String virtualMethod : virtualMethods.keySet()) {
 				if (config.isMethodTracked(classInfo.getClassName(), virtualMethod)) {
 					// copy all declared signatures into a tracking list
-					Map<String, Set<String>> methodNameMap = classInfo.getTrackedMethodInvocations();
 					Set<String> descSet = methodNameMap.get(virtualMethod);
 					if (descSet == null)
 						methodNameMap.put(virtualMethod, descSet = new HashSet<String>());
@@ -157,11 +277,13 @@ class ClassInfoCache {
 				}
 			}
 			// pull tracked method invocations up the class hierarchy
-			pullUpTrackedMethodInvocations(classInfo, classInfo.getTrackedMethodInvocations(), loader);
+			pullUpTrackedMethodInvocations(classInfo, methodNameMap, invocations, loader);
 		}
 		// seal class infos that we've loaded -- no changes into them from now on
 		for (ClassInfo classInfo : queue) {
-			classInfo.markSealed();
+			classInfo.setTrackedMethodInvocations(invocations.get(classInfo));
+			if (!classInfo.isSealed())
+				classInfo.markSealed();
 			if (config.isVerboseTracked() && !classInfo.getTrackedMethodInvocations().isEmpty()) {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Tracking invocations on class ");
@@ -172,6 +294,25 @@ class ClassInfoCache {
 				Log.out.println(sb);
 			}
 		}
+		return queue;
+	}
+
+	// returns class loaders with initialized class info maps, so that parent class loaders go before their children
+	private List<ClassLoader> getClassLoadersParentFirst() {
+		List<ClassLoader> loaders = classInfoCache.getClassLoaders();
+		final Map<ClassLoader, Integer> depths = new IdentityHashMap<ClassLoader, Integer>();
+		for (ClassLoader loader : loaders) {
+			int depth = 0;
+			for (ClassLoader parent = loader; parent != null; parent = parent.getParent())
+				depth++;
+			depths.put(loader, depth);
+		}
+		Collections.sort(loaders, new Comparator<ClassLoader>() {
+			public int compare(ClassLoader l1, ClassLoader l2) {
+				return depths.get(l1).compareTo(depths.get(l2));
+			}
+		});
+		return loaders;
 	}
 
 	private void pushDownVirtualMethods(ClassInfo classInfo, ClassLoader loader) {
@@ -200,23 +341,24 @@ class ClassInfoCache {
 		}
 	}
 
-	// classInfoMap: binaryClassName -> ClassInfo
+	// invocations: ClassInfo -> tracked method invocations that are being computed for it
 	private void pullUpTrackedMethodInvocations(ClassInfo classInfo, Map<String, Set<String>> methods,
-		ClassLoader loader)
+		Map<ClassInfo, Map<String, Set<String>>> invocations, ClassLoader loader)
 	{
 		if (methods.isEmpty())
 			return;
-		processOverridenTrackedMethodInvocation(classInfo.getSuperclassInfo(this, loader), methods, loader);
+		processOverridenTrackedMethodInvocation(classInfo.getSuperclassInfo(this, loader), methods, invocations, loader);
 		for (ClassInfo intf : classInfo.getInterfaceInfos(this, loader))
-			processOverridenTrackedMethodInvocation(intf, methods, loader);
+			processOverridenTrackedMethodInvocation(intf, methods, invocations, loader);
 	}
 
-	// classInfoMap: binaryClassName -> ClassInfo
+	// invocations: ClassInfo -> tracked method invocations that are being computed for it
 	private void processOverridenTrackedMethodInvocation(ClassInfo classInfo, Map<String, Set<String>> methods,
-		ClassLoader loader)
+		Map<ClassInfo, Map<String, Set<String>>> invocations, ClassLoader loader)
 	{
-		if (classInfo == null || classInfo.isSealed())
-			return; // not found or already sealed -- bad luck
+		Map<String, Set<String>> trackedMethodInvocations = invocations.get(classInfo);
+		if (trackedMethodInvocations == null)
+			return; // not found or not analyzed now (already sealed) -- bad luck
 		// intersect with this class's list of virtual methods
 		Map<String, Set<String>> remainingMethods = new HashMap<String, Set<String>>();
 		for (Map.Entry<String, Set<String>> entry : methods.entrySet()) {
@@ -227,7 +369,6 @@ class ClassInfoCache {
 				inheritedDescSet.retainAll(entry.getValue());
 				if (inheritedDescSet.isEmpty())
 					continue;
-				Map<String, Set<String>> trackedMethodInvocations = classInfo.getTrackedMethodInvocations();
 				Set<String> trackedDescSet = trackedMethodInvocations.get(name);
 				if (trackedDescSet == null)
 					trackedMethodInvocations.put(name, trackedDescSet = new HashSet<String>());
@@ -236,14 +377,14 @@ class ClassInfoCache {
 			}
 		}
 		// go further up hierarchy
-		pullUpTrackedMethodInvocations(classInfo, remainingMethods, loader);
+		pullUpTrackedMethodInvocations(classInfo, remainingMethods, invocations, loader);
 
 	}
 
-	private void enqueueClass(ClassInfo classInfo, List<ClassInfo> queue, Set<ClassInfo> inQueue) {
-		if (classInfo == null || classInfo.isSealed())
+	private void enqueueClass(ClassInfo classInfo, List<ClassInfo> queue, Set<ClassInfo> analyzed, boolean reanalyze) {
+		if (classInfo == null || classInfo.isSealed() && !reanalyze)
 			return; // not found or already sealed -- do not analyze
-		if (inQueue.add(classInfo))
+		if (analyzed.add(classInfo))
 			queue.add(classInfo);
 	}
 
@@ -256,30 +397,100 @@ class ClassInfoCache {
 		}
 		// actually build it
 		try {
-			String classFileName = internalClassName + ".class";
-			InputStream in;
-			if (loader == null)
-				in = getClass().getResourceAsStream("/" + classFileName);
-			else
-				in = loader.getResourceAsStream(classFileName);
-			if (in == null)
+			ClassReader cr = readClass(internalClassName, loader);
+			if (cr == null)
 				return null;
-			ClassInfoVisitor visitor = new ClassInfoVisitor(loadVirtualMethods);
-			try {
-				ClassReader cr = new ClassReader(in);
-				cr.accept(visitor, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
-			} finally {
-                in.close();
+			if (!loadVirtualMethods) {
+				// header is enough, do not parse fields and methods
+				ClassInfo classInfo = new ClassInfo(cr.getAccess(), cr.getClassName(), cr.getSuperName(), cr.getInterfaces());
+				classInfo.setVirtualMethods(null);
+				return classInfo;
 			}
+			ClassInfoVisitor visitor = new ClassInfoVisitor(true);
+			cr.accept(visitor, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
 			return visitor.result;
 		} catch (Throwable t) {
-			StringBuilder sb = new StringBuilder("Failed to load class ");
-			sb.append(internalClassName);
-			TransformerUtil.describeClassLoaderForLog(sb, loader);
-			sb.append(" because of exception ");
-			sb.append(t);
-			Log.out.println(sb);
+			logFailedToLoad(internalClassName, loader, t);
+			return null;
+		}
+	}
+
+	// loads virtual methods for class info that was built without them
+	private void loadVirtualMethods(ClassInfo classInfo, ClassLoader loader) {
+		classInfo.setVirtualMethods(readVirtualMethods(classInfo.getInternalName(), loader));
+	}
+
+	// returns declared virtual methods of a class, or an empty map if it cannot be read
+	private Map<String, Set<String>> readVirtualMethods(String internalClassName, ClassLoader loader) {
+		try {
+			ClassReader cr = readClass(internalClassName, loader);
+			if (cr != null) {
+				ClassInfoVisitor visitor = new ClassInfoVisitor(true);
+				cr.accept(visitor, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+				return visitor.result.getVirtualMethods();
+			}
+		} catch (Throwable t) {
+			logFailedToLoad(internalClassName, loader, t);
+		}
+		return new HashMap<String, Set<String>>();
+	}
+
+	// collects names of all methods that are declared in a class
+	private void collectMethodNames(String internalClassName, ClassLoader loader, final Set<String> methodNames) {
+		try {
+			ClassReader cr = readClass(internalClassName, loader);
+			if (cr == null)
+				return;
+			cr.accept(new ClassVisitor(TransformerUtil.ASM_API) {
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions)
+				{
+					methodNames.add(name);
+					return null;
+				}
+			}, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+		} catch (Throwable t) {
+			logFailedToLoad(internalClassName, loader, t);
+		}
+	}
+
+	// Returns null if not found
+	private ClassReader readClass(String internalClassName, ClassLoader loader) throws IOException {
+		byte[] bytes = config.isJarIndex() ? getClassPathIndex(loader).getClassBytes(internalClassName) : null;
+		if (bytes != null)
+			return new ClassReader(bytes);
+		String classFileName = internalClassName + ".class";
+		InputStream in;
+		if (loader == null)
+			in = getClass().getResourceAsStream("/" + classFileName);
+		else
+			in = loader.getResourceAsStream(classFileName);
+		if (in == null)
 			return null;
+		try {
+			return new ClassReader(in);
+		} finally {
+			in.close();
 		}
 	}
+
+	private static void logFailedToLoad(String internalClassName, ClassLoader loader, Throwable t) {
+		StringBuilder sb = new StringBuilder("Failed to load class ");
+		sb.append(internalClassName);
+		TransformerUtil.describeClassLoaderForLog(sb, loader);
+		sb.append(" because of exception ");
+		sb.append(t);
+		Log.out.println(sb);
+	}
+
+	private ClassPathIndex getClassPathIndex(ClassLoader loader) {
+		ClassPathIndex index = classPathIndexes.get(loader);
+		if (index != null)
+			return index;
+		ClassPathIndex parent = loader == null ? null : getClassPathIndex(loader.getParent());
+		index = ClassPathIndex.create(loader, parent);
+		ClassPathIndex createdIndex = classPathIndexes.putIfAbsent(loader, index);
+		return createdIndex != null ? createdIndex : index;
+	}
 }
@@ -22,16 +22,16 @@ package com.devexperts.aprof.transformer;
  * #L%
  */
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ClassInfoMap {
-	private final Map<String, ClassInfo> map = new HashMap<String, ClassInfo>();
+	private final ConcurrentMap<String, ClassInfo> map = new ConcurrentHashMap<String, ClassInfo>();
 
-	// make sure at most one thread does initialization
-	private Thread initTrackedClassesThread = Thread.currentThread();
+	// make sure at most one thread does initialization, GuardedBy this, but read without lock on fast path
+	private volatile Thread initTrackedClassesThread = Thread.currentThread();
 
-	public synchronized boolean isInitTrackedClasses() {
+	public boolean isInitTrackedClasses() {
 		return initTrackedClassesThread != null;
 	}
 
@@ -40,18 +40,24 @@ public class ClassInfoMap {
 		notifyAll();
 	}
 
-	public synchronized void waitInit() throws InterruptedException {
-		while (initTrackedClassesThread != null && initTrackedClassesThread != Thread.currentThread())
+	/**
+	 * Waits until initialization by another thread completes.
+	 * @return true if current thread had to wait.
+	 */
+	public synchronized boolean waitInit() throws InterruptedException {
+		boolean waited = false;
+		while (initTrackedClassesThread != null && initTrackedClassesThread != Thread.currentThread()) {
+			waited = true;
 			wait();
+		}
+		return waited;
 	}
 
-	public synchronized ClassInfo get(String internalClassName) {
+	public ClassInfo get(String internalClassName) {
 		return map.get(internalClassName);
 	}
 
-	public synchronized void put(String internalClassName, ClassInfo classInfo) {
-		if (!map.containsKey(internalClassName))
-			map.put(internalClassName, classInfo);
+	public void put(String internalClassName, ClassInfo classInfo) {
+		map.putIfAbsent(internalClassName, classInfo);
 	}
 }
-
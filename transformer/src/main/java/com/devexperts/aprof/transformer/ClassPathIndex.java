@@ -0,0 +1,296 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.aprof.util.Log;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Index of class files on the class path of {@link URLClassLoader} or on the boot class path.
+ * Every jar file is memory-mapped and its central directory is read once, so that class files are then
+ * read straight from the mapping without resource lookups through class loader. Classes are looked up in
+ * the index of parent class loader first, the same way class loaders delegate to their parents. Index is empty
+ * for class loaders with unknown class path or with such a parent, so that callers fall back to class loader
+ * resources. Mappings are released only when index is garbage collected together with its class loader.
+ */
+class ClassPathIndex {
+	static final ClassPathIndex EMPTY = new ClassPathIndex(null);
+
+	private static final String CLASS_SUFFIX = ".class";
+
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_SIZE = 46;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_SIZE = 30;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private static final Set<String> SYSTEM_LOADER_CLASSES = new HashSet<String>(Arrays.asList(
+		"sun.misc.Launcher$AppClassLoader",
+		"sun.misc.Launcher$ExtClassLoader"));
+
+	private final ClassPathIndex parent; // null for boot class path
+
+	// internalClassName -> first entry on class path
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final List<File> dirs = new ArrayList<File>();
+	private final List<Integer> dirPositions = new ArrayList<Integer>();
+
+	ClassPathIndex(ClassPathIndex parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Returns index of the class path of the given class loader or {@link #EMPTY} index if class path
+	 * of this class loader or of its parents is not known or cannot be indexed.
+	 * @param parent index of the parent class loader or {@code null} for bootstrap class loader.
+	 */
+	static ClassPathIndex create(ClassLoader loader, ClassPathIndex parent) {
+		if (parent == EMPTY)
+			return EMPTY; // classes that parent would define cannot be told apart
+		List<File> files = getClassPath(loader);
+		if (files == null)
+			return EMPTY;
+		ClassPathIndex index = new ClassPathIndex(parent);
+		try {
+			for (int i = 0; i < files.size(); i++)
+				index.add(files.get(i), i);
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder("Failed to index class path because of exception ");
+			sb.append(e);
+			TransformerUtil.describeClassLoaderForLog(sb, loader);
+			Log.out.println(sb);
+			return EMPTY;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns bytes of class file or {@code null} if class is not found in this index.
+	 */
+	byte[] getClassBytes(String internalClassName) throws IOException {
+		if (parent != null) {
+			byte[] bytes = parent.getClassBytes(internalClassName);
+			if (bytes != null)
+				return bytes;
+		}
+		Entry entry = entries.get(internalClassName);
+		int position = entry == null ? Integer.MAX_VALUE : entry.position;
+		for (int i = 0; i < dirs.size() && dirPositions.get(i) < position; i++) {
+			File file = new File(dirs.get(i), internalClassName + CLASS_SUFFIX);
+			if (file.isFile())
+				return readFile(file);
+		}
+		return entry == null ? null : entry.read();
+	}
+
+	// returns null when class path is not known
+	private static List<File> getClassPath(ClassLoader loader) {
+		List<File> files = new ArrayList<File>();
+		if (loader == null) {
+			String path = System.getProperty("sun.boot.class.path");
+			if (path == null)
+				return null; // no boot class path since Java 9
+			for (StringTokenizer st = new StringTokenizer(path, File.pathSeparator); st.hasMoreTokens();) {
+				File file = new File(st.nextToken());
+				if (file.exists())
+					files.add(file);
+			}
+			return files;
+		}
+		if (loader.getClass() != URLClassLoader.class && !SYSTEM_LOADER_CLASSES.contains(loader.getClass().getName()))
+			return null; // subclasses may find classes elsewhere
+		for (URL url : ((URLClassLoader)loader).getURLs()) {
+			if (!"file".equals(url.getProtocol()))
+				return null;
+			try {
+				files.add(new File(url.toURI()));
+			} catch (URISyntaxException e) {
+				return null;
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Adds directory or jar file at the given position on class path to this index.
+	 * @throws IOException if jar file cannot be read or is not a valid jar file.
+	 */
+	void add(File file, int position) throws IOException {
+		if (file.isDirectory()) {
+			dirs.add(file);
+			dirPositions.add(position);
+			return;
+		}
+		if (!file.isFile())
+			return;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Jar file is too large: " + file);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			readCentralDirectory(file, buffer, position);
+		} finally {
+			raf.close(); // mapping stays valid after close
+		}
+	}
+
+	private void readCentralDirectory(File file, ByteBuffer buffer, int position) throws IOException {
+		int end = buffer.limit() - END_SIZE;
+		int stop = Math.max(0, end - MAX_COMMENT_SIZE);
+		while (end >= stop && buffer.getInt(end) != END_SIGNATURE)
+			end--;
+		if (end < stop)
+			throw new IOException("Not a jar file: " + file);
+		int count = buffer.getShort(end + 10) & 0xffff;
+		long offset = buffer.getInt(end + 16) & 0xffffffffL;
+		if (count == 0xffff || offset == 0xffffffffL)
+			throw new IOException("Zip64 jar file is not supported: " + file);
+		if (offset > end)
+			throw new IOException("Corrupted central directory of jar file: " + file);
+		int p = (int)offset;
+		for (int i = 0; i < count; i++) {
+			if (p + CENTRAL_SIZE > end || buffer.getInt(p) != CENTRAL_SIGNATURE)
+				throw new IOException("Corrupted central directory of jar file: " + file);
+			int nameLength = buffer.getShort(p + 28) & 0xffff;
+			int extraLength = buffer.getShort(p + 30) & 0xffff;
+			int commentLength = buffer.getShort(p + 32) & 0xffff;
+			if (p + CENTRAL_SIZE + nameLength > end)
+				throw new IOException("Corrupted central directory of jar file: " + file);
+			if (nameLength > CLASS_SUFFIX.length() && isClassName(buffer, p + CENTRAL_SIZE, nameLength)) {
+				byte[] nameBytes = new byte[nameLength - CLASS_SUFFIX.length()];
+				ByteBuffer slice = buffer.duplicate();
+				slice.position(p + CENTRAL_SIZE);
+				slice.get(nameBytes);
+				String name = new String(nameBytes, "UTF-8");
+				if (!entries.containsKey(name))
+					entries.put(name, new Entry(file, buffer, position,
+						buffer.getShort(p + 10) & 0xffff,
+						buffer.getInt(p + 20),
+						buffer.getInt(p + 24),
+						buffer.getInt(p + 42)));
+			}
+			p += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private static boolean isClassName(ByteBuffer buffer, int offset, int length) {
+		int suffixOffset = offset + length - CLASS_SUFFIX.length();
+		for (int i = 0; i < CLASS_SUFFIX.length(); i++)
+			if (buffer.get(suffixOffset + i) != CLASS_SUFFIX.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		long length = file.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Class file is too large: " + file);
+		byte[] bytes = new byte[(int)length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static class Entry {
+		final File file;
+		final ByteBuffer buffer;
+		final int position;
+		final int method;
+		final int compressedSize;
+		final int size;
+		final int localHeaderOffset;
+
+		Entry(File file, ByteBuffer buffer, int position, int method, int compressedSize, int size, int localHeaderOffset) {
+			this.file = file;
+			this.buffer = buffer;
+			this.position = position;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		byte[] read() throws IOException {
+			if (localHeaderOffset < 0 || localHeaderOffset > buffer.limit() - LOCAL_SIZE ||
+				buffer.getInt(localHeaderOffset) != LOCAL_SIGNATURE)
+			{
+				throw new IOException("Corrupted local header in jar file: " + file);
+			}
+			int dataOffset = localHeaderOffset + LOCAL_SIZE +
+				(buffer.getShort(localHeaderOffset + 26) & 0xffff) +
+				(buffer.getShort(localHeaderOffset + 28) & 0xffff);
+			if (size < 0 || compressedSize < 0 || dataOffset > buffer.limit() - (method == STORED ? size : compressedSize))
+				throw new IOException("Corrupted entry in jar file: " + file);
+			ByteBuffer data = buffer.duplicate(); // absolute reads only on a shared buffer
+			data.position(dataOffset);
+			switch (method) {
+				case STORED:
+					byte[] stored = new byte[size];
+					data.get(stored);
+					return stored;
+				case DEFLATED:
+					// nowrap inflater needs an extra dummy byte at the end of input
+					byte[] compressed = new byte[compressedSize + 1];
+					data.get(compressed, 0, compressedSize);
+					byte[] bytes = new byte[size];
+					Inflater inflater = new Inflater(true);
+					try {
+						inflater.setInput(compressed);
+						if (inflater.inflate(bytes) != size)
+							throw new IOException("Corrupted entry in jar file: " + file);
+					} catch (DataFormatException e) {
+						throw new IOException("Corrupted entry in jar file: " + file + ": " + e.getMessage());
+					} finally {
+						inflater.end();
+					}
+					return bytes;
+				default:
+					throw new IOException("Unsupported compression method " + method + " in jar file: " + file);
+			}
+		}
+	}
+}
@@ -43,11 +43,13 @@ class Context {
 	private final boolean objectInit;
 	private final boolean intrinsicArraysCopyOf;
 	private final String aprofOpsImpl;
+	private final boolean allocationNegligible;
 
 	private String location; // lazily computed on first get
 
 	private boolean transformationNeeded;
 	private boolean locationStackNeeded;
+	private boolean frameComputationNeeded;
 
 	private int locationStack = -1;
 
@@ -65,6 +67,8 @@ class Context {
 		this.objectInit = locationClass.equals(TransformerUtil.OBJECT_CLASS_NAME) && mname.equals(TransformerUtil.INIT);
 		this.intrinsicArraysCopyOf = TransformerUtil.isIntrinsicArraysCopyOf(binaryClassName, mname, desc);
 		this.aprofOpsImpl = isInternalLocation() ? TransformerUtil.APROF_OPS_INTERNAL : TransformerUtil.APROF_OPS;
+		this.allocationNegligible = AProfRegistry.getNegligibleLocationCount() > 0 && !isInternalLocation() &&
+			AProfRegistry.isNegligibleLocation(getLocation());
 	}
 
 	/**
@@ -134,6 +138,10 @@ class Context {
 		return objectInit;
 	}
 
+	public boolean isConstructor() {
+		return locationMethod.equals(TransformerUtil.INIT);
+	}
+
 	public boolean isIntrinsicArraysCopyOf() {
 		return intrinsicArraysCopyOf;
 	}
@@ -142,6 +150,22 @@ class Context {
 		return aprofOpsImpl;
 	}
 
+	/**
+	 * Returns true when allocations in this method were de-instrumented by adaptive instrumentation,
+	 * so they are counted for the whole class without location stack.
+	 */
+	public boolean isAllocationNegligible() {
+		return allocationNegligible;
+	}
+
+	public String getAllocationLocation() {
+		return allocationNegligible ? AProfRegistry.getNegligibleClassLocation(locationClass) : getLocation();
+	}
+
+	public String getAllocationOpsImplementation() {
+		return allocationNegligible ? TransformerUtil.APROF_OPS_INTERNAL : aprofOpsImpl;
+	}
+
 	public boolean isTransformationNeeded() {
 		return transformationNeeded;
 	}
@@ -158,6 +182,19 @@ class Context {
 		this.locationStackNeeded = locationStackNeeded;
 	}
 
+	/**
+	 * Returns true when transformation inserts exception handler around constructor body, so that
+	 * its stack map frames cannot be kept and have to be fully recomputed. Frames of other
+	 * inserted exception handlers are emitted by {@link FrameTracker}.
+	 */
+	public boolean isFrameComputationNeeded() {
+		return frameComputationNeeded;
+	}
+
+	public void setFrameComputationNeeded(boolean frameComputationNeeded) {
+		this.frameComputationNeeded = frameComputationNeeded;
+	}
+
 	public int getLocationStack() {
 		return locationStack;
 	}
@@ -184,9 +221,11 @@ class Context {
 			", objectInit=" + objectInit +
 			", intrinsicArraysCopyOf=" + intrinsicArraysCopyOf +
 			", aprofOpsImpl='" + aprofOpsImpl + '\'' +
+			", allocationNegligible=" + allocationNegligible +
 			", location='" + location + '\'' +
 			", transformationNeeded=" + transformationNeeded +
 			", locationStackNeeded=" + locationStackNeeded +
+			", frameComputationNeeded=" + frameComputationNeeded +
 			", locationStack=" + locationStack +
 			'}';
 	}
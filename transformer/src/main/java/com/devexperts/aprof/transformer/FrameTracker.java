@@ -0,0 +1,116 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+
+/**
+ * Tracks types of locals and stack slots in the instrumented code of a method whose original
+ * stack map frames are kept, so that frames for branches inserted by {@link MethodTransformer}
+ * can be emitted without recomputing frames of the whole class.
+ */
+class FrameTracker extends AnalyzerAdapter {
+	public FrameTracker(String owner, int access, String name, String desc, MethodVisitor mv) {
+		super(TransformerUtil.ASM_API, owner, access, name, desc, mv);
+	}
+
+	/**
+	 * Returns false when current instruction is not reachable from the previous one
+	 * and no frame has been visited since then.
+	 */
+	public boolean isReachable() {
+		return locals != null;
+	}
+
+	/**
+	 * Returns copy of the current types of locals.
+	 */
+	public List<Object> getLocals() {
+		return new ArrayList<Object>(locals);
+	}
+
+	/**
+	 * Returns copy of the current types of stack slots.
+	 */
+	public List<Object> getStack() {
+		return new ArrayList<Object>(stack);
+	}
+
+	/**
+	 * Returns types of locals where only the given local is used.
+	 */
+	public static List<Object> getLocals(int local, String localType) {
+		List<Object> result = new ArrayList<Object>(local + 1);
+		for (int i = 0; i < local; i++)
+			result.add(Opcodes.TOP);
+		result.add(localType);
+		return result;
+	}
+
+	/**
+	 * Emits frame of exception handler with the given types of locals.
+	 */
+	public void visitHandlerFrame(List<Object> handlerLocals) {
+		Object[] localTypes = toFrameTypes(handlerLocals);
+		visitFrame(Opcodes.F_NEW, localTypes.length, localTypes, 1, new Object[] { TransformerUtil.THROWABLE });
+	}
+
+	/**
+	 * Emits frame with the given types of locals and stack slots that were saved before a jump.
+	 */
+	public void visitSavedFrame(List<Object> frameLocals, List<Object> frameStack) {
+		Object[] localTypes = toFrameTypes(frameLocals);
+		Object[] stackTypes = toFrameTypes(frameStack);
+		visitFrame(Opcodes.F_NEW, localTypes.length, localTypes, stackTypes.length, stackTypes);
+	}
+
+	/**
+	 * Emits frame for the current position with the type of the given local replaced.
+	 */
+	public void visitCurrentFrame(int local, String localType) {
+		List<Object> frameLocals = new ArrayList<Object>(locals);
+		while (frameLocals.size() <= local)
+			frameLocals.add(Opcodes.TOP);
+		frameLocals.set(local, localType);
+		Object[] localTypes = toFrameTypes(frameLocals);
+		Object[] stackTypes = toFrameTypes(stack);
+		visitFrame(Opcodes.F_NEW, localTypes.length, localTypes, stackTypes.length, stackTypes);
+	}
+
+	// long and double values take two slots here, but a single entry in a frame
+	private static Object[] toFrameTypes(List<Object> types) {
+		List<Object> result = new ArrayList<Object>(types.size());
+		for (int i = 0; i < types.size(); i++) {
+			Object type = types.get(i);
+			result.add(type);
+			if (type == Opcodes.LONG || type == Opcodes.DOUBLE)
+				i++;
+		}
+		return result.toArray();
+	}
+}
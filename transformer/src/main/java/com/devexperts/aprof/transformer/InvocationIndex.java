@@ -0,0 +1,96 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index from invoked methods to names of classes that invoke them. It is built when classes are
+ * analyzed by transformer and is used to find classes that shall be transformed again when tracked methods
+ * are changed at run-time, so it is kept only when {@link com.devexperts.aprof.Configuration#isRuntimeTracking()
+ * runtime tracking} is enabled. Methods are identified by {@link #getKey(String, String) keys}.
+ * Callers are indexed separately for each class loader, so that they are dropped together with their
+ * class loader, and each class is indexed once per invoked method even when it is transformed again.
+ */
+class InvocationIndex {
+	private final WeakClassLoaderMap<CallersMap> callersByLoader = new WeakClassLoaderMap<CallersMap>();
+
+	/**
+	 * Returns key of method invocation with a given owner class in its instruction. Keys of all invocations
+	 * that are affected by tracking of a method are {@link ClassInfoCache#collectInvocationKeys collected}
+	 * by class info cache.
+	 */
+	static String getKey(String internalOwnerName, String methodName) {
+		return internalOwnerName + "." + methodName;
+	}
+
+	void addCaller(ClassLoader loader, String cname, Collection<String> keys) {
+		if (keys.isEmpty())
+			return;
+		CallersMap callersMap = callersByLoader.get(loader);
+		if (callersMap == null) {
+			CallersMap newCallersMap = new CallersMap();
+			callersMap = callersByLoader.putIfAbsent(loader, newCallersMap);
+			if (callersMap == null)
+				callersMap = newCallersMap;
+		}
+		for (String key : keys)
+			callersMap.getOrCreateCallers(key).add(cname);
+	}
+
+	void collectCallers(Collection<String> keys, Set<String> result) {
+		for (ClassLoader loader : callersByLoader.getClassLoaders()) {
+			CallersMap callersMap = callersByLoader.get(loader);
+			if (callersMap == null)
+				continue;
+			for (String key : keys) {
+				Set<String> callers = callersMap.get(key);
+				if (callers != null)
+					result.addAll(callers);
+			}
+		}
+	}
+
+	int getCallerCount(Collection<String> keys) {
+		Set<String> result = new HashSet<String>();
+		collectCallers(keys, result);
+		return result.size();
+	}
+
+	// key -> names of callers
+	private static class CallersMap extends ConcurrentHashMap<String, Set<String>> {
+		Set<String> getOrCreateCallers(String key) {
+			Set<String> callers = get(key);
+			if (callers == null) {
+				Set<String> newCallers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				callers = putIfAbsent(key, newCallers);
+				if (callers == null)
+					callers = newCallers;
+			}
+			return callers;
+		}
+	}
+}
@@ -22,14 +22,26 @@ package com.devexperts.aprof.transformer;
  * #L%
  */
 
+import java.util.Set;
+
 import org.objectweb.asm.commons.GeneratorAdapter;
 
 /**
  * @author Dmitry Paraschenko
  */
 class MethodAnalyzer extends AbstractMethodVisitor {
-	public MethodAnalyzer(GeneratorAdapter mv, Context context, int classVersion) {
+	private final Set<String> invokedMethods; // keys of invoked methods, see InvocationIndex
+
+	public MethodAnalyzer(GeneratorAdapter mv, Context context, int classVersion, Set<String> invokedMethods) {
 		super(mv, context, classVersion);
+		this.invokedMethods = invokedMethods;
+	}
+
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean intf) {
+		if (!context.isInternalLocation())
+			invokedMethods.add(InvocationIndex.getKey(owner, name));
+		super.visitMethodInsn(opcode, owner, name, desc, intf);
 	}
 
 	@Override
@@ -46,10 +58,23 @@ class MethodAnalyzer extends AbstractMethodVisitor {
 		context.setLocationStackNeeded(true);
 	}
 
+	private void requestAllocation() {
+		if (context.isAllocationNegligible())
+			requestTransformation(); // counted without location stack
+		else
+			requestLocationStack();
+	}
+
+	private void requestFrameComputation() {
+		context.setFrameComputationNeeded(true);
+	}
+
 	@Override
 	protected void visitStartInvokedMethod() {
 		assert !context.isInternalLocation();
 		requestLocationStack();
+		if (context.isConstructor())
+			requestFrameComputation(); // try/finally around the initialization of this
 	}
 
 	@Override
@@ -77,7 +102,7 @@ class MethodAnalyzer extends AbstractMethodVisitor {
 
 	@Override
 	protected void visitAllocateBefore(String desc) {
-		requestLocationStack();
+		requestAllocation();
 	}
 
 	@Override
@@ -85,7 +110,7 @@ class MethodAnalyzer extends AbstractMethodVisitor {
 
 	@Override
 	protected void visitAllocateArrayBefore(String desc) {
-		requestLocationStack();
+		requestAllocation();
 	}
 
 	@Override
@@ -93,7 +118,7 @@ class MethodAnalyzer extends AbstractMethodVisitor {
 
 	@Override
 	protected void visitAllocateArrayMulti(String desc) {
-		requestLocationStack();
+		requestAllocation();
 	}
 
 	@Override
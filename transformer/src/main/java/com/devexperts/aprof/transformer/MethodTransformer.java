@@ -22,6 +22,8 @@ package com.devexperts.aprof.transformer;
  * #L%
  */
 
+import java.util.List;
+
 import com.devexperts.aprof.AProfRegistry;
 import com.devexperts.aprof.LocationStack;
 import org.objectweb.asm.Label;
@@ -35,14 +37,24 @@ import org.objectweb.asm.commons.GeneratorAdapter;
 class MethodTransformer extends AbstractMethodVisitor {
 	private static final boolean COUNT_ALLOCATION_AFTER = Boolean.getBoolean("com.devexperts.aprof.countAllocationAfter");
 
+	private final FrameTracker frames; // null when frames are computed by ClassWriter
+
 	private Label startFinally;
 
-	public MethodTransformer(GeneratorAdapter mv, Context context, int classVersion) {
+	public MethodTransformer(GeneratorAdapter mv, Context context, int classVersion, FrameTracker frames) {
 		super(mv, context, classVersion);
+		this.frames = frames;
 	}
 
 	private void pushAllocationPoint(String desc) {
-		mv.push(AProfRegistry.registerAllocationPoint(AProfRegistry.resolveClassName(desc), context.getLocation()));
+		mv.push(AProfRegistry.registerAllocationPoint(AProfRegistry.resolveClassName(desc), context.getAllocationLocation()));
+	}
+
+	private void pushAllocationLocationStack() {
+		if (context.isAllocationNegligible())
+			mv.visitInsn(Opcodes.ACONST_NULL);
+		else
+			pushLocationStack();
 	}
 
 	private void pushLocationStack() {
@@ -57,7 +69,7 @@ class MethodTransformer extends AbstractMethodVisitor {
 			mv.loadLocal(locationStack);
 			return;
 		}
-		if (locationStack < 0) {
+		if (locationStack < 0 || frames != null && !frames.isReachable()) {
 			mv.visitMethodInsn(Opcodes.INVOKESTATIC, TransformerUtil.LOCATION_STACK, "get", TransformerUtil.NOARG_RETURNS_STACK, false);
 			return;
 		}
@@ -71,6 +83,8 @@ class MethodTransformer extends AbstractMethodVisitor {
 		mv.dup();
 		mv.storeLocal(locationStack);
 		mv.visitLabel(done);
+		if (frames != null)
+			frames.visitCurrentFrame(locationStack, TransformerUtil.LOCATION_STACK);
 	}
 
 	private void pushClass(String desc) {
@@ -114,15 +128,17 @@ class MethodTransformer extends AbstractMethodVisitor {
 		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TransformerUtil.LOCATION_STACK, "removeInvokedMethod", TransformerUtil.NOARG_VOID, false);
 	}
 
+	/**
+	 * Exception stays on stack while invoked method is removed, so that no local is added to kept frames.
+	 */
 	@Override
 	protected void visitEndInvokedMethod() {
 		Label endFinally = new Label();
 		mv.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
 		mv.visitLabel(endFinally);
-		int var = mv.newLocal(Type.getType(Object.class));
-		mv.storeLocal(var);
+		if (frames != null) // only location stack is used by handler, the rest of locals may change in method body
+			frames.visitHandlerFrame(FrameTracker.getLocals(context.getLocationStack(), TransformerUtil.LOCATION_STACK));
 		visitReturnFromInvokedMethod();
-		mv.loadLocal(var);
 		mv.throwException();
 	}
 
@@ -137,27 +153,36 @@ class MethodTransformer extends AbstractMethodVisitor {
 		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TransformerUtil.LOCATION_STACK, "removeInvocationPoint", TransformerUtil.NOARG_VOID, false);
 	}
 
+	/**
+	 * Exception handler is written right before the invocation, so that it is covered by the same
+	 * exception handlers of the method as the invocation itself, and normal flow jumps over it.
+	 */
 	@Override
 	protected void visitTrackedMethodInsn(int opcode, String owner, String name, String desc, boolean intf) {
 		assert !context.isInternalLocation() : context;
+		if (frames != null && !frames.isReachable()) {
+			mv.visitMethodInsn(opcode, owner, name, desc, intf); // dead code, no types to build frames from
+			return;
+		}
 		Label start = new Label();
 		Label end = new Label();
 		Label handler = new Label();
-		Label done = new Label();
 		visitMarkInvocationPoint();
+		List<Object> locals = frames == null ? null : frames.getLocals();
+		List<Object> stack = frames == null ? null : frames.getStack();
+		mv.goTo(start);
+		mv.visitLabel(handler);
+		if (frames != null)
+			frames.visitHandlerFrame(locals);
+		visitUnmarkInvocationPoint();
+		mv.throwException();
 		mv.visitTryCatchBlock(start, end, handler, null);
 		mv.visitLabel(start);
+		if (frames != null)
+			frames.visitSavedFrame(locals, stack);
 		mv.visitMethodInsn(opcode, owner, name, desc, intf);
 		mv.visitLabel(end);
 		visitUnmarkInvocationPoint();
-		mv.goTo(done);
-		mv.visitLabel(handler);
-		int var = mv.newLocal(Type.getType(Object.class));
-		mv.storeLocal(var);
-		visitUnmarkInvocationPoint();
-		mv.loadLocal(var);
-		mv.throwException();
-		mv.visitLabel(done);
 	}
 
 	/**
@@ -181,24 +206,32 @@ class MethodTransformer extends AbstractMethodVisitor {
 	 * @see com.devexperts.aprof.AProfOps#allocateSize(LocationStack, int, Class)
 	 */
 	private void visitAllocate(String desc) {
-		pushLocationStack();
+		pushAllocationLocationStack();
 		pushAllocationPoint(desc);
 		if (context.getConfig().isSize()) {
 			pushClass(desc);
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(), "allocateSize", TransformerUtil.STACK_INT_CLASS_VOID, false);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(), "allocateSize", TransformerUtil.STACK_INT_CLASS_VOID, false);
 		} else
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(), "allocate", TransformerUtil.STACK_INT_VOID, false);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(), "allocate", TransformerUtil.STACK_INT_VOID, false);
+	}
+
+	/**
+	 * Kept frames refer to uninitialized objects by the label just before their NEW instruction,
+	 * so nothing can be inserted in between and allocation is counted after NEW.
+	 */
+	private boolean isAllocationCountedAfter() {
+		return COUNT_ALLOCATION_AFTER || frames != null;
 	}
 
 	@Override
 	protected void visitAllocateBefore(String desc) {
-		if (!COUNT_ALLOCATION_AFTER)
+		if (!isAllocationCountedAfter())
 			visitAllocate(desc);
 	}
 
 	@Override
 	protected void visitAllocateAfter(String desc) {
-		if (COUNT_ALLOCATION_AFTER)
+		if (isAllocationCountedAfter())
 			visitAllocate(desc);
 	}
 
@@ -207,19 +240,19 @@ class MethodTransformer extends AbstractMethodVisitor {
 	 */
 	protected void visitAllocateArray(String desc) {
 		if (context.getConfig().isSize()) {
-			pushLocationStack();
+			pushAllocationLocationStack();
 			pushAllocationPoint(desc);
 			Type type = Type.getType(desc);
 			assert type.getSort() == Type.ARRAY;
 			Type elementType = type.getElementType();
 			String name = elementType.getSort() == Type.OBJECT || elementType.getSort() == Type.ARRAY ?
 				"object" : elementType.getClassName();
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(),
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(),
 				name + "AllocateArraySize", TransformerUtil.INT_STACK_INT_VOID, false);
 		} else {
-			pushLocationStack();
+			pushAllocationLocationStack();
 			pushAllocationPoint(desc);
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(),
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(),
 				"allocate", TransformerUtil.STACK_INT_VOID, false);
 		}
 	}
@@ -245,14 +278,14 @@ class MethodTransformer extends AbstractMethodVisitor {
 	protected void visitAllocateArrayMulti(String desc) {
 		if (context.getConfig().isSize()) {
 			mv.dup();
-			pushLocationStack();
+			pushAllocationLocationStack();
 			pushAllocationPoint(desc);
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(),
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(),
 				"allocateArraySizeMulti", TransformerUtil.OBJECT_ARR_STACK_INT_VOID, false);
 		} else {
-			pushLocationStack();
+			pushAllocationLocationStack();
 			pushAllocationPoint(desc);
-			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAprofOpsImplementation(),
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, context.getAllocationOpsImplementation(),
 				"allocate", TransformerUtil.STACK_INT_VOID, false);
 		}
 	}
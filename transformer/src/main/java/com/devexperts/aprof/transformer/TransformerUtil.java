@@ -37,11 +37,13 @@ class TransformerUtil {
 	static final String LOCATION_STACK = "com/devexperts/aprof/LocationStack";
 
 	static final String OBJECT = "java/lang/Object";
+	static final String THROWABLE = "java/lang/Throwable";
 	static final String OBJECT_CLASS_NAME = "java.lang.Object";
 
 	static final String ACCESS_METHOD = "access$";
 	static final String INIT = "<init>";
 	static final String CLONE = "clone";
+	static final String ANY_METHOD = "*"; // tracks all methods of a class
 
 	static final String NOARG_RETURNS_OBJECT = "()Ljava/lang/Object;";
 	static final String NOARG_RETURNS_STACK = "()Lcom/devexperts/aprof/LocationStack;";
@@ -0,0 +1,203 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.devexperts.aprof.AProfRegistry;
+
+/**
+ * Concurrent map from class loaders to values that references class loaders weakly, so that they stay eligible
+ * for garbage collection. Lookups are lock-free. Updates lock one of the stripes that is chosen by identity hash
+ * code of class loader and expunge entries of collected class loaders from it. Null key denotes bootstrap
+ * class loader.
+ */
+class WeakClassLoaderMap<V> {
+	private static final int STRIPE_COUNT = 16; // must be power of 2
+	private static final int INITIAL_CAPACITY = 4; // per stripe, must be power of 2
+
+	private final Stripe<V>[] stripes;
+	private final ReentrantLock bootstrapLock = new ReentrantLock();
+	private volatile V bootstrapValue; // GuardedBy bootstrapLock
+
+	@SuppressWarnings("unchecked")
+	WeakClassLoaderMap() {
+		stripes = (Stripe<V>[])new Stripe[STRIPE_COUNT];
+		for (int i = 0; i < STRIPE_COUNT; i++)
+			stripes[i] = new Stripe<V>();
+	}
+
+	V get(ClassLoader loader) {
+		if (loader == null)
+			return bootstrapValue;
+		int hash = hash(loader);
+		return stripeFor(hash).get(loader, hash);
+	}
+
+	/**
+	 * Returns class loaders that are not garbage collected yet and have associated values.
+	 * The resulting list contains {@code null} for bootstrap class loader.
+	 */
+	List<ClassLoader> getClassLoaders() {
+		List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+		if (bootstrapValue != null)
+			loaders.add(null);
+		for (Stripe<V> stripe : stripes)
+			for (Entry<V> head : stripe.table)
+				for (Entry<V> e = head; e != null; e = e.next) {
+					ClassLoader loader = e.get();
+					if (loader != null)
+						loaders.add(loader);
+				}
+		return loaders;
+	}
+
+	/**
+	 * Associates value with class loader unless it already has one.
+	 * @return previous value or {@code null} if the given value was associated.
+	 */
+	V putIfAbsent(ClassLoader loader, V value) {
+		if (loader == null) {
+			lock(bootstrapLock);
+			try {
+				V old = bootstrapValue;
+				if (old == null)
+					bootstrapValue = value;
+				return old;
+			} finally {
+				bootstrapLock.unlock();
+			}
+		}
+		int hash = hash(loader);
+		Stripe<V> stripe = stripeFor(hash);
+		lock(stripe.lock);
+		try {
+			return stripe.putIfAbsent(loader, hash, value);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private static void lock(ReentrantLock lock) {
+		if (!lock.tryLock()) {
+			AProfRegistry.incrementClassInfoContendedCount();
+			lock.lock();
+		}
+	}
+
+	private Stripe<V> stripeFor(int hash) {
+		return stripes[(hash >>> 16) & (STRIPE_COUNT - 1)];
+	}
+
+	private static int hash(ClassLoader loader) {
+		int h = System.identityHashCode(loader);
+		return h ^ (h >>> 7) ^ (h >>> 13);
+	}
+
+	private static class Entry<V> extends WeakReference<ClassLoader> {
+		final int hash;
+		final V value;
+		final Entry<V> next;
+
+		Entry(ClassLoader loader, int hash, V value, Entry<V> next, ReferenceQueue<ClassLoader> queue) {
+			super(loader, queue);
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Hash table with immutable chains that is replaced on every structural change, so that readers
+	 * always see consistent table without locking.
+	 */
+	private static class Stripe<V> {
+		final ReentrantLock lock = new ReentrantLock();
+		final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+		volatile Entry<V>[] table = newTable(INITIAL_CAPACITY);
+		int count; // GuardedBy lock
+
+		V get(ClassLoader loader, int hash) {
+			Entry<V>[] table = this.table;
+			for (Entry<V> e = table[hash & (table.length - 1)]; e != null; e = e.next)
+				if (e.hash == hash && e.get() == loader)
+					return e.value;
+			return null;
+		}
+
+		// GuardedBy lock
+		V putIfAbsent(ClassLoader loader, int hash, V value) {
+			expungeStaleEntries();
+			Entry<V>[] table = this.table;
+			int index = hash & (table.length - 1);
+			for (Entry<V> e = table[index]; e != null; e = e.next)
+				if (e.hash == hash && e.get() == loader)
+					return e.value;
+			if (count >= table.length * 3 / 4) {
+				table = rehash(table, table.length * 2);
+				index = hash & (table.length - 1);
+			} else
+				table = table.clone();
+			table[index] = new Entry<V>(loader, hash, value, table[index], queue);
+			count++;
+			this.table = table;
+			return null;
+		}
+
+		// GuardedBy lock
+		private void expungeStaleEntries() {
+			boolean stale = false;
+			while (queue.poll() != null)
+				stale = true;
+			if (stale)
+				table = rehash(table, table.length);
+		}
+
+		// copies entries of live class loaders into a new table, GuardedBy lock
+		private Entry<V>[] rehash(Entry<V>[] table, int capacity) {
+			Entry<V>[] result = newTable(capacity);
+			int live = 0;
+			for (Entry<V> head : table)
+				for (Entry<V> e = head; e != null; e = e.next) {
+					ClassLoader loader = e.get();
+					if (loader == null)
+						continue;
+					int index = e.hash & (capacity - 1);
+					result[index] = new Entry<V>(loader, e.hash, e.value, result[index], queue);
+					live++;
+				}
+			count = live;
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <V> Entry<V>[] newTable(int capacity) {
+			return (Entry<V>[])new Entry[capacity];
+		}
+	}
+}
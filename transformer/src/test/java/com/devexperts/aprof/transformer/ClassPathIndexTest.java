@@ -0,0 +1,228 @@
+package com.devexperts.aprof.transformer;
+
+/*-
+ * #%L
+ * Aprof Transformer
+ * %%
+ * Copyright (C) 2002 - 2017 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ClassPathIndexTest extends TestCase {
+	private final List<File> files = new ArrayList<File>();
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : files)
+			delete(file);
+	}
+
+	public void testStoredAndDeflated() throws IOException {
+		ZipBuilder zip = new ZipBuilder();
+		zip.add("a/Stored.class", bytes(1000, 1), ZipEntry.STORED);
+		zip.add("a/Deflated.class", bytes(1000, 2), ZipEntry.DEFLATED);
+		zip.add("a/Resource.txt", bytes(10, 3), ZipEntry.DEFLATED);
+		ClassPathIndex index = new ClassPathIndex(null);
+		index.add(zip.write(), 0);
+		assertTrue(Arrays.equals(bytes(1000, 1), index.getClassBytes("a/Stored")));
+		assertTrue(Arrays.equals(bytes(1000, 2), index.getClassBytes("a/Deflated")));
+		assertNull(index.getClassBytes("a/Resource"));
+		assertNull(index.getClassBytes("a/Missing"));
+	}
+
+	public void testClassPathOrder() throws IOException {
+		File dir = createTempFile(".dir");
+		dir.delete();
+		new File(dir, "a").mkdirs();
+		writeFile(new File(dir, "a/A.class"), bytes(10, 1));
+		ZipBuilder zip = new ZipBuilder();
+		zip.add("a/A.class", bytes(10, 2), ZipEntry.DEFLATED);
+		zip.add("a/B.class", bytes(10, 3), ZipEntry.DEFLATED);
+		File jar = zip.write();
+		ClassPathIndex index = new ClassPathIndex(null);
+		index.add(jar, 0);
+		index.add(dir, 1);
+		assertTrue(Arrays.equals(bytes(10, 2), index.getClassBytes("a/A")));
+		index = new ClassPathIndex(null);
+		index.add(dir, 0);
+		index.add(jar, 1);
+		assertTrue(Arrays.equals(bytes(10, 1), index.getClassBytes("a/A")));
+		assertTrue(Arrays.equals(bytes(10, 3), index.getClassBytes("a/B")));
+	}
+
+	public void testParentFirst() throws IOException {
+		ZipBuilder parentZip = new ZipBuilder();
+		parentZip.add("a/A.class", bytes(10, 1), ZipEntry.DEFLATED);
+		ClassPathIndex parent = new ClassPathIndex(null);
+		parent.add(parentZip.write(), 0);
+		ZipBuilder childZip = new ZipBuilder();
+		childZip.add("a/A.class", bytes(10, 2), ZipEntry.DEFLATED);
+		childZip.add("a/B.class", bytes(10, 3), ZipEntry.DEFLATED);
+		ClassPathIndex child = new ClassPathIndex(parent);
+		child.add(childZip.write(), 0);
+		assertTrue(Arrays.equals(bytes(10, 1), child.getClassBytes("a/A")));
+		assertTrue(Arrays.equals(bytes(10, 3), child.getClassBytes("a/B")));
+		assertNull(parent.getClassBytes("a/B"));
+		assertSame(ClassPathIndex.EMPTY, ClassPathIndex.create(null, ClassPathIndex.EMPTY));
+	}
+
+	public void testEmptyJar() throws IOException {
+		ClassPathIndex index = new ClassPathIndex(null);
+		index.add(new ZipBuilder().write(), 0);
+		assertNull(index.getClassBytes("a/A"));
+	}
+
+	public void testZip64() throws IOException {
+		ZipBuilder zip = new ZipBuilder();
+		for (int i = 0; i < 0xffff; i++)
+			zip.add("a/C" + i + ".class", new byte[0], ZipEntry.STORED);
+		checkNotIndexed(zip.write());
+	}
+
+	public void testCorruptJar() throws IOException {
+		checkNotIndexed(writeFile(createTempFile(".jar"), new byte[0]));
+		checkNotIndexed(writeFile(createTempFile(".jar"), bytes(1000, 1)));
+
+		ZipBuilder zip = new ZipBuilder();
+		zip.add("a/A.class", bytes(1000, 1), ZipEntry.DEFLATED);
+		byte[] jar = readFile(zip.write());
+		// truncated
+		checkNotIndexed(writeFile(createTempFile(".jar"), Arrays.copyOf(jar, jar.length / 2)));
+		// offset of central directory beyond its end
+		byte[] corrupted = jar.clone();
+		writeInt(corrupted, findEnd(jar) + 16, jar.length);
+		checkNotIndexed(writeFile(createTempFile(".jar"), corrupted));
+		// central directory with more entries than it has
+		corrupted = jar.clone();
+		corrupted[findEnd(jar) + 10] = 2;
+		checkNotIndexed(writeFile(createTempFile(".jar"), corrupted));
+		// local header offset beyond end of file
+		corrupted = jar.clone();
+		int central = readInt(jar, findEnd(jar) + 16);
+		writeInt(corrupted, central + 42, jar.length);
+		ClassPathIndex index = new ClassPathIndex(null);
+		index.add(writeFile(createTempFile(".jar"), corrupted), 0);
+		try {
+			index.getClassBytes("a/A");
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private void checkNotIndexed(File file) {
+		try {
+			new ClassPathIndex(null).add(file, 0);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte)(i % 7 * seed);
+		return bytes;
+	}
+
+	private static int findEnd(byte[] jar) {
+		for (int i = jar.length - 22; i >= 0; i--)
+			if (readInt(jar, i) == 0x06054b50)
+				return i;
+		throw new AssertionError("No end of central directory");
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 |
+			(bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		for (int i = 0; i < 4; i++)
+			bytes[offset + i] = (byte)(value >>> (8 * i));
+	}
+
+	private File createTempFile(String suffix) throws IOException {
+		File file = File.createTempFile("aprof", suffix);
+		files.add(file);
+		return file;
+	}
+
+	private static File writeFile(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private class ZipBuilder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final ZipOutputStream out = new ZipOutputStream(bytes);
+
+		void add(String name, byte[] data, int method) throws IOException {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setMethod(method);
+			if (method == ZipEntry.STORED) {
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				entry.setCrc(crc.getValue());
+				entry.setSize(data.length);
+			}
+			out.putNextEntry(entry);
+			out.write(data);
+			out.closeEntry();
+		}
+
+		File write() throws IOException {
+			out.close();
+			return writeFile(createTempFile(".jar"), bytes.toByteArray());
+		}
+	}
+}